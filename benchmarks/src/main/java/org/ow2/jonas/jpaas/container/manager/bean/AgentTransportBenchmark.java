@@ -0,0 +1,108 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Server;
+import org.ow2.jonas.jpaas.container.manager.bean.AgentTransport.REST_TYPE;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.MediaType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a GET request to an agent: a Jersey client created and destroyed
+ * for each call, as done before the shared transport, versus the pooled client
+ * of {@link AgentTransport}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentTransportBenchmark {
+
+    /**
+     * The agent
+     */
+    private StubAgent agent;
+
+    /**
+     * Start the agent
+     */
+    @Setup
+    public void setUp() throws Exception {
+        agent = new StubAgent();
+    }
+
+    /**
+     * Stop the agent
+     */
+    @TearDown
+    public void tearDown() {
+        AgentTransport.getInstance().release(agent.getApiUrl());
+        agent.stop();
+    }
+
+    /**
+     * @return the server read with a new client
+     */
+    @Benchmark
+    public Server perCallClient() {
+        Client client = Client.create();
+        try {
+            ClientResponse clientResponse = client.resource(AgentTransport.removeRedundantForwardSlash(
+                    AgentTransport.getUrl(agent.getApiUrl(), ContainerManagerBean.CONTEXT + "/server/bench")))
+                    .type(MediaType.APPLICATION_XML_TYPE)
+                    .accept(MediaType.APPLICATION_XML_TYPE)
+                    .get(ClientResponse.class);
+            try {
+                return clientResponse.getEntity(Server.class);
+            } finally {
+                clientResponse.close();
+            }
+        } finally {
+            client.destroy();
+        }
+    }
+
+    /**
+     * @return the server read with the shared transport
+     */
+    @Benchmark
+    public Server reusedClient() throws Exception {
+        return AgentTransport.getInstance().sendRequestWithReply(REST_TYPE.GET, agent.getApiUrl(),
+                ContainerManagerBean.CONTEXT + "/server/bench", null, Server.class);
+    }
+}
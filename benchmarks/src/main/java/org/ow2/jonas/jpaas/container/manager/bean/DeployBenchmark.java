@@ -0,0 +1,147 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.DeployMode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end deploy() of the bean against a stub agent, the facades of the
+ * System Representation being replaced by {@link StubFacades}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeployBenchmark {
+
+    /**
+     * Name of the container
+     */
+    private static final String CONTAINER_NAME = "jonas-bench";
+
+    /**
+     * Deployment mode
+     */
+    @Param({"PLAN", "PUSH"})
+    public DeployMode mode;
+
+    /**
+     * Size in KB of the pushed deployable
+     */
+    @Param({"1024"})
+    public int deployableSize;
+
+    /**
+     * The agent
+     */
+    private StubAgent agent;
+
+    /**
+     * The bean
+     */
+    private ContainerManagerBean bean;
+
+    /**
+     * The deployable
+     */
+    private URL deployable;
+
+    /**
+     * Local copy of the pushed deployable
+     */
+    private File file;
+
+    /**
+     * Start the agent and build the bean
+     */
+    @Setup
+    public void setUp() throws Exception {
+        agent = new StubAgent();
+        StubFacades facades = new StubFacades("agent-bench", agent.getApiUrl());
+        facades.addContainer(CONTAINER_NAME);
+        agent.addServer(CONTAINER_NAME);
+        bean = facades.newBean();
+        if (mode == DeployMode.PUSH) {
+            file = createDeployable(deployableSize);
+            deployable = file.toURI().toURL();
+        } else {
+            deployable = new URL("http://repository.example.org/maven2/org/example/petclinic/1.0/petclinic.war");
+        }
+    }
+
+    /**
+     * Stop the agent
+     */
+    @TearDown
+    public void tearDown() {
+        AgentTransport.getInstance().release(agent.getApiUrl());
+        agent.stop();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Deploy the deployable
+     */
+    @Benchmark
+    public void deploy() throws Exception {
+        bean.deploy(CONTAINER_NAME, deployable, mode);
+    }
+
+    /**
+     * @param size size in KB
+     * @return a temporary file of the given size
+     */
+    private static File createDeployable(int size) throws IOException {
+        File file = File.createTempFile("petclinic", ".war");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] block = new byte[1024];
+            for (int i = 0; i < size; i++) {
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.task.Status;
+import org.ow2.jonas.agent.management.api.xml.App;
+import org.ow2.jonas.agent.management.api.xml.Server;
+import org.ow2.jonas.agent.management.api.xml.Task;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unmarshalling of the agent responses, with a shared JAXB context as
+ * done by the Jersey providers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JaxbBenchmark {
+
+    /**
+     * Context of the agent resources
+     */
+    private JAXBContext jaxbContext;
+
+    /**
+     * A task response
+     */
+    private byte[] task;
+
+    /**
+     * A server response
+     */
+    private byte[] server;
+
+    /**
+     * An application response
+     */
+    private byte[] app;
+
+    /**
+     * Build the responses
+     */
+    @Setup
+    public void setUp() throws JAXBException {
+        jaxbContext = JAXBContext.newInstance(Task.class, Server.class, App.class);
+
+        Task taskEntity = new Task();
+        taskEntity.setId(42);
+        taskEntity.setStatus(Status.SUCCESS.toString());
+        task = marshal(taskEntity);
+
+        Server serverEntity = new Server();
+        serverEntity.setName("jonas-1");
+        serverEntity.setStatus("RUNNING");
+        server = marshal(serverEntity);
+
+        App appEntity = new App();
+        appEntity.setName("plan-petclinic.war.xml");
+        appEntity.setStatus("DEPLOYED");
+        app = marshal(appEntity);
+    }
+
+    /**
+     * @return the task
+     */
+    @Benchmark
+    public Object task() throws JAXBException {
+        return jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(task));
+    }
+
+    /**
+     * @return the server
+     */
+    @Benchmark
+    public Object server() throws JAXBException {
+        return jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(server));
+    }
+
+    /**
+     * @return the application
+     */
+    @Benchmark
+    public Object app() throws JAXBException {
+        return jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(app));
+    }
+
+    /**
+     * @param entity an agent resource
+     * @return its XML content
+     */
+    private byte[] marshal(Object entity) throws JAXBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jaxbContext.createMarshaller().marshal(entity, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many callers restarting and deploying on the containers of a single slow agent.
+ * Each benchmark thread works on its own container.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ProvisioningStormBenchmark {
+
+    /**
+     * Latency in ms of each agent request
+     */
+    @Param({"0", "5"})
+    public long latency;
+
+    /**
+     * Maximum duration in ms of the agent tasks, the minimum being a tenth
+     */
+    @Param({"0", "200"})
+    public long taskDuration;
+
+    /**
+     * Number of requests served concurrently by the agent, 0 for no limit
+     */
+    @Param({"0"})
+    public int agentConcurrency;
+
+    /**
+     * The agent
+     */
+    private StubAgent agent;
+
+    /**
+     * The SR
+     */
+    private StubFacades facades;
+
+    /**
+     * Number of containers given to the threads
+     */
+    private final AtomicInteger containers = new AtomicInteger();
+
+    /**
+     * Start the agent
+     */
+    @Setup
+    public void setUp() throws Exception {
+        agent = new StubAgent();
+        agent.setLatency(latency);
+        agent.setTaskDuration(taskDuration / 10, taskDuration);
+        agent.setMaxConcurrentRequests(agentConcurrency);
+        facades = new StubFacades("agent-storm", agent.getApiUrl());
+    }
+
+    /**
+     * Stop the agent
+     */
+    @TearDown
+    public void tearDown() {
+        AgentTransport.getInstance().release(agent.getApiUrl());
+        agent.stop();
+    }
+
+    /**
+     * Container of a benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+
+        /**
+         * Name of the container
+         */
+        private String containerName;
+
+        /**
+         * Bean of the thread
+         */
+        private ContainerManagerBean bean;
+
+        /**
+         * Deployable of the thread
+         */
+        private URL deployable;
+
+        /**
+         * Create the container of the thread
+         * @param storm the shared state
+         */
+        @Setup
+        public void setUp(ProvisioningStormBenchmark storm) throws Exception {
+            containerName = "jonas-storm-" + storm.containers.incrementAndGet();
+            storm.facades.addContainer(containerName);
+            storm.agent.addServer(containerName);
+            bean = storm.facades.newBean();
+            deployable = new URL("http://repository.example.org/maven2/org/example/petclinic/1.0/"
+                    + containerName + ".war");
+        }
+    }
+
+    /**
+     * Stop then start the container of the thread
+     * @param caller the thread state
+     */
+    @Benchmark
+    public void restart(Caller caller) throws Exception {
+        caller.bean.stopContainer(caller.containerName);
+        caller.bean.startContainer(caller.containerName);
+    }
+
+    /**
+     * Deploy on the container of the thread
+     * @param caller the thread state
+     */
+    @Benchmark
+    public void deploy(Caller caller) throws Exception {
+        caller.bean.deploy(caller.containerName, caller.deployable);
+    }
+}
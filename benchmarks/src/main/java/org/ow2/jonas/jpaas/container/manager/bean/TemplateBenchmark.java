@@ -0,0 +1,120 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Rendering of the deployment plan and connector templates used by deploy() and
+ * createConnector(), compared with the regular expression replacements of the raw files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+    /**
+     * Values of the deployment plan
+     */
+    private final Map<String, String> planValues = new HashMap<String, String>();
+
+    /**
+     * Values of the connector
+     */
+    private final Map<String, String> connectorValues = new HashMap<String, String>();
+
+    /**
+     * The deployment plan template
+     */
+    private Template plan;
+
+    /**
+     * The connector template
+     */
+    private Template connector;
+
+    /**
+     * Raw content of the deployment plan template
+     */
+    private String rawPlan;
+
+    /**
+     * Load the templates
+     */
+    @Setup
+    public void setUp() throws Exception {
+        TemplateRegistry templates = TemplateRegistry.getInstance();
+        Map<String, String> deploymentValues = new HashMap<String, String>();
+        deploymentValues.put("resource", "/maven2/org/example/petclinic/1.0/petclinic.war");
+        deploymentValues.put("repo-id", "repo-repository.example.org");
+        planValues.put("id", "plan-petclinic.war");
+        planValues.put("atomic", "false");
+        planValues.put("deployments", templates.get(TemplateRegistry.DEPLOYMENT).renderToString(deploymentValues));
+        connectorValues.putAll(ConnectorSettings.parse(null).toTemplateValues(10000, 10001));
+
+        plan = templates.get(TemplateRegistry.DEPLOYMENT_PLAN);
+        connector = templates.get(TemplateRegistry.CONNECTOR);
+        rawPlan = plan.renderToString(new HashMap<String, String>());
+    }
+
+    /**
+     * @return size of the rendered deployment plan
+     */
+    @Benchmark
+    public int deploymentPlan() {
+        return plan.render(planValues).size();
+    }
+
+    /**
+     * @return size of the rendered connector
+     */
+    @Benchmark
+    public int connector() {
+        return connector.render(connectorValues).size();
+    }
+
+    /**
+     * @return size of the deployment plan rendered with regular expressions
+     */
+    @Benchmark
+    public int deploymentPlanReplaceAll() {
+        String content = rawPlan;
+        for (Map.Entry<String, String> value : planValues.entrySet()) {
+            content = content.replaceAll("\\$\\{" + value.getKey() + "\\}", Matcher.quoteReplacement(value.getValue()));
+        }
+        return content.getBytes(Template.UTF_8).length;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+/**
+ * Notifications sent by the JOnAS agents about their tasks, restricted to the {@link #AGENT_ROLE} role.
+ */
+public interface AgentTaskNotification {
+
+    /**
+     * Role of the callers allowed to notify
+     */
+    String AGENT_ROLE = "jpaas-agent";
+
+    /**
+     * Notify the change of state of a task of a JOnAS agent. The status is only a hint: a tracked task is checked
+     * on its agent without waiting for its next check, and the notifications of unknown agents or tasks are ignored.
+     * The tasks of an agent which notifies are only polled as a fallback.
+     * @param apiUrl Api URL of the Agent
+     * @param taskId id of the task
+     * @param status the new status of the task
+     */
+    public void taskStateChanged(String apiUrl, long taskId, String status);
+}
@@ -20,15 +20,19 @@ package org.ow2.jonas.jpaas.container.manager.api;
 
 
 import java.net.URL;
+import java.util.Collection;
+import java.util.List;
 
 public interface ContainerManager {
 
     /**
-     * Create a new JOnAS container
+     * Create a new JOnAS container. When a warm pool holds containers of the PaasConfiguration on the agent,
+     * one of them is claimed and renamed instead: pooled containers have the default port range, so they are
+     * only claimed when the port range is null or fits in the default one.
      * @param containerName Name of the container
      * @param paasAgentName Name of the PaaS Agent
      * @param paasConfigurationName Name of the PaasConfiguration
-     * @param portRange the port range
+     * @param portRange the port range, null for the default one
      * @throws ContainerManagerBeanException
      */
     public void createContainer(String containerName, String paasAgentName, String paasConfigurationName,
@@ -55,6 +59,20 @@ public interface ContainerManager {
      */
     public void stopContainer(String containerName) throws ContainerManagerBeanException;
 
+    /**
+     * Start several JOnAS containers. The containers of different agents are started in parallel.
+     * @param containerNames Names of the containers
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> startContainers(Collection<String> containerNames);
+
+    /**
+     * Stop several JOnAS containers. The containers of different agents are stopped in parallel.
+     * @param containerNames Names of the containers
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> stopContainers(Collection<String> containerNames);
+
     /**
      * Deploy a deployable in a container
      * @param containerName Name of the Container
@@ -63,6 +81,41 @@ public interface ContainerManager {
      */
     public void deploy(String containerName, URL deployable) throws ContainerManagerBeanException;
 
+    /**
+     * Deploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @param mode {@link DeployMode#PLAN} to send a deployment plan, {@link DeployMode#PUSH} to stream the deployable
+     * @throws ContainerManagerBeanException
+     */
+    public void deploy(String containerName, URL deployable, DeployMode mode) throws ContainerManagerBeanException;
+
+    /**
+     * Deploy several deployables in a container with a single deployment plan, not atomically
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @throws ContainerManagerBeanException
+     */
+    public void deployAll(String containerName, List<URL> deployables) throws ContainerManagerBeanException;
+
+    /**
+     * Deploy several deployables in a container with a single deployment plan
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @param atomic true to undo the whole plan if one of the deployables fails
+     * @throws ContainerManagerBeanException
+     */
+    public void deployAll(String containerName, List<URL> deployables, boolean atomic)
+            throws ContainerManagerBeanException;
+
+    /**
+     * Deploy a deployable in several containers. The containers of different agents are deployed in parallel.
+     * @param containerNames Names of the containers
+     * @param deployable Url of the deployable to deploy
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> deployToContainers(Collection<String> containerNames, URL deployable);
+
     /**
      * Undeploy a deployable in a container
      * @param containerName Name of the Container
@@ -75,7 +128,9 @@ public interface ContainerManager {
      * Add a connector
      * @param containerName Name of the Container
      * @param connectorName Name of the Connector
-     * @param connectorConf Configuration of the Connector
+     * @param connectorConf Configuration of the Connector: key=value pairs, one by line, tuning the connector.
+     * Null or empty for the default connector. Configurations which are not pairs of known keys, as accepted
+     * before the tuning keys existed, are still accepted: their invalid entries are ignored with a warning.
      * @throws ContainerManagerBeanException
      */
     public void createConnector(String containerName, String connectorName, String connectorConf)
@@ -93,7 +148,7 @@ public interface ContainerManager {
      * Add a Datasource
      * @param containerName Name of the Container
      * @param datasourceName Name of the Datasource
-     * @param datasourceConf Configuration of the Datasource
+     * @param datasourceConf Configuration of the Datasource, as key=value pairs, one by line
      * @throws ContainerManagerBeanException
      */
     public void createDatasource(String containerName, String datasourceName, String datasourceConf)
@@ -107,5 +162,15 @@ public interface ContainerManager {
      */
     public void removeDatasource(String containerName, String datasourceName) throws ContainerManagerBeanException;
 
+    /**
+     * Change the configuration of a Datasource, such as its pool sizes, without restarting the container
+     * @param containerName Name of the Container
+     * @param datasourceName Name of the Datasource
+     * @param datasourceConf New configuration of the Datasource, as key=value pairs, one by line
+     * @throws ContainerManagerBeanException
+     */
+    public void updateDatasource(String containerName, String datasourceName, String datasourceConf)
+            throws ContainerManagerBeanException;
+
 }
 
@@ -0,0 +1,102 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Asynchronous counterpart of {@link ContainerManager}.
+ * Each method returns as soon as the operation is scheduled. No thread is held
+ * while the agent task runs, the next steps are resumed when the task ends.
+ */
+public interface ContainerManagerAsync {
+
+    /**
+     * Create a new JOnAS container. When a warm pool holds containers of the PaasConfiguration on the agent,
+     * one of them is claimed and renamed instead: pooled containers have the default port range, so they are
+     * only claimed when the port range is null or fits in the default one.
+     * @param containerName Name of the container
+     * @param paasAgentName Name of the PaaS Agent
+     * @param paasConfigurationName Name of the PaasConfiguration
+     * @param portRange the port range, null for the default one
+     * @return the handle of the operation
+     */
+    public ContainerOperation createContainerAsync(String containerName, String paasAgentName,
+            String paasConfigurationName, Integer portRange);
+
+    /**
+     * Start a JOnAS container
+     * @param containerName Name of the Container
+     * @return the handle of the operation
+     */
+    public ContainerOperation startContainerAsync(String containerName);
+
+    /**
+     * Stop a JOnAS container
+     * @param containerName Name of the container
+     * @return the handle of the operation
+     */
+    public ContainerOperation stopContainerAsync(String containerName);
+
+    /**
+     * Deploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAsync(String containerName, URL deployable);
+
+    /**
+     * Deploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @param mode {@link DeployMode#PLAN} to send a deployment plan, {@link DeployMode#PUSH} to stream the deployable
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAsync(String containerName, URL deployable, DeployMode mode);
+
+    /**
+     * Deploy several deployables in a container with a single deployment plan
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @param atomic true to undo the whole plan if one of the deployables fails
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAllAsync(String containerName, List<URL> deployables, boolean atomic);
+
+    /**
+     * Undeploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to undeploy
+     * @return the handle of the operation
+     */
+    public ContainerOperation undeployAsync(String containerName, URL deployable);
+
+    /**
+     * Add a connector
+     * @param containerName Name of the Container
+     * @param connectorName Name of the Connector
+     * @param connectorConf Configuration of the Connector, as for {@link ContainerManager#createConnector}
+     * @return the handle of the operation
+     */
+    public ContainerOperation createConnectorAsync(String containerName, String connectorName,
+            String connectorConf);
+
+}
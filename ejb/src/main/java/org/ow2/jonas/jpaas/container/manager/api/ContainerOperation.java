@@ -0,0 +1,46 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * Handle on an asynchronous container operation.
+ * {@link #get()} throws an {@link java.util.concurrent.ExecutionException} wrapping
+ * the {@link ContainerManagerBeanException} of a failed operation.
+ * Cancelling an operation prevents its next steps but doesn't stop an agent task already submitted.
+ */
+public interface ContainerOperation extends Future<Void> {
+
+    /**
+     * @return the name of the operation (start, deploy, ...)
+     */
+    String getName();
+
+    /**
+     * @return the name of the container
+     */
+    String getContainerName();
+
+    /**
+     * @return the current progress of the operation
+     */
+    OperationState getState();
+
+}
@@ -0,0 +1,94 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+import java.io.Serializable;
+
+/**
+ * Result of an operation on one container of a bulk operation.
+ */
+public class ContainerOperationResult implements Serializable {
+
+    /**
+     * Serial version UID
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the container
+     */
+    private final String containerName;
+
+    /**
+     * Name of the operation
+     */
+    private final String operationName;
+
+    /**
+     * Error message, null if the operation succeeded
+     */
+    private final String error;
+
+    /**
+     * @param containerName Name of the container
+     * @param operationName Name of the operation
+     * @param error Error message, null if the operation succeeded
+     */
+    public ContainerOperationResult(String containerName, String operationName, String error) {
+        this.containerName = containerName;
+        this.operationName = operationName;
+        this.error = error;
+    }
+
+    /**
+     * @return the name of the container
+     */
+    public String getContainerName() {
+        return containerName;
+    }
+
+    /**
+     * @return the name of the operation
+     */
+    public String getOperationName() {
+        return operationName;
+    }
+
+    /**
+     * @return true if the operation succeeded
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the error message, null if the operation succeeded
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return operationName + "(" + containerName + ") : " + (error == null ? "OK" : error);
+    }
+}
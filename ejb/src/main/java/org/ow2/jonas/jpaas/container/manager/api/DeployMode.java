@@ -0,0 +1,37 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+/**
+ * How a deployable is given to the agent of a container.
+ */
+public enum DeployMode {
+
+    /**
+     * A deployment plan pointing to the repository of the deployable is sent,
+     * the agent downloads the deployable itself
+     */
+    PLAN,
+
+    /**
+     * The deployable is streamed to the agent, which does not need to reach its repository
+     */
+    PUSH
+
+}
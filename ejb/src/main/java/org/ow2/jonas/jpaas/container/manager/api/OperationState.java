@@ -0,0 +1,73 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.api;
+
+/**
+ * Progress of an asynchronous container operation.
+ * An operation starts {@link #PENDING} and ends {@link #VERIFIED}, {@link #COMPLETED},
+ * {@link #FAILED} or {@link #CANCELLED}. The other states may be skipped when an operation has
+ * no System Representation update or no agent task. {@link #SR_UPDATED} comes
+ * before the agent task for operations recording their intent in the System
+ * Representation (containers), and after {@link #TASK_COMPLETED} for operations
+ * recording what the agent did (connectors, datasources).
+ */
+public enum OperationState {
+
+    /**
+     * The operation is waiting to be run
+     */
+    PENDING,
+
+    /**
+     * The System Representation has been updated, before or after the agent task
+     */
+    SR_UPDATED,
+
+    /**
+     * A task has been submitted to the agent
+     */
+    TASK_SUBMITTED,
+
+    /**
+     * The agent task is completed
+     */
+    TASK_COMPLETED,
+
+    /**
+     * The result has been read back from the agent, the operation is over
+     */
+    VERIFIED,
+
+    /**
+     * The operation is over without reading its result back from the agent, e.g. when the deployments are
+     * not verified or when there is no agent task
+     */
+    COMPLETED,
+
+    /**
+     * The operation has failed
+     */
+    FAILED,
+
+    /**
+     * The operation has been cancelled
+     */
+    CANCELLED
+
+}
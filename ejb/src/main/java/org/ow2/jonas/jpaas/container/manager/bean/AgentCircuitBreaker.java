@@ -0,0 +1,312 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.management.ObjectName;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health of the agents. The circuit of an agent opens after consecutive failed
+ * requests, a request slower than a threshold counting as a failure, except the uploads
+ * of deployables which take as long as their size needs. While it is open,
+ * the requests to the agent fail at once instead of holding a thread until their timeout.
+ * After a delay the circuit is half open: a single probe request is let through at a
+ * limited rate, and the circuit closes again when a probe succeeds.
+ */
+final class AgentCircuitBreaker {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(AgentCircuitBreaker.class);
+
+    /**
+     * States of a circuit
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Shared instance
+     */
+    private static final AgentCircuitBreaker INSTANCE = new AgentCircuitBreaker();
+
+    /**
+     * Number of consecutive failures opening the circuit, 0 to disable the breaker
+     */
+    private final int failureThreshold = ManagerConfig.getInt("breaker.failureThreshold", 5);
+
+    /**
+     * Duration in ms above which a request is counted as a failure
+     */
+    private final long slowCallThreshold = ManagerConfig.getLong("breaker.slowCallThreshold", 20000L);
+
+    /**
+     * Delay in ms before the first probe of an open circuit
+     */
+    private final long openDuration = ManagerConfig.getLong("breaker.openDuration", 30000L);
+
+    /**
+     * Minimum interval in ms between two probes of a half open circuit
+     */
+    private final long probeInterval = ManagerConfig.getLong("breaker.probeInterval", 5000L);
+
+    /**
+     * Circuits by agent API url
+     */
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private AgentCircuitBreaker() {
+    }
+
+    /**
+     * @return the shared breaker
+     */
+    static AgentCircuitBreaker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Check that a request can be sent to an agent
+     * @param apiUrl Api URL of the agent
+     * @throws ContainerManagerBeanException if the circuit of the agent is open
+     */
+    void checkAvailable(String apiUrl) throws ContainerManagerBeanException {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        Circuit circuit = circuits.get(apiUrl);
+        if (circuit != null) {
+            circuit.checkAvailable();
+        }
+    }
+
+    /**
+     * Record the outcome of a request
+     * @param apiUrl Api URL of the agent
+     * @param nanos duration of the request in ns
+     * @param failed true if the agent did not answer or answered with a server error
+     * @param upload true if the request sends a deployable, whose duration depends on its size:
+     * such a request is never counted as slow
+     */
+    void record(String apiUrl, long nanos, boolean failed, boolean upload) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        boolean failure = failed || (!upload && nanos / 1000000 > slowCallThreshold);
+        Circuit circuit = circuits.get(apiUrl);
+        if (circuit == null) {
+            if (!failure) {
+                // nothing to record on a healthy agent
+                return;
+            }
+            Circuit newCircuit = new Circuit(apiUrl);
+            circuit = circuits.putIfAbsent(apiUrl, newCircuit);
+            if (circuit == null) {
+                circuit = newCircuit;
+                ManagerMetrics.getInstance().register("type=AgentCircuit,name=" + ObjectName.quote(apiUrl), circuit);
+            }
+        }
+        if (failure) {
+            circuit.failed();
+        } else {
+            circuit.succeeded();
+        }
+    }
+
+    /**
+     * @param apiUrl Api URL of the agent
+     * @return the state of the circuit of the agent
+     */
+    State getState(String apiUrl) {
+        Circuit circuit = circuits.get(apiUrl);
+        return circuit == null ? State.CLOSED : circuit.state;
+    }
+
+    /**
+     * Forget an agent, e.g. when it is removed
+     * @param apiUrl Api URL of the agent
+     */
+    void release(String apiUrl) {
+        if (circuits.remove(apiUrl) != null) {
+            ManagerMetrics.getInstance().unregister("type=AgentCircuit,name=" + ObjectName.quote(apiUrl));
+        }
+    }
+
+    /**
+     * Circuit of an agent
+     */
+    private final class Circuit implements AgentCircuitMBean {
+
+        /**
+         * Api URL of the agent
+         */
+        private final String apiUrl;
+
+        /**
+         * Current state, guarded by the circuit
+         */
+        private volatile State state = State.CLOSED;
+
+        /**
+         * Consecutive failures
+         */
+        private int consecutiveFailures = 0;
+
+        /**
+         * Time at which the circuit has been opened
+         */
+        private long openedAt = 0;
+
+        /**
+         * Time of the last probe
+         */
+        private long lastProbe = 0;
+
+        /**
+         * Times the circuit has been opened
+         */
+        private final AtomicLong trips = new AtomicLong();
+
+        /**
+         * Refused requests
+         */
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @param apiUrl Api URL of the agent
+         */
+        Circuit(String apiUrl) {
+            this.apiUrl = apiUrl;
+        }
+
+        /**
+         * @throws ContainerManagerBeanException if the request must not be sent
+         */
+        void checkAvailable() throws ContainerManagerBeanException {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (state == State.CLOSED) {
+                    return;
+                }
+                if (state == State.OPEN && now - openedAt >= openDuration) {
+                    state = State.HALF_OPEN;
+                    logger.info("Probing the JOnAS agent '" + apiUrl + "'");
+                }
+                if (state == State.HALF_OPEN && now - lastProbe >= probeInterval) {
+                    // this request is the probe
+                    lastProbe = now;
+                    return;
+                }
+            }
+            rejected.incrementAndGet();
+            throw new ContainerManagerBeanException("The JOnAS agent '" + apiUrl + "' is unavailable after "
+                    + failureThreshold + " consecutive failures, retry later");
+        }
+
+        /**
+         * A request succeeded
+         */
+        synchronized void succeeded() {
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                logger.info("The JOnAS agent '" + apiUrl + "' is available again");
+            }
+        }
+
+        /**
+         * A request failed or was too slow
+         */
+        synchronized void failed() {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN) {
+                // the probe failed
+                open();
+            } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+                open();
+            }
+        }
+
+        /**
+         * Open the circuit
+         */
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trips.incrementAndGet();
+            logger.warn("The JOnAS agent '" + apiUrl + "' is considered unavailable after " + consecutiveFailures
+                    + " consecutive failures");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getApiUrl() {
+            return apiUrl;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getState() {
+            return state.toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getTrips() {
+            return trips.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public synchronized void reset() {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Health of an agent as seen by the {@link AgentCircuitBreaker}, through JMX.
+ */
+public interface AgentCircuitMBean {
+
+    /**
+     * @return Api URL of the agent
+     */
+    String getApiUrl();
+
+    /**
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    String getState();
+
+    /**
+     * @return number of consecutive failed or too slow requests
+     */
+    int getConsecutiveFailures();
+
+    /**
+     * @return number of times the circuit has been opened
+     */
+    long getTrips();
+
+    /**
+     * @return number of requests refused while the circuit was open
+     */
+    long getRejected();
+
+    /**
+     * Close the circuit, e.g. after the agent has been repaired
+     */
+    void reset();
+}
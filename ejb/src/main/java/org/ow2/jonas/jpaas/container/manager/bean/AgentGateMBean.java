@@ -0,0 +1,65 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Requests and tasks admitted on an agent by the {@link AgentScheduler}, seen through JMX.
+ */
+public interface AgentGateMBean {
+
+    /**
+     * @return Api URL of the agent
+     */
+    String getApiUrl();
+
+    /**
+     * @return number of requests being sent to the agent
+     */
+    int getInFlightRequests();
+
+    /**
+     * @return number of requests waiting to be sent
+     */
+    int getQueuedRequests();
+
+    /**
+     * @return greatest number of requests waiting to be sent
+     */
+    int getMaxQueuedRequests();
+
+    /**
+     * @return number of tasks running on the agent
+     */
+    int getInFlightTasks();
+
+    /**
+     * @return number of task submissions waiting for a running task to end
+     */
+    int getQueuedTasks();
+
+    /**
+     * @return greatest number of task submissions waiting for a running task to end
+     */
+    int getMaxQueuedTasks();
+
+    /**
+     * @return number of callers refused after waiting too long
+     */
+    long getRejected();
+}
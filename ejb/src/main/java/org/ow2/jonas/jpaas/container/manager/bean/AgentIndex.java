@@ -0,0 +1,195 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasAgentFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasAgentIaasComputeLink;
+import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the PaaS agents by name.
+ * The agents are loaded from the System Representation at most once per
+ * refresh period, and on a miss when the index has not been refreshed recently.
+ * Lookups don't take any lock: the index is replaced as a whole on each refresh.
+ */
+final class AgentIndex {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(AgentIndex.class);
+
+    /**
+     * Shared instance
+     */
+    private static final AgentIndex INSTANCE = new AgentIndex();
+
+    /**
+     * Period in ms after which the index is reloaded
+     */
+    private final long refreshPeriod = ManagerConfig.getLong("agentIndex.refreshPeriod", 60000L);
+
+    /**
+     * Minimum delay in ms between two reloads triggered by a miss
+     */
+    private final long missRefreshDelay = ManagerConfig.getLong("agentIndex.missRefreshDelay", 1000L);
+
+    /**
+     * Agents by name
+     */
+    private volatile Map<String, PaasAgentVO> agentsByName = Collections.emptyMap();
+
+    /**
+     * Agents by API url
+     */
+    private volatile Map<String, PaasAgentVO> agentsByApiUrl = Collections.emptyMap();
+
+    /**
+     * IaaS computes by agent id, cleared on reload
+     */
+    private final ConcurrentMap<String, IaasComputeVO> computesByAgentId = new ConcurrentHashMap<String, IaasComputeVO>();
+
+    /**
+     * Time of the last reload
+     */
+    private volatile long lastRefresh = 0;
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private AgentIndex() {
+    }
+
+    /**
+     * @return the shared index
+     */
+    static AgentIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find an agent by name
+     * @param srAgentEjb SR facade agent, used to reload the index
+     * @param paasAgentName Name of the PaaS Agent
+     * @return the agent or null if it doesn't exist
+     */
+    PaasAgentVO findAgent(ISrPaasAgentFacade srAgentEjb, String paasAgentName) {
+        long refreshTime = lastRefresh;
+        if (System.currentTimeMillis() - refreshTime > refreshPeriod) {
+            refresh(srAgentEjb, refreshTime);
+        }
+        PaasAgentVO agent = agentsByName.get(paasAgentName);
+        if (agent == null) {
+            refreshTime = lastRefresh;
+            if (System.currentTimeMillis() - refreshTime > missRefreshDelay) {
+                refresh(srAgentEjb, refreshTime);
+                agent = agentsByName.get(paasAgentName);
+            }
+        }
+        return agent;
+    }
+
+    /**
+     * Find an agent by API url. Unlike {@link #findAgent(ISrPaasAgentFacade, String)}, a miss doesn't reload
+     * the index, so that unknown urls don't cause reloads.
+     * @param srAgentEjb SR facade agent, used to reload the index
+     * @param apiUrl Api URL of the Agent
+     * @return the agent or null if it isn't known
+     */
+    PaasAgentVO findAgentByApiUrl(ISrPaasAgentFacade srAgentEjb, String apiUrl) {
+        long refreshTime = lastRefresh;
+        if (System.currentTimeMillis() - refreshTime > refreshPeriod) {
+            refresh(srAgentEjb, refreshTime);
+        }
+        return agentsByApiUrl.get(apiUrl);
+    }
+
+    /**
+     * Find the IaaS compute hosting an agent
+     * @param srPaasAgentIaasComputeLink SR facade agent - iaasCompute link
+     * @param agent the agent
+     * @return the compute or null if the agent isn't linked to any
+     */
+    IaasComputeVO findIaasCompute(ISrPaasAgentIaasComputeLink srPaasAgentIaasComputeLink, PaasAgentVO agent) {
+        IaasComputeVO iaasCompute = computesByAgentId.get(agent.getId());
+        if (iaasCompute == null) {
+            iaasCompute = srPaasAgentIaasComputeLink.findIaasComputeByPaasAgent(agent.getId());
+            if (iaasCompute != null) {
+                computesByAgentId.put(agent.getId(), iaasCompute);
+            }
+        }
+        return iaasCompute;
+    }
+
+    /**
+     * @param srAgentEjb SR facade agent, used to reload the index
+     * @return all the agents
+     */
+    Collection<PaasAgentVO> getAgents(ISrPaasAgentFacade srAgentEjb) {
+        long refreshTime = lastRefresh;
+        if (System.currentTimeMillis() - refreshTime > refreshPeriod) {
+            refresh(srAgentEjb, refreshTime);
+        }
+        return agentsByName.values();
+    }
+
+    /**
+     * Reload the index, unless it has been reloaded by another thread meanwhile
+     * @param srAgentEjb SR facade agent
+     * @param seenRefresh time of the reload seen by the caller
+     */
+    private synchronized void refresh(ISrPaasAgentFacade srAgentEjb, long seenRefresh) {
+        if (lastRefresh != seenRefresh) {
+            return;
+        }
+        List<PaasAgentVO> paasAgentVOList = srAgentEjb.findAgents();
+        Map<String, PaasAgentVO> index = new HashMap<String, PaasAgentVO>(paasAgentVOList.size() * 2);
+        Map<String, PaasAgentVO> indexByApiUrl = new HashMap<String, PaasAgentVO>(paasAgentVOList.size() * 2);
+        for (PaasAgentVO agent : paasAgentVOList) {
+            index.put(agent.getName(), agent);
+            indexByApiUrl.put(agent.getApiUrl(), agent);
+        }
+
+        // close the connections to the removed agents
+        for (PaasAgentVO agent : agentsByName.values()) {
+            PaasAgentVO current = index.get(agent.getName());
+            if (current == null || !current.getApiUrl().equals(agent.getApiUrl())) {
+                logger.debug("Agent '" + agent.getName() + "' removed or moved");
+                AgentTransport.getInstance().release(agent.getApiUrl());
+            }
+        }
+
+        agentsByName = Collections.unmodifiableMap(index);
+        agentsByApiUrl = Collections.unmodifiableMap(indexByApiUrl);
+        computesByAgentId.clear();
+        lastRefresh = System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Round trip times and errors of the requests sent to an agent.
+ */
+final class AgentMetrics implements AgentMetricsMBean {
+
+    /**
+     * Api URL of the agent
+     */
+    private final String apiUrl;
+
+    /**
+     * Round trip times in microseconds
+     */
+    private final Histogram roundTrips = new Histogram("us");
+
+    /**
+     * Number of failed requests
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param apiUrl Api URL of the agent
+     */
+    AgentMetrics(String apiUrl) {
+        this.apiUrl = apiUrl;
+    }
+
+    /**
+     * @param nanos round trip time in ns
+     * @param failed true if the request failed
+     */
+    void record(long nanos, boolean failed) {
+        roundTrips.record(nanos / 1000);
+        if (failed) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRequests() {
+        return roundTrips.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getErrorRate() {
+        long requests = roundTrips.getCount();
+        return requests == 0 ? 0 : (double) errors.get() / requests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getRoundTripMean() {
+        return roundTrips.getMean();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRoundTripP50() {
+        return roundTrips.getP50();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRoundTripP99() {
+        return roundTrips.getP99();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRoundTripMax() {
+        return roundTrips.getMax();
+    }
+}
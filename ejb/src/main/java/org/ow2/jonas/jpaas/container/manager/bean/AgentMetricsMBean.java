@@ -0,0 +1,65 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Requests sent to an agent, seen through JMX.
+ */
+public interface AgentMetricsMBean {
+
+    /**
+     * @return Api URL of the agent
+     */
+    String getApiUrl();
+
+    /**
+     * @return number of requests
+     */
+    long getRequests();
+
+    /**
+     * @return number of failed requests
+     */
+    long getErrors();
+
+    /**
+     * @return rate of failed requests, between 0 and 1
+     */
+    double getErrorRate();
+
+    /**
+     * @return mean round trip time in microseconds
+     */
+    double getRoundTripMean();
+
+    /**
+     * @return median round trip time in microseconds
+     */
+    long getRoundTripP50();
+
+    /**
+     * @return 99th percentile of the round trip time in microseconds
+     */
+    long getRoundTripP99();
+
+    /**
+     * @return greatest round trip time in microseconds
+     */
+    long getRoundTripMax();
+}
@@ -0,0 +1,400 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerOperation;
+import org.ow2.jonas.jpaas.container.manager.api.OperationState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An operation on a container, split in steps separated by agent tasks.
+ * Steps are run by the {@link OperationExecutor}, either on the calling thread
+ * or asynchronously when the task of the previous step ends.
+ */
+abstract class AgentOperation implements ContainerOperation {
+
+    /**
+     * Name of the operation
+     */
+    private final String name;
+
+    /**
+     * Name of the container
+     */
+    private final String containerName;
+
+    /**
+     * Current state
+     */
+    private volatile OperationState state = OperationState.PENDING;
+
+    /**
+     * Api URL of the agent running the tasks
+     */
+    private volatile String apiUrl;
+
+    /**
+     * True once the result of the operation has been read back from the agent
+     */
+    private volatile boolean verified = false;
+
+    /**
+     * Released when the operation is over
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Error of a failed operation
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Callbacks to run when the operation is over
+     */
+    private final List<Runnable> callbacks = new ArrayList<Runnable>();
+
+    /**
+     * True while a step or its agent task is running
+     */
+    private boolean working = false;
+
+    /**
+     * Callbacks to run when the operation is over and nothing of it runs anymore
+     */
+    private final List<Runnable> settledCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * Latencies of the operations of the same name
+     */
+    private final ManagerMetrics.OperationMetrics metrics;
+
+    /**
+     * Creation time in ns
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Time in ns at which the current state was entered
+     */
+    private long stateTime = startTime;
+
+    /**
+     * @param name Name of the operation
+     * @param containerName Name of the container
+     */
+    AgentOperation(String name, String containerName) {
+        this.name = name;
+        this.containerName = containerName;
+        this.metrics = ManagerMetrics.getInstance().getOperation(name);
+        ManagerMetrics.getInstance().operationStarted();
+    }
+
+    /**
+     * Run the next step of the operation
+     * @param bean the bean instance running the step in its transaction, never kept by the operation
+     * @return the agent task to wait for before the next step, or null when the operation is over
+     * @throws ContainerManagerBeanException if the step fails
+     */
+    abstract Task step(ContainerManagerBean bean) throws ContainerManagerBeanException;
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getContainerName() {
+        return containerName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public OperationState getState() {
+        return state;
+    }
+
+    /**
+     * @param state the new state
+     */
+    void setState(OperationState state) {
+        synchronized (this) {
+            if (!isDone() && this.state != state) {
+                leaveState(System.nanoTime());
+                this.state = state;
+            }
+        }
+    }
+
+    /**
+     * Record the time spent in the current state
+     * @param now the current time in ns
+     */
+    private void leaveState(long now) {
+        metrics.recordPhase(state, now - stateTime);
+        stateTime = now;
+    }
+
+    /**
+     * @return the arguments of the operation other than its container, empty by default
+     */
+    String getArguments() {
+        return "";
+    }
+
+    /**
+     * @return the key of the operation: two operations with the same key do the same thing
+     */
+    String getKey() {
+        return name + "(" + containerName + ")" + getArguments();
+    }
+
+    /**
+     * End this operation with the result of another one doing the same thing
+     * @param leader the operation actually run
+     */
+    void follow(final AgentOperation leader) {
+        leader.whenDone(new Runnable() {
+            public void run() {
+                Throwable t = leader.getFailure();
+                if (t == null) {
+                    // VERIFIED or COMPLETED, as the leader
+                    finish(null, leader.getState());
+                } else {
+                    fail(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Api URL of the agent running the tasks
+     */
+    String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * @param apiUrl Api URL of the agent running the tasks
+     */
+    void setApiUrl(String apiUrl) {
+        this.apiUrl = apiUrl;
+    }
+
+    /**
+     * Record that the result of the operation has been read back from the agent
+     */
+    void verified() {
+        verified = true;
+    }
+
+    /**
+     * Mark the operation as successful, {@link OperationState#VERIFIED} if its result has been read back from
+     * the agent, {@link OperationState#COMPLETED} otherwise
+     * @return false if the operation was already over
+     */
+    boolean complete() {
+        return finish(null, verified ? OperationState.VERIFIED : OperationState.COMPLETED);
+    }
+
+    /**
+     * Mark the operation as failed
+     * @param t the error
+     * @return false if the operation was already over
+     */
+    boolean fail(Throwable t) {
+        return finish(t, OperationState.FAILED);
+    }
+
+    /**
+     * @param t the error or null
+     * @param endState the final state
+     * @return false if the operation was already over
+     */
+    private boolean finish(Throwable t, OperationState endState) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            long now = System.nanoTime();
+            leaveState(now);
+            metrics.recordDuration(now - startTime);
+            failure = t;
+            state = endState;
+            done.countDown();
+            toRun = new ArrayList<Runnable>(callbacks);
+            callbacks.clear();
+            if (!working) {
+                toRun.addAll(settledCallbacks);
+                settledCallbacks.clear();
+            }
+        }
+        ManagerMetrics.getInstance().operationEnded(t != null);
+        for (Runnable callback : toRun) {
+            callback.run();
+        }
+        return true;
+    }
+
+    /**
+     * Run a callback when the operation is over, or immediately if it is already over
+     * @param callback the callback
+     */
+    void whenDone(Runnable callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Run a callback when the operation is over and its last step or agent task has ended,
+     * or immediately if it is already the case. A cancelled operation is over before that.
+     * @param callback the callback
+     */
+    void whenSettled(Runnable callback) {
+        synchronized (this) {
+            if (!isDone() || working) {
+                settledCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Mark the start of a step, which lasts until its agent task ends
+     * @return false if the operation is over, cancelled for instance, and no step must be run
+     */
+    synchronized boolean startWork() {
+        if (isDone()) {
+            return false;
+        }
+        working = true;
+        return true;
+    }
+
+    /**
+     * Mark the end of a step or of its agent task
+     */
+    void endWork() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            working = false;
+            if (!isDone()) {
+                return;
+            }
+            toRun = new ArrayList<Runnable>(settledCallbacks);
+            settledCallbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return the error of a failed or cancelled operation, null otherwise
+     */
+    Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Cancel the operation: it is over at once, but its running step or agent task is not interrupted,
+     * only the next steps are not run. See {@link #whenSettled(Runnable)}.
+     * @param mayInterruptIfRunning ignored
+     * @return false if the operation was already over
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(new CancellationException("Operation '" + name + "' on container '" + containerName
+                + "' cancelled"), OperationState.CANCELLED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isCancelled() {
+        return state == OperationState.CANCELLED;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Operation '" + name + "' on container '" + containerName
+                    + "' still running");
+        }
+        return result();
+    }
+
+    /**
+     * @return the result of an ended operation
+     */
+    private Void result() throws ExecutionException {
+        if (isCancelled()) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure.getMessage(), failure);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return name + "(" + containerName + ")[" + state + "]";
+    }
+}
@@ -0,0 +1,544 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.management.ObjectName;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead in front of the agents: limits the number of requests sent at the same
+ * time to an agent, and the number of tasks running on it.
+ * When an agent is saturated the callers wait in one queue per caller (a container),
+ * and the queues are served in round robin, so a caller sending many requests
+ * does not delay the others. Each agent has its own limits, a busy agent does not
+ * slow down the others.
+ * The caller of the current thread is set with {@link #setCaller(String)}.
+ */
+final class AgentScheduler {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(AgentScheduler.class);
+
+    /**
+     * Caller of the task polling loops, not limited: they send a single request at a time
+     */
+    static final String POLLER = "#poller";
+
+    /**
+     * Shared instance
+     */
+    private static final AgentScheduler INSTANCE = new AgentScheduler();
+
+    /**
+     * Caller of the current thread
+     */
+    private static final ThreadLocal<String> CALLER = new ThreadLocal<String>();
+
+    /**
+     * Maximum number of requests sent at the same time to an agent
+     */
+    private final int maxRequests = Math.max(1, ManagerConfig.getInt("scheduler.maxRequestsPerAgent", 16));
+
+    /**
+     * Maximum number of tasks running at the same time on an agent
+     */
+    private final int maxTasks = Math.max(1, ManagerConfig.getInt("scheduler.maxTasksPerAgent", 32));
+
+    /**
+     * Maximum time in ms waited for a request or a task to be admitted
+     */
+    private final long maxWait = ManagerConfig.getLong("scheduler.maxWait", 60000L);
+
+    /**
+     * Gates by agent API url
+     */
+    private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<String, Gate>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private AgentScheduler() {
+    }
+
+    /**
+     * @return the shared scheduler
+     */
+    static AgentScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param caller the caller of the requests sent by the current thread, null for none
+     * @return the previous caller
+     */
+    static String setCaller(String caller) {
+        String previous = CALLER.get();
+        if (caller == null) {
+            CALLER.remove();
+        } else {
+            CALLER.set(caller);
+        }
+        return previous;
+    }
+
+    /**
+     * @return the caller of the current thread, null for none
+     */
+    static String getCurrentCaller() {
+        return CALLER.get();
+    }
+
+    /**
+     * Wait until a request can be sent to an agent
+     * @param apiUrl Api URL of the agent
+     * @throws ContainerManagerBeanException if the agent stays saturated
+     */
+    void acquireRequest(String apiUrl) throws ContainerManagerBeanException {
+        String caller = getCaller();
+        if (!POLLER.equals(caller)) {
+            getGate(apiUrl).requests.acquire(caller, apiUrl);
+        }
+    }
+
+    /**
+     * A request is over
+     * @param apiUrl Api URL of the agent
+     */
+    void releaseRequest(String apiUrl) {
+        if (!POLLER.equals(getCaller())) {
+            Gate gate = gates.get(apiUrl);
+            if (gate != null) {
+                gate.requests.release();
+            }
+        }
+    }
+
+    /**
+     * Wait until a task can be submitted to an agent
+     * @param apiUrl Api URL of the agent
+     * @throws ContainerManagerBeanException if the agent stays saturated
+     */
+    void acquireTask(String apiUrl) throws ContainerManagerBeanException {
+        getGate(apiUrl).tasks.acquire(getCaller(), apiUrl);
+    }
+
+    /**
+     * A task is over, or the submission did not start any task
+     * @param apiUrl Api URL of the agent
+     */
+    void releaseTask(String apiUrl) {
+        Gate gate = gates.get(apiUrl);
+        if (gate != null) {
+            gate.tasks.release();
+        }
+    }
+
+    /**
+     * @param apiUrl Api URL of the agent
+     * @return true if a new request or task would have to wait
+     */
+    boolean isSaturated(String apiUrl) {
+        Gate gate = gates.get(apiUrl);
+        return gate != null && (gate.requests.isSaturated() || gate.tasks.isSaturated());
+    }
+
+    /**
+     * Run an action once the agent is not saturated anymore, or now if it is not saturated.
+     * It is used to park the asynchronous operations instead of blocking a thread.
+     * @param apiUrl Api URL of the agent
+     * @param action the action
+     */
+    void whenAvailable(String apiUrl, Runnable action) {
+        Gate gate = getGate(apiUrl);
+        synchronized (gate) {
+            if (gate.requests.isSaturated() || gate.tasks.isSaturated()) {
+                gate.parked.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Forget an agent, e.g. when it is removed
+     * @param apiUrl Api URL of the agent
+     */
+    void release(String apiUrl) {
+        Gate gate = gates.remove(apiUrl);
+        if (gate != null) {
+            ManagerMetrics.getInstance().unregister("type=AgentGate,name=" + ObjectName.quote(apiUrl));
+            gate.close();
+        }
+    }
+
+    /**
+     * @return the caller of the current thread, empty when unknown
+     */
+    private static String getCaller() {
+        String caller = CALLER.get();
+        return caller == null ? "" : caller;
+    }
+
+    /**
+     * @param apiUrl Api URL of the agent
+     * @return the gate of the agent
+     */
+    private Gate getGate(String apiUrl) {
+        Gate gate = gates.get(apiUrl);
+        if (gate == null) {
+            Gate newGate = new Gate(apiUrl);
+            gate = gates.putIfAbsent(apiUrl, newGate);
+            if (gate == null) {
+                gate = newGate;
+                ManagerMetrics.getInstance().register("type=AgentGate,name=" + ObjectName.quote(apiUrl), gate);
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Limits of an agent
+     */
+    private final class Gate implements AgentGateMBean {
+
+        /**
+         * Api URL of the agent
+         */
+        private final String apiUrl;
+
+        /**
+         * Requests being sent
+         */
+        private final FairPermits requests = new FairPermits("request", maxRequests);
+
+        /**
+         * Tasks running
+         */
+        private final FairPermits tasks = new FairPermits("task", maxTasks);
+
+        /**
+         * Asynchronous actions waiting for the agent, guarded by the gate
+         */
+        private final List<Runnable> parked = new LinkedList<Runnable>();
+
+        /**
+         * Callers refused after waiting too long
+         */
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @param apiUrl Api URL of the agent
+         */
+        Gate(String apiUrl) {
+            this.apiUrl = apiUrl;
+        }
+
+        /**
+         * Refuse the threads waiting for the gate and the next ones, and run the parked actions
+         */
+        void close() {
+            requests.close();
+            tasks.close();
+            wakeUpParked();
+        }
+
+        /**
+         * Run the parked actions
+         */
+        void wakeUpParked() {
+            List<Runnable> toRun;
+            synchronized (this) {
+                if (parked.isEmpty()) {
+                    return;
+                }
+                toRun = new ArrayList<Runnable>(parked);
+                parked.clear();
+            }
+            for (Runnable action : toRun) {
+                action.run();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getApiUrl() {
+            return apiUrl;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getInFlightRequests() {
+            return requests.getUsed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getQueuedRequests() {
+            return requests.getQueued();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getMaxQueuedRequests() {
+            return requests.getMaxQueued();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getInFlightTasks() {
+            return tasks.getUsed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getQueuedTasks() {
+            return tasks.getQueued();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getMaxQueuedTasks() {
+            return tasks.getMaxQueued();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * Permits handed out in round robin between the callers
+         */
+        private final class FairPermits {
+
+            /**
+             * What the permits are for, used in the messages
+             */
+            private final String kind;
+
+            /**
+             * Number of permits
+             */
+            private final int max;
+
+            /**
+             * Permits in use
+             */
+            private int used = 0;
+
+            /**
+             * Waiting threads by caller, in round robin order
+             */
+            private final Map<String, LinkedList<Waiter>> queues = new LinkedHashMap<String, LinkedList<Waiter>>();
+
+            /**
+             * Number of waiting threads
+             */
+            private int queued = 0;
+
+            /**
+             * Greatest number of waiting threads
+             */
+            private int maxQueued = 0;
+
+            /**
+             * True once the agent is released: the waiting threads and the next ones are refused
+             */
+            private boolean closed = false;
+
+            /**
+             * @param kind What the permits are for
+             * @param max Number of permits
+             */
+            FairPermits(String kind, int max) {
+                this.kind = kind;
+                this.max = max;
+            }
+
+            /**
+             * Take a permit, waiting for it if needed
+             * @param caller the caller
+             * @param apiUrl Api URL of the agent
+             * @throws ContainerManagerBeanException if no permit is given in time
+             */
+            void acquire(String caller, String apiUrl) throws ContainerManagerBeanException {
+                Waiter waiter;
+                synchronized (this) {
+                    if (closed) {
+                        throw released(caller, apiUrl);
+                    }
+                    if (used < max && queued == 0) {
+                        used++;
+                        return;
+                    }
+                    waiter = new Waiter();
+                    LinkedList<Waiter> queue = queues.get(caller);
+                    if (queue == null) {
+                        queue = new LinkedList<Waiter>();
+                        queues.put(caller, queue);
+                    }
+                    queue.add(waiter);
+                    queued++;
+                    maxQueued = Math.max(maxQueued, queued);
+
+                    long deadline = System.currentTimeMillis() + maxWait;
+                    boolean interrupted = false;
+                    while (!waiter.granted && !closed) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0 || interrupted) {
+                            break;
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (waiter.granted) {
+                        return;
+                    }
+                    if (closed) {
+                        throw released(caller, apiUrl);
+                    }
+                    // give up
+                    queue.remove(waiter);
+                    if (queue.isEmpty()) {
+                        queues.remove(caller);
+                    }
+                    queued--;
+                }
+                rejected.incrementAndGet();
+                logger.debug("No " + kind + " slot on agent '" + apiUrl + "' for '" + caller + "'");
+                throw new ContainerManagerBeanException("The JOnAS agent '" + apiUrl + "' is saturated, no " + kind
+                        + " could be sent for '" + caller + "' within " + maxWait + " ms");
+            }
+
+            /**
+             * Refuse the waiting threads and the next ones
+             */
+            synchronized void close() {
+                closed = true;
+                queues.clear();
+                queued = 0;
+                notifyAll();
+            }
+
+            /**
+             * @param caller the caller
+             * @param apiUrl Api URL of the agent
+             * @return the error of a caller refused because the agent is released
+             */
+            private ContainerManagerBeanException released(String caller, String apiUrl) {
+                return new ContainerManagerBeanException("The JOnAS agent '" + apiUrl + "' is released, no " + kind
+                        + " could be sent for '" + caller + "'");
+            }
+
+            /**
+             * Give a permit back, to the next caller in round robin order if any
+             */
+            void release() {
+                synchronized (this) {
+                    Iterator<Map.Entry<String, LinkedList<Waiter>>> it = queues.entrySet().iterator();
+                    if (it.hasNext()) {
+                        Map.Entry<String, LinkedList<Waiter>> first = it.next();
+                        LinkedList<Waiter> queue = first.getValue();
+                        // the permit goes directly to the waiter
+                        queue.poll().granted = true;
+                        queued--;
+                        it.remove();
+                        if (!queue.isEmpty()) {
+                            // the caller goes to the end of the round
+                            queues.put(first.getKey(), queue);
+                        }
+                        notifyAll();
+                    } else if (used > 0) {
+                        used--;
+                    }
+                }
+                wakeUpParked();
+            }
+
+            /**
+             * @return true if a new caller would have to wait
+             */
+            synchronized boolean isSaturated() {
+                return used >= max || queued > 0;
+            }
+
+            /**
+             * @return permits in use
+             */
+            synchronized int getUsed() {
+                return used;
+            }
+
+            /**
+             * @return number of waiting threads
+             */
+            synchronized int getQueued() {
+                return queued;
+            }
+
+            /**
+             * @return greatest number of waiting threads
+             */
+            synchronized int getMaxQueued() {
+                return maxQueued;
+            }
+        }
+    }
+
+    /**
+     * A thread waiting for a permit
+     */
+    private static final class Waiter {
+
+        /**
+         * True once the permit is given
+         */
+        private boolean granted = false;
+    }
+}
@@ -0,0 +1,633 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.client.apache.ApacheHttpClient;
+import com.sun.jersey.client.apache.ApacheHttpClientHandler;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.ws.rs.core.MediaType;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * HTTP transport shared by all the container manager instances.
+ * One Jersey client is kept per agent API url. Each client is backed by its own
+ * keep-alive connection pool, so consecutive requests to the same agent reuse
+ * the same TCP connections instead of creating a new client for each call.
+ */
+public final class AgentTransport {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(AgentTransport.class);
+
+    /**
+     * REST request type
+     */
+    public enum REST_TYPE {
+        PUT,POST,GET,DELETE
+    }
+
+    /**
+     * Http accepted status
+     */
+    private static final int HTTP_STATUS_ACCEPTED = 202;
+
+    /**
+     * Http Ok status
+     */
+    private static final int HTTP_STATUS_OK = 200;
+
+    /**
+     * Http no content status
+     */
+    private static final int HTTP_STATUS_NO_CONTENT = 204;
+
+    /**
+     * First Http server error status
+     */
+    private static final int HTTP_STATUS_SERVER_ERROR = 500;
+
+    /**
+     * Shared instance
+     */
+    private static final AgentTransport INSTANCE = new AgentTransport();
+
+    /**
+     * Maximum number of pooled connections per agent
+     */
+    private final int maxConnectionsPerAgent = ManagerConfig.getInt("transport.maxConnectionsPerAgent", 20);
+
+    /**
+     * Connect timeout in ms
+     */
+    private final int connectTimeout = ManagerConfig.getInt("transport.connectTimeout", 10000);
+
+    /**
+     * Read timeout in ms
+     */
+    private final int readTimeout = ManagerConfig.getInt("transport.readTimeout", 60000);
+
+    /**
+     * Delay in ms after which an unused agent client is closed
+     */
+    private final long idleTimeout = ManagerConfig.getLong("transport.idleTimeout", 300000L);
+
+    /**
+     * Size in bytes of the chunks of the streamed uploads
+     */
+    private final int chunkSize = ManagerConfig.getInt("transport.chunkSize", 64 * 1024);
+
+    /**
+     * Clients by agent API url
+     */
+    private final ConcurrentMap<String, AgentClient> clients = new ConcurrentHashMap<String, AgentClient>();
+
+    /**
+     * Round trips and errors by agent
+     */
+    private final ManagerMetrics metrics = ManagerMetrics.getInstance();
+
+    /**
+     * Admission of the requests and tasks by agent
+     */
+    private final AgentScheduler scheduler = AgentScheduler.getInstance();
+
+    /**
+     * Health of the agents
+     */
+    private final AgentCircuitBreaker breaker = AgentCircuitBreaker.getInstance();
+
+    /**
+     * Time of the last idle clients eviction
+     */
+    private volatile long lastEviction = System.currentTimeMillis();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private AgentTransport() {
+    }
+
+    /**
+     * @return the shared transport
+     */
+    public static AgentTransport getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Send a REST request and get response
+     * @param type the request type
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
+     * @param requestContent XML content of the request
+     * @param responseClass response class
+     * @return ResponseClass response class
+     */
+    public <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type, String apiUrl, String path,
+            String requestContent, java.lang.Class <ResponseClass> responseClass) throws ContainerManagerBeanException {
+        return sendRequestWithReply(type, apiUrl, path, requestContent, responseClass, null);
+    }
+
+    /**
+     * Send a REST request and get a generic response, such as a list
+     * @param type the request type
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
+     * @param requestContent XML content of the request
+     * @param responseType response type
+     * @return ResponseClass response
+     */
+    public <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type, String apiUrl, String path,
+            String requestContent, GenericType<ResponseClass> responseType) throws ContainerManagerBeanException {
+        return sendRequestWithReply(type, apiUrl, path, requestContent, null, responseType);
+    }
+
+    /**
+     * Send a REST request and get response
+     * @param type the request type
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
+     * @param requestContent XML content of the request
+     * @param responseClass response class, or null
+     * @param responseType response type, or null
+     * @return ResponseClass response
+     */
+    private <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type, String apiUrl, String path,
+            String requestContent, java.lang.Class <ResponseClass> responseClass,
+            GenericType<ResponseClass> responseType) throws ContainerManagerBeanException {
+
+        boolean submission = type != REST_TYPE.GET;
+        breaker.checkAvailable(apiUrl);
+        admit(apiUrl, submission);
+        AgentClient agentClient = acquire(apiUrl);
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean answered = false;
+        ResponseClass response = null;
+        try {
+            WebResource webResource = agentClient.getClient().resource(removeRedundantForwardSlash(getUrl(apiUrl, path)));
+
+            WebResource.Builder builder = webResource.type(MediaType.APPLICATION_XML_TYPE)
+                    .accept(MediaType.APPLICATION_XML_TYPE);
+
+            ClientResponse clientResponse;
+            switch (type) {
+                case PUT:
+                    if (requestContent != null) {
+                        clientResponse = builder.put(ClientResponse.class, requestContent);
+                    } else {
+                        clientResponse = builder.put(ClientResponse.class);
+                    }
+                    break;
+                case GET:
+                    clientResponse = builder.get(ClientResponse.class);
+                    break;
+                case POST:
+                    if (requestContent != null) {
+                        clientResponse = builder.post(ClientResponse.class, requestContent);
+                    } else {
+                        clientResponse = builder.post(ClientResponse.class);
+                    }
+                    break;
+                case DELETE:
+                    clientResponse = builder.delete(ClientResponse.class);
+                    break;
+                default://put
+                    if (requestContent != null) {
+                        clientResponse = builder.put(ClientResponse.class, requestContent);
+                    } else {
+                        clientResponse = builder.put(ClientResponse.class);
+                    }
+                    break;
+            }
+
+            answered = clientResponse.getStatus() < HTTP_STATUS_SERVER_ERROR;
+            response = readResponse(clientResponse, responseClass, responseType);
+            failed = false;
+            return response;
+        } catch (ClientHandlerException e) {
+            throw new ContainerManagerBeanException("Cannot reach the JOnAS agent '" + apiUrl + "' - e=" + e, e);
+        } finally {
+            long duration = System.nanoTime() - start;
+            metrics.getAgent(apiUrl).record(duration, failed);
+            breaker.record(apiUrl, duration, !answered, false);
+            agentClient.release();
+            leave(apiUrl, submission, response);
+        }
+    }
+
+    /**
+     * Send a deploy request and get the agent task
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
+     * @param appContent application content
+     * @return Task
+     */
+    public Task sendDeployRequestWithReply(String apiUrl, String path, Object appContent)
+            throws ContainerManagerBeanException {
+
+        breaker.checkAvailable(apiUrl);
+        admit(apiUrl, true);
+        AgentClient agentClient = acquire(apiUrl);
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean answered = false;
+        Task task = null;
+        try {
+            WebResource webResource = agentClient.getClient().resource(removeRedundantForwardSlash(getUrl(apiUrl, path)));
+            WebResource.Builder builder =
+                    webResource.type(MediaType.APPLICATION_OCTET_STREAM).accept(MediaType.APPLICATION_XML);
+
+            ClientResponse clientResponse = builder.post(ClientResponse.class, appContent);
+
+            answered = clientResponse.getStatus() < HTTP_STATUS_SERVER_ERROR;
+            task = readResponse(clientResponse, Task.class, null);
+            failed = false;
+            return task;
+        } catch (ClientHandlerException e) {
+            throw new ContainerManagerBeanException("Cannot reach the JOnAS agent '" + apiUrl + "' - e=" + e, e);
+        } finally {
+            long duration = System.nanoTime() - start;
+            metrics.getAgent(apiUrl).record(duration, failed);
+            breaker.record(apiUrl, duration, !answered, true);
+            agentClient.release();
+            leave(apiUrl, true, task);
+        }
+    }
+
+    /**
+     * Stream a deployable to an agent and get the agent task.
+     * The content is sent with chunked transfer encoding while it is read, so it is never held
+     * entirely in memory. The stream is not closed.
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
+     * @param appContent stream of the deployable
+     * @return Task
+     */
+    public Task sendStreamingDeployRequestWithReply(String apiUrl, String path, InputStream appContent)
+            throws ContainerManagerBeanException {
+
+        breaker.checkAvailable(apiUrl);
+        admit(apiUrl, true);
+        AgentClient agentClient = acquire(apiUrl);
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean answered = false;
+        Task task = null;
+        try {
+            WebResource webResource =
+                    agentClient.getStreamingClient().resource(removeRedundantForwardSlash(getUrl(apiUrl, path)));
+            WebResource.Builder builder =
+                    webResource.type(MediaType.APPLICATION_OCTET_STREAM).accept(MediaType.APPLICATION_XML);
+
+            ClientResponse clientResponse = builder.post(ClientResponse.class, appContent);
+
+            answered = clientResponse.getStatus() < HTTP_STATUS_SERVER_ERROR;
+            task = readResponse(clientResponse, Task.class, null);
+            failed = false;
+            return task;
+        } catch (ClientHandlerException e) {
+            throw new ContainerManagerBeanException("Cannot reach the JOnAS agent '" + apiUrl + "' - e=" + e, e);
+        } finally {
+            long duration = System.nanoTime() - start;
+            metrics.getAgent(apiUrl).record(duration, failed);
+            breaker.record(apiUrl, duration, !answered, true);
+            agentClient.release();
+            leave(apiUrl, true, task);
+        }
+    }
+
+    /**
+     * Close the client of an agent, e.g. when the agent is removed.
+     * @param apiUrl Api URL of the Agent
+     */
+    public void release(String apiUrl) {
+        AgentClient agentClient = clients.remove(apiUrl);
+        if (agentClient != null) {
+            agentClient.close();
+        }
+        metrics.releaseAgent(apiUrl);
+        // the tasks end before the gate holding their slots is removed
+        TaskTracker.getInstance().release(apiUrl);
+        scheduler.release(apiUrl);
+        breaker.release(apiUrl);
+    }
+
+    /**
+     * Wait until the scheduler admits a request on an agent
+     * @param apiUrl Api URL of the Agent
+     * @param submission true if the request may start a task
+     */
+    private void admit(String apiUrl, boolean submission) throws ContainerManagerBeanException {
+        if (submission) {
+            scheduler.acquireTask(apiUrl);
+        }
+        try {
+            scheduler.acquireRequest(apiUrl);
+        } catch (ContainerManagerBeanException e) {
+            if (submission) {
+                scheduler.releaseTask(apiUrl);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tell the scheduler that a request is over. A task still running keeps its slot
+     * until the {@link TaskTracker} sees its end.
+     * @param apiUrl Api URL of the Agent
+     * @param submission true if the request may have started a task
+     * @param response the response entity or null
+     */
+    private void leave(String apiUrl, boolean submission, Object response) {
+        scheduler.releaseRequest(apiUrl);
+        if (submission && !(response instanceof Task && TaskTracker.isRunning((Task) response))) {
+            scheduler.releaseTask(apiUrl);
+        }
+    }
+
+    /**
+     * Check the status of a response and read its entity
+     * @param clientResponse the response
+     * @param responseClass response class, or null
+     * @param responseType response type, or null
+     * @return the entity or null
+     */
+    private <ResponseClass> ResponseClass readResponse(ClientResponse clientResponse,
+            java.lang.Class <ResponseClass> responseClass, GenericType<ResponseClass> responseType)
+            throws ContainerManagerBeanException {
+        try {
+            int status = clientResponse.getStatus();
+
+            if (status != HTTP_STATUS_ACCEPTED && status != HTTP_STATUS_OK && status != HTTP_STATUS_NO_CONTENT) {
+                throw new ContainerManagerBeanException("Error on JOnAS agent request : " + status);
+            }
+
+            ResponseClass r = null;
+
+            if (status != HTTP_STATUS_NO_CONTENT) {
+                if (!clientResponse.getType().equals(MediaType.APPLICATION_XML_TYPE)) {
+                    throw new ContainerManagerBeanException("Error on JOnAS agent response, unexpected type : " +
+                            clientResponse.getType());
+                }
+
+                if (responseType != null)
+                    r = clientResponse.getEntity(responseType);
+                else if (responseClass != null)
+                    r = clientResponse.getEntity(responseClass);
+            }
+            return r;
+        } finally {
+            // give the connection back to the pool
+            clientResponse.close();
+        }
+    }
+
+    /**
+     * Get the client of an agent, creating it if needed
+     * @param apiUrl Api URL of the Agent
+     * @return the client, to be released after use
+     */
+    private AgentClient acquire(String apiUrl) {
+        evictIdleClients();
+        while (true) {
+            AgentClient agentClient = clients.get(apiUrl);
+            if (agentClient == null) {
+                AgentClient newClient = new AgentClient(apiUrl);
+                agentClient = clients.putIfAbsent(apiUrl, newClient);
+                if (agentClient == null) {
+                    agentClient = newClient;
+                } else {
+                    newClient.close();
+                }
+            }
+            if (agentClient.acquire()) {
+                return agentClient;
+            }
+            // client closed meanwhile
+            clients.remove(apiUrl, agentClient);
+        }
+    }
+
+    /**
+     * Release all the agents, see {@link #release(String)}: their clients are closed once their running requests
+     * are done
+     */
+    void shutdown() {
+        for (String apiUrl : new ArrayList<String>(clients.keySet())) {
+            release(apiUrl);
+        }
+    }
+
+    /**
+     * Close the clients which have not been used for a while
+     */
+    private void evictIdleClients() {
+        long now = System.currentTimeMillis();
+        if (now - lastEviction < idleTimeout) {
+            return;
+        }
+        lastEviction = now;
+        Iterator<Map.Entry<String, AgentClient>> it = clients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AgentClient> entry = it.next();
+            if (entry.getValue().closeIfIdle(now - idleTimeout)) {
+                logger.debug("Closing idle client of agent '" + entry.getKey() + "'");
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param agentApi the api url
+     * @param path the path to add
+     * @return the HTTP URL
+     */
+    static String getUrl(final String agentApi, final String path) {
+        return agentApi + "/" + path;
+    }
+
+    /**
+     * Remove redundant forward slash in a String url
+     * @param s a String url
+     * @return The String url without redundant forward slash
+     */
+    static String removeRedundantForwardSlash(String s) {
+        String tmp = s.replaceAll("/+", "/");
+        return tmp.replaceAll(":/", "://");
+    }
+
+    /**
+     * Jersey client of an agent with its connection pool
+     */
+    private final class AgentClient {
+
+        /**
+         * Pooled connections
+         */
+        private final MultiThreadedHttpConnectionManager connectionManager;
+
+        /**
+         * The Jersey client
+         */
+        private final Client client;
+
+        /**
+         * The Jersey client of the streamed uploads, sharing the same connections
+         */
+        private final Client streamingClient;
+
+        /**
+         * Number of requests using the client
+         */
+        private int users = 0;
+
+        /**
+         * True when the client is closed
+         */
+        private boolean closed = false;
+
+        /**
+         * Time of the last use
+         */
+        private long lastUsed = System.currentTimeMillis();
+
+        /**
+         * @param apiUrl Api URL of the Agent
+         */
+        AgentClient(String apiUrl) {
+            connectionManager = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = connectionManager.getParams();
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerAgent);
+            params.setMaxTotalConnections(maxConnectionsPerAgent);
+            params.setConnectionTimeout(connectTimeout);
+            params.setSoTimeout(readTimeout);
+            params.setStaleCheckingEnabled(true);
+
+            ClientConfig config = new DefaultClientConfig();
+            config.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, connectTimeout);
+            config.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, readTimeout);
+            HttpClient httpClient = new HttpClient(connectionManager);
+            client = new ApacheHttpClient(new ApacheHttpClientHandler(httpClient), config);
+
+            // without a chunk size the Apache handler buffers the whole entity before sending it
+            ClientConfig streamingConfig = new DefaultClientConfig();
+            streamingConfig.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, connectTimeout);
+            streamingConfig.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, readTimeout);
+            streamingConfig.getProperties().put(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE, chunkSize);
+            streamingClient = new ApacheHttpClient(new ApacheHttpClientHandler(httpClient), streamingConfig);
+            logger.debug("Client created for agent '" + apiUrl + "'");
+        }
+
+        /**
+         * @return the Jersey client
+         */
+        Client getClient() {
+            return client;
+        }
+
+        /**
+         * @return the Jersey client of the streamed uploads
+         */
+        Client getStreamingClient() {
+            return streamingClient;
+        }
+
+        /**
+         * @return false if the client is already closed
+         */
+        synchronized boolean acquire() {
+            if (closed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        /**
+         * Release the client after a request
+         */
+        synchronized void release() {
+            users--;
+            lastUsed = System.currentTimeMillis();
+            if (closed && users == 0) {
+                destroy();
+            }
+        }
+
+        /**
+         * @param limit time before which the client is considered as idle
+         * @return true if the client was idle and has been closed
+         */
+        synchronized boolean closeIfIdle(long limit) {
+            if (users > 0 || lastUsed > limit) {
+                // only drop the unused connections
+                connectionManager.closeIdleConnections(idleTimeout);
+                return false;
+            }
+            close();
+            return true;
+        }
+
+        /**
+         * Close the client and its connections once the running requests are done
+         */
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (users == 0) {
+                    destroy();
+                }
+            }
+        }
+
+        /**
+         * Destroy the client and its connections
+         */
+        private void destroy() {
+            client.destroy();
+            streamingClient.destroy();
+            connectionManager.shutdown();
+        }
+    }
+}
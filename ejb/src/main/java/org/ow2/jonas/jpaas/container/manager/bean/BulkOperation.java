@@ -0,0 +1,171 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerOperationResult;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs operations on many containers at once.
+ * The operations are grouped by agent: the agents are processed in parallel,
+ * with a limited number of running operations on each agent. The total time
+ * is therefore driven by the most loaded agent instead of the number of containers.
+ */
+final class BulkOperation {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(BulkOperation.class);
+
+    /**
+     * Maximum number of operations running at the same time on an agent
+     */
+    private final int maxConcurrentPerAgent = Math.max(1, ManagerConfig.getInt("bulk.maxConcurrentPerAgent", 4));
+
+    /**
+     * Executor of the operations
+     */
+    private final OperationExecutor operationExecutor;
+
+    /**
+     * Operations in submission order
+     */
+    private final List<AgentOperation> operations = new ArrayList<AgentOperation>();
+
+    /**
+     * Lanes by agent API url
+     */
+    private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+
+    /**
+     * @param operationExecutor Executor of the operations
+     */
+    BulkOperation(OperationExecutor operationExecutor) {
+        this.operationExecutor = operationExecutor;
+    }
+
+    /**
+     * Add an operation
+     * @param operation the operation
+     * @param apiUrl Api URL of the agent of the container, null if unknown
+     */
+    void add(AgentOperation operation, String apiUrl) {
+        String key = apiUrl == null ? "" : apiUrl;
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane();
+            lanes.put(key, lane);
+        }
+        lane.pending.add(operation);
+        operations.add(operation);
+        if (apiUrl != null) {
+            // lets the executor check the agent before the first step
+            operation.setApiUrl(apiUrl);
+        }
+    }
+
+    /**
+     * Run the operations and wait for their end
+     * @return the result of each operation, in submission order
+     */
+    List<ContainerOperationResult> run() {
+        logger.debug("Running " + operations.size() + " operations on " + lanes.size() + " agents");
+        for (Lane lane : lanes.values()) {
+            lane.start();
+        }
+
+        List<ContainerOperationResult> results = new ArrayList<ContainerOperationResult>(operations.size());
+        boolean interrupted = false;
+        for (AgentOperation operation : operations) {
+            String error = null;
+            try {
+                if (interrupted) {
+                    operation.cancel(false);
+                }
+                operation.get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                operation.cancel(false);
+                error = "Interrupted";
+            } catch (CancellationException e) {
+                error = e.getMessage();
+            } catch (ExecutionException e) {
+                error = e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+            }
+            results.add(new ContainerOperationResult(operation.getContainerName(), operation.getName(), error));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Operations of one agent
+     */
+    private final class Lane {
+
+        /**
+         * Operations not yet started
+         */
+        private final LinkedList<AgentOperation> pending = new LinkedList<AgentOperation>();
+
+        /**
+         * Start the first operations
+         */
+        void start() {
+            int count;
+            synchronized (this) {
+                count = Math.min(maxConcurrentPerAgent, pending.size());
+            }
+            for (int i = 0; i < count; i++) {
+                next();
+            }
+        }
+
+        /**
+         * Start the next operation, if any
+         */
+        void next() {
+            AgentOperation operation;
+            synchronized (this) {
+                operation = pending.poll();
+            }
+            if (operation == null) {
+                return;
+            }
+            operation.whenSettled(new Runnable() {
+                public void run() {
+                    next();
+                }
+            });
+            operationExecutor.submit(operation);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tuning of an AJP connector, read from the configuration given to createConnector.
+ * The configuration is read by {@link KeyValueConfiguration}, with the keys:
+ * <ul>
+ *   <li>{@code protocol}: {@code bio} (default), {@code nio} or {@code apr}</li>
+ *   <li>{@code maxThreads}, {@code minSpareThreads}, {@code acceptCount}: sizes of the executor and of the backlog</li>
+ *   <li>{@code sizing}: {@code fixed} (default) or {@code auto} to derive the sizes from the compute</li>
+ *   <li>{@code cpus}: number of CPUs of the compute, used by the automatic sizing</li>
+ *   <li>{@code keepAlive}: {@code true} (default) or {@code false}, {@code keepAliveTimeout} in ms</li>
+ *   <li>{@code compression}: {@code on} (default), {@code off} or {@code force}</li>
+ *   <li>{@code connectionTimeout} in ms, {@code enableLookups}</li>
+ * </ul>
+ * A missing or empty configuration gives the values of the former fixed template. For the configurations
+ * written before these keys, the pairs may also be separated by commas or semicolons, and the invalid lines,
+ * unknown keys and invalid values are ignored with a warning, leaving the default values.
+ */
+final class ConnectorSettings {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(ConnectorSettings.class);
+
+    /**
+     * Protocol handlers by protocol name
+     */
+    private static final Map<String, String> PROTOCOLS = new HashMap<String, String>();
+
+    static {
+        PROTOCOLS.put("bio", "AJP/1.3");
+        PROTOCOLS.put("nio", "org.apache.coyote.ajp.AjpNioProtocol");
+        PROTOCOLS.put("apr", "org.apache.coyote.ajp.AjpAprProtocol");
+    }
+
+    /**
+     * Number of CPUs of a compute when unknown
+     */
+    private static final int defaultCpus = ManagerConfig.getInt("connector.computeCpus", 4);
+
+    /**
+     * Threads by CPU of a compute, shared by the containers of the compute, for the automatic sizing
+     */
+    private static final int threadsPerCpu = ManagerConfig.getInt("connector.threadsPerCpu", 100);
+
+    /**
+     * Minimum number of threads of an automatically sized connector
+     */
+    private static final int MIN_AUTO_THREADS = 25;
+
+    /**
+     * Maximum number of threads of an automatically sized connector
+     */
+    private static final int MAX_AUTO_THREADS = 800;
+
+    /**
+     * Values of the connector template by placeholder
+     */
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * True to derive the sizes from the compute
+     */
+    private boolean autoSizing = false;
+
+    /**
+     * Number of CPUs of the compute
+     */
+    private int cpus = defaultCpus;
+
+    /**
+     * Use {@link #parse(String)}
+     */
+    private ConnectorSettings() {
+        values.put("protocol", PROTOCOLS.get("bio"));
+        values.put("maxThreads", "300");
+        values.put("minSpareThreads", "20");
+        values.put("acceptCount", "1000");
+        values.put("enableLookups", "true");
+        values.put("connectionTimeout", "120000");
+        values.put("maxKeepAliveRequests", "-1");
+        values.put("keepAliveTimeout", "120000");
+        values.put("compression", "on");
+    }
+
+    /**
+     * @param connectorConf Configuration of the Connector, may be null
+     * @return the settings, with the default values for the invalid entries
+     */
+    static ConnectorSettings parse(String connectorConf) {
+        ConnectorSettings settings = new ConnectorSettings();
+        // none of the values holds a comma or a semicolon
+        String conf = connectorConf != null ? connectorConf.replaceAll("[,;]", "\n") : null;
+        for (Map.Entry<String, String> pair : KeyValueConfiguration.parseLenient(conf, "connector").entrySet()) {
+            try {
+                settings.set(pair.getKey(), pair.getValue());
+            } catch (ContainerManagerBeanException e) {
+                logger.warn(e.getMessage() + " ignored, the default value is used");
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * @param key a key of the configuration
+     * @param value its value
+     * @throws ContainerManagerBeanException if the key or the value is invalid
+     */
+    private void set(String key, String value) throws ContainerManagerBeanException {
+        if ("protocol".equals(key)) {
+            String protocol = PROTOCOLS.get(value.toLowerCase());
+            if (protocol == null) {
+                throw invalid(key, value);
+            }
+            values.put(key, protocol);
+        } else if ("sizing".equals(key)) {
+            if (!"auto".equals(value) && !"fixed".equals(value)) {
+                throw invalid(key, value);
+            }
+            autoSizing = "auto".equals(value);
+        } else if ("cpus".equals(key)) {
+            cpus = positive(key, value);
+        } else if ("keepAlive".equals(key)) {
+            values.put("maxKeepAliveRequests", bool(key, value) ? "-1" : "1");
+        } else if ("compression".equals(key)) {
+            if (!"on".equals(value) && !"off".equals(value) && !"force".equals(value)) {
+                throw invalid(key, value);
+            }
+            values.put(key, value);
+        } else if ("enableLookups".equals(key)) {
+            values.put(key, String.valueOf(bool(key, value)));
+        } else if ("maxThreads".equals(key) || "minSpareThreads".equals(key) || "acceptCount".equals(key)
+                || "connectionTimeout".equals(key) || "keepAliveTimeout".equals(key)
+                || "maxKeepAliveRequests".equals(key)) {
+            values.put(key, String.valueOf(positive(key, value)));
+        } else {
+            throw new ContainerManagerBeanException("Unknown connector configuration key '" + key + "'");
+        }
+    }
+
+    /**
+     * @return true if the sizes must be derived from the compute
+     */
+    boolean isAutoSizing() {
+        return autoSizing;
+    }
+
+    /**
+     * Derive the executor and backlog sizes from the capacity of the compute,
+     * shared by all its containers
+     * @param containers number of containers on the compute
+     */
+    void autoSize(int containers) {
+        int maxThreads = cpus * threadsPerCpu / Math.max(1, containers);
+        maxThreads = Math.max(MIN_AUTO_THREADS, Math.min(MAX_AUTO_THREADS, maxThreads));
+        values.put("maxThreads", String.valueOf(maxThreads));
+        values.put("minSpareThreads", String.valueOf(Math.max(5, maxThreads / 10)));
+        values.put("acceptCount", String.valueOf(maxThreads * 2));
+    }
+
+    /**
+     * @param port the AJP port
+     * @param redirectPort the redirect port
+     * @return the values of the connector template
+     */
+    Map<String, String> toTemplateValues(int port, int redirectPort) {
+        Map<String, String> templateValues = new HashMap<String, String>(values);
+        templateValues.put("port", String.valueOf(port));
+        templateValues.put("redirectPort", String.valueOf(redirectPort));
+        return templateValues;
+    }
+
+    /**
+     * @param key a key of the configuration
+     * @param value its value
+     * @return the value as a positive integer, -1 being allowed for the number of keep-alive requests
+     * @throws ContainerManagerBeanException if the value is not valid
+     */
+    private static int positive(String key, String value) throws ContainerManagerBeanException {
+        try {
+            int i = Integer.parseInt(value);
+            if (i > 0 || (i == -1 && "maxKeepAliveRequests".equals(key))) {
+                return i;
+            }
+        } catch (NumberFormatException e) {
+            // invalid below
+        }
+        throw invalid(key, value);
+    }
+
+    /**
+     * @param key a key of the configuration
+     * @param value its value
+     * @return the value as a boolean
+     * @throws ContainerManagerBeanException if the value is not valid
+     */
+    private static boolean bool(String key, String value) throws ContainerManagerBeanException {
+        if (!"true".equals(value) && !"false".equals(value)) {
+            throw invalid(key, value);
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @param key a key of the configuration
+     * @param value its invalid value
+     * @return the error
+     */
+    private static ContainerManagerBeanException invalid(String key, String value) {
+        return new ContainerManagerBeanException("Invalid connector configuration " + key + "=" + value);
+    }
+}
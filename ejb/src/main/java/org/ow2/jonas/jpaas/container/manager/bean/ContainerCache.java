@@ -0,0 +1,253 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.sr.facade.vo.JonasVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasResourceVO;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the containers resolved from the System Representation, by container name.
+ * Each entry holds the id of the container, the name of its server and the agent owning it,
+ * so that an operation on a known container doesn't need any SR lookup before talking to the agent.
+ * The cache is bounded: the least recently used entries are evicted first, and
+ * entries expire after a time to live.
+ */
+final class ContainerCache {
+
+    /**
+     * Shared instance
+     */
+    private static final ContainerCache INSTANCE = new ContainerCache();
+
+    /**
+     * Maximum number of entries
+     */
+    private final int maxSize = ManagerConfig.getInt("containerCache.maxSize", 10000);
+
+    /**
+     * Time to live of an entry in ms
+     */
+    private final long timeToLive = ManagerConfig.getLong("containerCache.timeToLive", 300000L);
+
+    /**
+     * Entries by container name, in access order
+     */
+    private final Map<String, CachedContainer> entries = new LinkedHashMap<String, CachedContainer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedContainer> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Number of hits
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of misses
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of evictions
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private ContainerCache() {
+    }
+
+    /**
+     * @return the shared cache
+     */
+    static ContainerCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @return the cached entry or null
+     */
+    CachedContainer get(String containerName) {
+        CachedContainer entry;
+        synchronized (entries) {
+            entry = entries.get(containerName);
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                entries.remove(containerName);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @param container the container
+     * @param agent the agent of the container, may be null for a Peergreen container
+     * @return the new entry
+     */
+    CachedContainer put(String containerName, PaasResourceVO container, PaasAgentVO agent) {
+        CachedContainer entry = new CachedContainer(container, agent, System.currentTimeMillis() + timeToLive);
+        synchronized (entries) {
+            entries.put(containerName, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Remove a container, e.g. when it is created, removed or its connectors change
+     * @param containerName Name of the container
+     */
+    void invalidate(String containerName) {
+        synchronized (entries) {
+            entries.remove(containerName);
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of evictions
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ContainerCache[size=" + size() + ", hits=" + hits + ", misses=" + misses + ", evictions="
+                + evictions + "]";
+    }
+
+    /**
+     * A resolved container. Only what identifies the container is kept: the SR objects are mutable
+     * and updated by concurrent operations, so they are read again from the SR before any update.
+     */
+    static final class CachedContainer {
+
+        /**
+         * Id of the container
+         */
+        private final String id;
+
+        /**
+         * True for a JOnAS container, false for a Peergreen container
+         */
+        private final boolean jonas;
+
+        /**
+         * Name of the server of a JOnAS container on its agent
+         */
+        private final String serverName;
+
+        /**
+         * The agent of the container
+         */
+        private final PaasAgentVO agent;
+
+        /**
+         * Expiration time
+         */
+        private final long expiration;
+
+        /**
+         * @param container the container
+         * @param agent the agent of the container
+         * @param expiration expiration time
+         */
+        CachedContainer(PaasResourceVO container, PaasAgentVO agent, long expiration) {
+            this.id = container.getId();
+            this.jonas = container instanceof JonasVO;
+            this.serverName = jonas ? ContainerManagerBean.getServerName((JonasVO) container) : null;
+            this.agent = agent;
+            this.expiration = expiration;
+        }
+
+        /**
+         * @return true for a JOnAS container, false for a Peergreen container
+         */
+        boolean isJonasContainer() {
+            return jonas;
+        }
+
+        /**
+         * @return the name of the server of a JOnAS container on its agent, null for a Peergreen container
+         */
+        String getServerName() {
+            return serverName;
+        }
+
+        /**
+         * @return the id of the container
+         */
+        String getId() {
+            return id;
+        }
+
+        /**
+         * @return the agent of the container, may be null
+         */
+        PaasAgentVO getAgent() {
+            return agent;
+        }
+    }
+}
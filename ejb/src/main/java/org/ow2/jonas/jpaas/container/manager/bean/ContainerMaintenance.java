@@ -0,0 +1,86 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Background work of the container manager, called by the {@link ContainerManagerLifecycle} threads
+ * through the local view of the bean so that it runs in a transaction of the container.
+ */
+public interface ContainerMaintenance {
+
+    /**
+     * @return the agents of the SR
+     */
+    Collection<PaasAgentVO> getAgents();
+
+    /**
+     * Bring the state of the containers of an agent in the SR in line with the agent
+     * @param agent the agent
+     * @return number of containers whose state changed
+     */
+    int reconcile(PaasAgentVO agent);
+
+    /**
+     * Create a container for a warm pool
+     * @param containerName Name of the container
+     * @param paasAgentName Name of the PaaS Agent
+     * @param paasConfigurationName Name of the PaasConfiguration
+     * @param pool Name of the pool, recorded with the container in the SR
+     * @param start True to start the container once created
+     * @throws ContainerManagerBeanException if the container cannot be created
+     */
+    void provision(String containerName, String paasAgentName, String paasConfigurationName, String pool,
+            boolean start) throws ContainerManagerBeanException;
+
+    /**
+     * Read the containers of an agent once: the port allocations of its compute are rebuilt from them,
+     * unless they are already known, and its pooled containers are returned
+     * @param agent the agent
+     * @return the pools by name of the containers of the agent waiting in them, as recorded in the SR
+     */
+    Map<String, String> loadContainers(PaasAgentVO agent);
+
+    /**
+     * Run a step of an asynchronous operation on the bean instance serving the call, in its transaction
+     * @param step the step
+     * @return the agent task to wait for before the next step, or null when the operation is over
+     * @throws ContainerManagerBeanException if the step fails
+     */
+    Task runStep(Step step) throws ContainerManagerBeanException;
+
+    /**
+     * A step of an operation, run on a bean instance
+     */
+    interface Step {
+
+        /**
+         * @param bean the bean instance, only used during the step
+         * @return the agent task to wait for before the next step, or null when the operation is over
+         * @throws ContainerManagerBeanException if the step fails
+         */
+        Task run(ContainerManagerBean bean) throws ContainerManagerBeanException;
+    }
+}
@@ -20,8 +20,14 @@ package org.ow2.jonas.jpaas.container.manager.bean;
 
 import org.ow2.jonas.agent.management.api.xml.App;
 import org.ow2.jonas.jpaas.catalog.api.PaasCatalogException;
+import org.ow2.jonas.jpaas.container.manager.api.AgentTaskNotification;
 import org.ow2.jonas.jpaas.container.manager.api.ContainerManager;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerAsync;
 import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerOperation;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerOperationResult;
+import org.ow2.jonas.jpaas.container.manager.api.DeployMode;
+import org.ow2.jonas.jpaas.container.manager.api.OperationState;
 import org.ow2.easybeans.osgi.annotation.OSGiResource;
 import org.ow2.jonas.jpaas.catalog.api.IPaasCatalogFacade;
 import org.ow2.jonas.jpaas.catalog.api.PaasConfiguration;
@@ -33,96 +39,144 @@ import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasPeergreenServerContainerFacade;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourcePaasAgentLink;
 import org.ow2.jonas.jpaas.sr.facade.vo.ConnectorVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.DatasourceVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.JonasVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.PaasResourceVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.PeergreenServerVO;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
-
-import org.ow2.jonas.agent.management.api.task.Status;
+import org.ow2.jonas.jpaas.container.manager.bean.AgentTransport.REST_TYPE;
 import org.ow2.jonas.agent.management.api.xml.Server;
 import org.ow2.jonas.agent.management.api.xml.Task;
 import org.ow2.util.log.Log;
 import org.ow2.util.log.LogFactory;
 
+import javax.annotation.security.RolesAllowed;
 import javax.ejb.Local;
 import javax.ejb.Remote;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
-import javax.ws.rs.core.MediaType;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 @Stateless(mappedName="ContainerManagerBean")
-@Local(ContainerManager.class)
-@Remote(ContainerManager.class)
-public class ContainerManagerBean implements ContainerManager {
+@Local({ContainerManager.class, ContainerManagerAsync.class, ContainerMaintenance.class})
+@Remote({ContainerManager.class, AgentTaskNotification.class})
+public class ContainerManagerBean implements ContainerManager, ContainerManagerAsync, ContainerMaintenance,
+        AgentTaskNotification {
 
     /**
      * The logger
      */
-    private Log logger = LogFactory.getLog(ContainerManagerBean.class);
+    private static Log logger = LogFactory.getLog(ContainerManagerBean.class);
 
     /**
      * The context of the application
      */
-    private static String CONTEXT = "/jonas-api";
+    static final String CONTEXT = "/jonas-api";
 
     /**
-     * Http accepted status
+     * Expected paas type
      */
-    private static final int HTTP_STATUS_ACCEPTED = 202;
+    private static final String PAAS_TYPE = "container";
 
     /**
-     * Http Ok status
+     * Expected paas subtype
      */
-    private static final int HTTP_STATUS_OK = 200;
+    private static final String PAAS_JONAS_SUB_TYPE = "jonas";
 
     /**
-     * Http no content status
+     * Expected paas subtype
      */
-    private static final int HTTP_STATUS_NO_CONTENT = 204;
+    private static final String PAAS_PGSERVER_SUB_TYPE = "peergreen";
 
     /**
-     * Expected paas type
+     * Capability of a container in the SR holding the name of its server on its agent, when it differs from its
+     * name because the container was claimed from a warm pool
      */
-    private static final String PAAS_TYPE = "container";
+    static final String SERVER_NAME = "serverName";
 
     /**
-     * Expected paas subtype
+     * Capability of a container in the SR holding the warm pool it waits in
      */
-    private static final String PAAS_JONAS_SUB_TYPE = "jonas";
+    private static final String WARM_POOL = "warmPool";
 
     /**
-     * Expected paas subtype
+     * Used port of a container in the SR recording its first port
      */
-    private static final String PAAS_PGSERVER_SUB_TYPE = "peergreen";
+    private static final String PORT_BASE = "portBase";
+
+    /**
+     * Used port of a container in the SR recording its number of ports
+     */
+    private static final String PORT_RANGE = "portRange";
 
 
 
     /**
-     * Sleeping period for async operation
+     * Shared transport towards the agents
      */
-    private static final int SLEEPING_PERIOD = 1000;
+    private static final AgentTransport transport = AgentTransport.getInstance();
 
     /**
-     * REST request type
+     * Shared executor of the container operations
      */
-    private enum REST_TYPE {
-        PUT,POST,GET,DELETE
-    }
+    private static final OperationExecutor operationExecutor = OperationExecutor.getInstance();
+
+    /**
+     * Shared index of the agents by name
+     */
+    private static final AgentIndex agentIndex = AgentIndex.getInstance();
+
+    /**
+     * Shared cache of the resolved containers
+     */
+    private static final ContainerCache containerCache = ContainerCache.getInstance();
+
+    /**
+     * Shared templates
+     */
+    private static final TemplateRegistry templates = TemplateRegistry.getInstance();
+
+    /**
+     * Shared cache of the provisioning profiles
+     */
+    private static final ProvisioningProfileCache profiles = ProvisioningProfileCache.getInstance();
+
+    /**
+     * Shared registry of the repositories deployed on the containers
+     */
+    private static final RepositoryRegistry repositories = RepositoryRegistry.getInstance();
+
+    /**
+     * Shared allocator of the ports of the containers
+     */
+    private static final PortAllocator portAllocator = PortAllocator.getInstance();
+
+    /**
+     * Shared pools of pre-provisioned containers
+     */
+    private static final WarmPool warmPool = WarmPool.getInstance();
+
+    /**
+     * True to check the status of the deployed files on the agent, instead of trusting the agent tasks
+     */
+    private static final boolean verifyDeployments = ManagerConfig.getBoolean("deploy.verify", false);
 
 
     /**
@@ -176,6 +230,15 @@ public class ContainerManagerBean implements ContainerManager {
     private ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink;
 
 
+    /**
+     * Runs the steps of the synchronous operations on this instance, in the transaction of the business method
+     */
+    private final OperationExecutor.StepRunner stepRunner = new OperationExecutor.StepRunner() {
+        public Task run(AgentOperation operation) throws ContainerManagerBeanException {
+            return operation.step(ContainerManagerBean.this);
+        }
+    };
+
     /**
      * Constructor
      */
@@ -187,7 +250,7 @@ public class ContainerManagerBean implements ContainerManager {
      * @param containerName Name of the container
      * @param paasAgentName Name of the PaaS Agent
      * @param paasConfigurationName Name of the PaasConfiguration
-     * @param portRange the port range
+     * @param portRange the port range, null for the default one
      * @throws ContainerManagerBeanException
      */
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
@@ -197,50 +260,25 @@ public class ContainerManagerBean implements ContainerManager {
 
         logger.info("Container '" + containerName + "' creation ....");
 
-        // Get the agent
-        PaasAgentVO agent = null;
-        List<PaasAgentVO> paasAgentVOList = srAgentEjb.findAgents();
-        for (PaasAgentVO tmp : paasAgentVOList) {
-            if (tmp.getName().equals(paasAgentName)) {
-                agent = tmp;
-                break;
-            }
-        }
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent '" + paasAgentName + "' !");
-        }
-
-        // Get configuration from catalog
-        PaasConfiguration containerConf = null;
-        try {
-            containerConf = catalogEjb
-                    .getPaasConfiguration(paasConfigurationName);
-        } catch (PaasCatalogException e) {
-            throw new ContainerManagerBeanException("Error to find the PaaS Configuration named " +
-                    paasConfigurationName + ".", e);
-        }
-        if (!containerConf.getType().equals(PAAS_TYPE)) {
-            throw new ContainerManagerBeanException("Invalid paas type : "
-                    + containerConf.getType().equals(PAAS_TYPE) + " - expected : "
-                    + PAAS_TYPE);
-        }
-
-        String subType = containerConf.getSubType();
+        operationExecutor.execute(new CreateContainerOperation(containerName, paasAgentName, paasConfigurationName,
+                portRange), stepRunner);
+    }
 
-        if (!PAAS_JONAS_SUB_TYPE.equals(subType) ||!PAAS_PGSERVER_SUB_TYPE.equals(subType)) {
-            throw new ContainerManagerBeanException("Invalid paas sub type : "
-                    + containerConf.getSubType() + " - expected : "
-                    + PAAS_JONAS_SUB_TYPE + " or " + PAAS_PGSERVER_SUB_TYPE);
-        }
+    /**
+     * Create a new JOnAS container
+     * @param containerName Name of the container
+     * @param paasAgentName Name of the PaaS Agent
+     * @param paasConfigurationName Name of the PaasConfiguration
+     * @param portRange the port range, null for the default one
+     * @return the handle of the operation
+     */
+    public ContainerOperation createContainerAsync(String containerName, String paasAgentName,
+            String paasConfigurationName, Integer portRange) {
 
-        // JOnAS
-        if (PAAS_JONAS_SUB_TYPE.equals(subType)) {
-            createJOnASContainer(containerName, containerConf, agent);
-        } else if (PAAS_PGSERVER_SUB_TYPE.equals(subType)) {
-            // Peergreen
-            createPeergreenServerContainer(containerName, containerConf, agent);
-        }
+        logger.info("Container '" + containerName + "' creation submitted ....");
 
+        return operationExecutor.submit(new CreateContainerOperation(containerName, paasAgentName,
+                paasConfigurationName, portRange));
     }
 
     protected void createPeergreenServerContainer(String containerName, PaasConfiguration containerConf, PaasAgentVO agent) throws ContainerManagerBeanException {
@@ -249,83 +287,6 @@ public class ContainerManagerBean implements ContainerManager {
     }
 
 
-
-    protected void createJOnASContainer(String containerName, PaasConfiguration containerConf, PaasAgentVO agent) throws ContainerManagerBeanException {
-
-        // Create the container in the SR
-        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
-        if (jonasContainer != null) {
-            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' already exist!");
-        }
-        jonasContainer = new JonasVO();
-        jonasContainer.setName(containerName);
-        jonasContainer.setState("Init");
-        jonasContainer.setProfile(containerConf.getName());
-        jonasContainer = srJonasContainerEjb.createJonasContainer(jonasContainer);
-
-        // if the link doesn't exist between agent and jonas, create it
-        boolean alreadyExist = false;
-        List <PaasResourceVO> paasResources = srJonasAgentLinkEjb.findPaasResourcesByAgent(agent.getId());
-        for (PaasResourceVO paasResourceVO : paasResources) {
-            if (paasResourceVO instanceof JonasVO) {
-                JonasVO jonasResourceVO = (JonasVO) paasResourceVO;
-                if (jonasResourceVO.getId().equals(jonasContainer.getId())) {
-                    logger.debug("Link between container '"  + containerName + "' and agent '" + agent.getName() +
-                            "' already exist!");
-                    alreadyExist = true;
-                    break;
-                }
-            }
-        }
-        if (!alreadyExist) {
-            srJonasAgentLinkEjb.addPaasResourceAgentLink(jonasContainer.getId(), agent.getId());
-        }
-
-        //create the link between the PaaS Container and the IaaS Compute
-        IaasComputeVO iaasCompute = srPaasAgentIaasComputeLink.findIaasComputeByPaasAgent(agent.getId());
-        if (iaasCompute != null) {
-            srPaasResourceIaasComputeLink.addPaasResourceIaasComputeLink(jonasContainer.getId(), iaasCompute.getId());
-        }
-
-        // TODO use port range to customize topology file
-
-        // Load the topology file
-        String topology;
-        try {
-            topology = getTopologyFromFile(containerConf.getSpecificConfig());
-        } catch (Exception e) {
-            throw new ContainerManagerBeanException("Error when reading JOnAS topology file '" +
-                    containerConf.getSpecificConfig() + "' for paas conf '" + containerConf.getName() +"' - e=" + e);
-        }
-
-        // Replace the server name
-        topology = topology.replaceAll("\\$\\{serverName\\}", containerName);
-
-        // Create the REST request
-        Task task = sendRequestWithReply(
-                REST_TYPE.PUT,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName),
-                topology,
-                Task.class);
-
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
-
-        // check that the status of the new container is ok
-        Server server = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName),
-                null,
-                Server.class);
-
-        // update state in sr
-        jonasContainer.setState(server.getStatus());
-        srJonasContainerEjb.updateJonasContainer(jonasContainer);
-        logger.info("Container '" + server.getName() + "' created. Status=" + server.getStatus());
-
-    }
-
-
     /**
      * Remove a JOnAS container
      * @param containerName Name of the container
@@ -337,20 +298,7 @@ public class ContainerManagerBean implements ContainerManager {
 
         logger.info("Container '" + containerName + "' deleting ....");
 
-        // get the container from SR
-        JonasVO jonasContainerVO = srJonasContainerEjb.findJonasContainer(containerName);
-
-        // JOnAS container
-        if (jonasContainerVO != null) {
-            removeJOnASContainer(containerName, jonasContainerVO);
-        } else {
-            PeergreenServerVO peergreenServerVO = srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName);
-            if (peergreenServerVO != null) {
-                removePeergreenServerContainer(containerName, peergreenServerVO);
-            } else {
-                throw new ContainerManagerBeanException("The container '" + containerName + "' doesn't exist !");
-            }
-        }
+        operationExecutor.execute(new RemoveContainerOperation(containerName), stepRunner);
     }
 
     protected void removePeergreenServerContainer(String containerName, PeergreenServerVO peergreenServerVO) throws ContainerManagerBeanException {
@@ -363,16 +311,13 @@ public class ContainerManagerBean implements ContainerManager {
         srJonasContainerEjb.updateJonasContainer(jonasContainerVO);
 
         // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainerVO.getId());
-
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
-        }
+        PaasAgentVO agent = getAgent(containerName);
 
         // Create the REST request
         sendRequestWithReply(
                 REST_TYPE.DELETE,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName),
+                agent.getApiUrl(),
+                serverPath(containerName),
                 null,
                 null);
 
@@ -386,78 +331,215 @@ public class ContainerManagerBean implements ContainerManager {
         }
         //delete jonas container in SR
         srJonasContainerEjb.deleteJonasContainer(jonasContainerVO.getId());
+        portAllocator.release(containerName);
 
         logger.info("Container '" + containerName + "' deleted.");
     }
 
-
     /**
-     * Start a JOnAS container
-     * @param containerName Name of the Container
-     * @throws ContainerManagerBeanException
+     * Get the key of the compute of an agent for the port allocation. The allocations of the computes are
+     * loaded at startup by {@link #loadContainers(PaasAgentVO)}: the containers of an agent are only read here
+     * when the agent was added after the startup.
+     * @param agent the agent
+     * @return the key of the compute
      */
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    public void startContainer(String containerName)
-            throws ContainerManagerBeanException {
+    private String loadPorts(PaasAgentVO agent) {
+        String computeKey = getComputeKey(agent);
+        if (!portAllocator.isLoaded(computeKey)) {
+            loadContainers(agent);
+        }
+        return computeKey;
+    }
 
-        logger.info("Container '" + containerName + "' starting ....");
+    /**
+     * @param agent the agent
+     * @return the key of the compute of the agent for the port allocation
+     */
+    private String getComputeKey(PaasAgentVO agent) {
+        IaasComputeVO iaasCompute = agentIndex.findIaasCompute(srPaasAgentIaasComputeLink, agent);
+        return iaasCompute != null ? "compute-" + iaasCompute.getId() : "agent-" + agent.getId();
+    }
 
-        // get the container from SR
-        JonasVO jonasContainerVO = srJonasContainerEjb.findJonasContainer(containerName);
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, String> loadContainers(PaasAgentVO agent) {
+        Map<String, Integer> basesByContainer = new HashMap<String, Integer>();
+        Map<String, List<Integer>> portsByContainer = new HashMap<String, List<Integer>>();
+        Map<String, String> pooled = new HashMap<String, String>();
+        for (PaasResourceVO paasResourceVO : srJonasAgentLinkEjb.findPaasResourcesByAgent(agent.getId())) {
+            if (!(paasResourceVO instanceof JonasVO)) {
+                continue;
+            }
+            List<Integer> ports = new ArrayList<Integer>();
+            Map<String, Integer> usedPorts = paasResourceVO.getUsedPorts();
+            Integer base = usedPorts != null ? usedPorts.get(PORT_BASE) : null;
+            Integer range = usedPorts != null ? usedPorts.get(PORT_RANGE) : null;
+            if (base != null && range != null) {
+                basesByContainer.put(paasResourceVO.getName(), base);
+                for (int port = base; port < base + range; port++) {
+                    ports.add(port);
+                }
+            }
+            ports.addAll(getConnectorPorts((JonasVO) paasResourceVO));
+            portsByContainer.put(paasResourceVO.getName(), ports);
 
-        // JOnAS container
-        if (jonasContainerVO != null) {
-            startJOnASContainer(containerName, jonasContainerVO);
-        } else {
-            PeergreenServerVO peergreenServerVO = srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName);
-            if (peergreenServerVO != null) {
-                startPeergreenServerContainer(containerName, peergreenServerVO);
-            } else {
-                throw new ContainerManagerBeanException("The container '" + containerName + "' doesn't exist !");
+            Map<String, String> capabilities = paasResourceVO.getCapabilities();
+            if (capabilities != null && capabilities.get(WARM_POOL) != null) {
+                pooled.put(paasResourceVO.getName(), capabilities.get(WARM_POOL));
             }
         }
-
+        portAllocator.load(getComputeKey(agent), basesByContainer, portsByContainer);
+        return pooled;
     }
 
-    protected void startPeergreenServerContainer(String containerName, PeergreenServerVO peergreenServerVO) throws ContainerManagerBeanException {
-        //FIXME : implements
+    /**
+     * @param jonasContainer a JOnAS container
+     * @return the ports of its connectors
+     */
+    private static List<Integer> getConnectorPorts(JonasVO jonasContainer) {
+        List<Integer> ports = new ArrayList<Integer>();
+        if (jonasContainer.getConnectorList() != null) {
+            for (ConnectorVO connector : jonasContainer.getConnectorList()) {
+                ports.add(connector.getPort());
+            }
+        }
+        return ports;
     }
 
-    protected void startJOnASContainer(String containerName, JonasVO jonasContainer) throws ContainerManagerBeanException {
+    /**
+     * Claim a container of the warm pool and rename it in the SR. Its server keeps its name on the agent,
+     * which is recorded as its {@link #SERVER_NAME} capability.
+     * @param containerName Name of the Container
+     * @param paasConfigurationName Name of the PaasConfiguration
+     * @param agent the agent of the container
+     * @return the claimed container, or null if the pool is empty
+     * @throws ContainerManagerBeanException if the container already exists
+     */
+    private JonasVO claimPooledContainer(String containerName, String paasConfigurationName, PaasAgentVO agent)
+            throws ContainerManagerBeanException {
+        if (srJonasContainerEjb.findJonasContainer(containerName) != null) {
+            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' already exist!");
+        }
+        String pooledName;
+        while ((pooledName = warmPool.claim(paasConfigurationName, agent.getName())) != null) {
+            JonasVO pooled = srJonasContainerEjb.findJonasContainer(pooledName);
+            Map<String, String> capabilities = pooled != null && pooled.getCapabilities() != null
+                    ? new HashMap<String, String>(pooled.getCapabilities()) : new HashMap<String, String>();
+            if (capabilities.remove(WARM_POOL) == null) {
+                // removed or claimed by another manager meanwhile
+                continue;
+            }
+            capabilities.put(SERVER_NAME, getServerName(pooled));
+            pooled.setCapabilities(capabilities);
+            pooled.setName(containerName);
+            pooled = srJonasContainerEjb.updateJonasContainer(pooled);
+            portAllocator.rename(pooledName, containerName);
+            containerCache.invalidate(pooledName);
+            containerCache.invalidate(containerName);
+            logger.info("Container '" + containerName + "' claimed from the warm pool (server '" + pooledName + "')");
+            return pooled;
+        }
+        return null;
+    }
 
-        jonasContainer.setState("STARTING");
-        srJonasContainerEjb.updateJonasContainer(jonasContainer);
+    /**
+     * Register a new JOnAS container in the SR, with its port range and its links to its agent and to the IaaS
+     * compute of the agent. The registration is undone if one of its steps fails.
+     * @param containerName Name of the Container
+     * @param containerConf the PaasConfiguration of the container
+     * @param agent the agent of the container
+     * @param portBase the first port of the container
+     * @param portRange the number of ports of the container
+     * @param pool the warm pool the container is created for, or null
+     * @return the registered container
+     * @throws ContainerManagerBeanException if the container already exists or cannot be registered
+     */
+    private JonasVO registerJonasContainer(String containerName, PaasConfiguration containerConf, PaasAgentVO agent,
+            int portBase, int portRange, String pool) throws ContainerManagerBeanException {
+        if (srJonasContainerEjb.findJonasContainer(containerName) != null) {
+            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' already exist!");
+        }
+        JonasVO jonasContainer = new JonasVO();
+        jonasContainer.setName(containerName);
+        jonasContainer.setState("Init");
+        jonasContainer.setProfile(containerConf.getName());
+        Map<String, Integer> usedPorts = new HashMap<String, Integer>();
+        usedPorts.put(PORT_BASE, portBase);
+        usedPorts.put(PORT_RANGE, portRange);
+        jonasContainer.setUsedPorts(usedPorts);
+        if (pool != null) {
+            Map<String, String> capabilities = new HashMap<String, String>();
+            capabilities.put(WARM_POOL, pool);
+            jonasContainer.setCapabilities(capabilities);
+        }
+        jonasContainer = srJonasContainerEjb.createJonasContainer(jonasContainer);
+        containerCache.invalidate(containerName);
 
-        // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
+        IaasComputeVO linkedCompute = null;
+        try {
+            // if the link doesn't exist between agent and jonas, create it
+            PaasAgentVO linkedAgent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
+            if (linkedAgent != null && linkedAgent.getId().equals(agent.getId())) {
+                logger.debug("Link between container '"  + containerName + "' and agent '" + agent.getName() +
+                        "' already exist!");
+            } else {
+                srJonasAgentLinkEjb.addPaasResourceAgentLink(jonasContainer.getId(), agent.getId());
+            }
 
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
+            //create the link between the PaaS Container and the IaaS Compute
+            IaasComputeVO iaasCompute = agentIndex.findIaasCompute(srPaasAgentIaasComputeLink, agent);
+            if (iaasCompute != null) {
+                srPaasResourceIaasComputeLink.addPaasResourceIaasComputeLink(jonasContainer.getId(),
+                        iaasCompute.getId());
+                linkedCompute = iaasCompute;
+            }
+            return jonasContainer;
+        } catch (RuntimeException e) {
+            logger.error("Cannot link the JOnAS container '" + containerName + "', undoing its registration", e);
+            try {
+                if (linkedCompute != null) {
+                    srPaasResourceIaasComputeLink.removePaasResourceIaasComputeLink(jonasContainer.getId(),
+                            linkedCompute.getId());
+                }
+                srJonasContainerEjb.deleteJonasContainer(jonasContainer.getId());
+            } catch (RuntimeException e2) {
+                logger.error("Cannot undo the registration of the JOnAS container '" + containerName + "'", e2);
+            }
+            throw new ContainerManagerBeanException("Cannot register the JOnAS container '" + containerName
+                    + "' - e=" + e, e);
         }
+    }
 
-        // Create the REST request
-        Task task = sendRequestWithReply(
-                REST_TYPE.POST,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/action/start"),
-                null,
-                Task.class);
 
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
+    /**
+     * Start a JOnAS container
+     * @param containerName Name of the Container
+     * @throws ContainerManagerBeanException
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void startContainer(String containerName)
+            throws ContainerManagerBeanException {
 
-        // check that the status of the new container is ok
-        Server server = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName),
-                null,
-                Server.class);
+        logger.info("Container '" + containerName + "' starting ....");
 
-        // update state in sr
-        jonasContainer.setState(server.getStatus());
-        srJonasContainerEjb.updateJonasContainer(jonasContainer);
+        operationExecutor.execute(new LifecycleOperation(containerName, true), stepRunner);
+    }
+
+    /**
+     * Start a JOnAS container
+     * @param containerName Name of the Container
+     * @return the handle of the operation
+     */
+    public ContainerOperation startContainerAsync(String containerName) {
+
+        logger.info("Container '" + containerName + "' start submitted ....");
 
-        logger.info("Container '" + server.getName() + "' started. Status=" + server.getStatus());
+        return operationExecutor.submit(new LifecycleOperation(containerName, true));
+    }
 
+    protected void startPeergreenServerContainer(String containerName, PeergreenServerVO peergreenServerVO) throws ContainerManagerBeanException {
+        //FIXME : implements
     }
 
     /**
@@ -471,62 +553,55 @@ public class ContainerManagerBean implements ContainerManager {
 
         logger.info("Container '" + containerName + "' stopping ....");
 
-        // get the container from SR
-        JonasVO jonasContainerVO = srJonasContainerEjb.findJonasContainer(containerName);
-
-        // JOnAS container
-        if (jonasContainerVO != null) {
-            stopJOnASContainer(containerName, jonasContainerVO);
-        } else {
-            PeergreenServerVO peergreenServerVO = srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName);
-            if (peergreenServerVO != null) {
-                stopPeergreenServerContainer(containerName, peergreenServerVO);
-            } else {
-                throw new ContainerManagerBeanException("The container '" + containerName + "' doesn't exist !");
-            }
-        }
-
+        operationExecutor.execute(new LifecycleOperation(containerName, false), stepRunner);
     }
 
-    protected void stopPeergreenServerContainer(String containerName, PeergreenServerVO peergreenServerVO) throws ContainerManagerBeanException {
-
-    }
+    /**
+     * Stop a JOnAS container
+     * @param containerName Name of the container
+     * @return the handle of the operation
+     */
+    public ContainerOperation stopContainerAsync(String containerName) {
 
+        logger.info("Container '" + containerName + "' stop submitted ....");
 
-    protected void stopJOnASContainer(String containerName, JonasVO jonasContainer) throws ContainerManagerBeanException {
+        return operationExecutor.submit(new LifecycleOperation(containerName, false));
+    }
 
-        jonasContainer.setState("STOPPING");
-        srJonasContainerEjb.updateJonasContainer(jonasContainer);
+    /**
+     * Start several JOnAS containers. The containers of different agents are started in parallel.
+     * @param containerNames Names of the containers
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> startContainers(Collection<String> containerNames) {
 
-        // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
+        logger.info("Starting " + containerNames.size() + " containers ....");
 
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
+        BulkOperation bulkOperation = new BulkOperation(operationExecutor);
+        for (String containerName : containerNames) {
+            addToBulk(bulkOperation, new LifecycleOperation(containerName, true));
         }
+        return bulkOperation.run();
+    }
 
-        // Create the REST request
-        Task task = sendRequestWithReply(
-                REST_TYPE.POST,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/action/stop"),
-                null,
-                Task.class);
+    /**
+     * Stop several JOnAS containers. The containers of different agents are stopped in parallel.
+     * @param containerNames Names of the containers
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> stopContainers(Collection<String> containerNames) {
 
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
+        logger.info("Stopping " + containerNames.size() + " containers ....");
 
-        // check that the status of the new container is ok
-        Server server = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName),
-                null,
-                Server.class);
+        BulkOperation bulkOperation = new BulkOperation(operationExecutor);
+        for (String containerName : containerNames) {
+            addToBulk(bulkOperation, new LifecycleOperation(containerName, false));
+        }
+        return bulkOperation.run();
+    }
 
-        // update state in sr
-        jonasContainer.setState(server.getStatus());
-        srJonasContainerEjb.updateJonasContainer(jonasContainer);
+    protected void stopPeergreenServerContainer(String containerName, PeergreenServerVO peergreenServerVO) throws ContainerManagerBeanException {
 
-        logger.info("Container '" + server.getName() + "' stopped. Status=" + server.getStatus());
     }
 
     /**
@@ -537,143 +612,131 @@ public class ContainerManagerBean implements ContainerManager {
      */
     public void deploy(String containerName, URL deployable)
             throws ContainerManagerBeanException {
-        logger.info("Deploying application '" + deployable.toString() + "' on container " + containerName + " ....");
-
-        // get the container from SR
-        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
-        if (jonasContainer == null) {
-            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
-        }
-
-        // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
-
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
-        }
-
-        //Repository operations
-        String repoName = "repo-" + deployable.getAuthority();
-        String repoFileName = repoName + ".xml";
-        //Check if the repository file is already deployed on the container
-        App repo = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + repoFileName),
-                null,
-                App.class);
-        //If the repository file is not present, create the file and deploy it
-        if (repo.getStatus().equals("NOT_DEPLOYED")) {
-            //Use the repository Template
-            String repoContent = null;
-            URL repoTemplateURL = this.getClass().getClassLoader().getResource("repository-template.xml");
-            try {
-                String repoTemplate = convertUrlToString(repoTemplateURL);
-                // Replace the template id and url
-                repoContent = repoTemplate.replaceAll("\\$\\{id\\}", repoName);
-                repoContent = repoContent.replaceAll("\\$\\{url\\}",
-                        deployable.getProtocol() + "://" + deployable.getAuthority());
-            } catch (IOException e) {
-                throw new ContainerManagerBeanException("Cannot get the repository template file !");
-            }
-            //Deploy the repository file
-            Task task = sendDeployRequestWithReply(agent.getApiUrl(), containerName, repoFileName,
-                    repoContent.getBytes());
-            // Wait until async task is completed
-            waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
-            // check that the status of the repository file is DEPLOYED
-            repo = sendRequestWithReply(
-                    REST_TYPE.GET,
-                    getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + repoFileName),
-                    null,
-                    App.class);
-            if (!repo.getStatus().equals("DEPLOYED")) {
-                throw new ContainerManagerBeanException("Error : the repository file " + repoFileName +
-                        " is not deployed correctly!");
-            }
-        }
-
-
-        // Get the application name
-        String stringUrl = deployable.toString();
-        String appName = stringUrl.substring(stringUrl.lastIndexOf('/')+1, stringUrl.length());
-
-        //Create Deployment-Plan
-        String deploymentPlanName = "plan-" + appName;
-        String deploymentPlanFileName = deploymentPlanName + ".xml";
-        //Use the deployment-plan Template
-        String deploymentPlanContent = null;
-        URL deploymentPlanTemplateURL = this.getClass().getClassLoader().getResource("deployment-plan-template.xml");
-        try {
-            String deploymentPlanTemplate = convertUrlToString(deploymentPlanTemplateURL);
-            // Replace the template id and resource
-            deploymentPlanContent = deploymentPlanTemplate.replaceAll("\\$\\{id\\}", deploymentPlanName);
-            deploymentPlanContent = deploymentPlanContent.replaceAll("\\$\\{resource\\}", deployable.getPath());
-            deploymentPlanContent = deploymentPlanContent.replaceAll("\\$\\{repo-id\\}", repoName);
-        } catch (IOException e) {
-            throw new ContainerManagerBeanException("Cannot get the deployment plan template file !");
-        }
-        Task task = sendDeployRequestWithReply(agent.getApiUrl(), containerName, deploymentPlanFileName,
-                deploymentPlanContent.getBytes());
-
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
-
-        // check that the status of the application is DEPLOYED
-        App app = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + deploymentPlanFileName),
-                null,
-                App.class);
-
-        logger.info("Application '" + app.getName() + "' deployed. Status=" + app.getStatus());
+        deploy(containerName, deployable, DeployMode.PLAN);
     }
 
     /**
-     * Undeploy a deployable in a container
+     * Deploy a deployable in a container
      * @param containerName Name of the Container
-     * @param deployable Url of the deployable to undeploy
+     * @param deployable Url of the deployable to deploy
+     * @param mode {@link DeployMode#PLAN} to send a deployment plan, {@link DeployMode#PUSH} to stream the deployable
      * @throws ContainerManagerBeanException
      */
-    public void undeploy(String containerName, URL deployable)
+    public void deploy(String containerName, URL deployable, DeployMode mode)
             throws ContainerManagerBeanException {
-        logger.info("Undeploying application '" + deployable.toString() + "' on container " + containerName + " ....");
+        logger.info("Deploying application '" + deployable.toString() + "' on container " + containerName +
+                " (" + mode + ") ....");
 
-        // Get the container from SR
-        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
+        operationExecutor.execute(newDeployOperation(containerName, deployable, mode), stepRunner);
+    }
 
-        if (jonasContainer == null) {
-            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
-        }
+    /**
+     * Deploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAsync(String containerName, URL deployable) {
+        return deployAsync(containerName, deployable, DeployMode.PLAN);
+    }
 
-        // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
+    /**
+     * Deploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @param mode {@link DeployMode#PLAN} to send a deployment plan, {@link DeployMode#PUSH} to stream the deployable
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAsync(String containerName, URL deployable, DeployMode mode) {
+        logger.info("Deployment of application '" + deployable.toString() + "' on container " + containerName +
+                " (" + mode + ") submitted ....");
 
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
+        return operationExecutor.submit(newDeployOperation(containerName, deployable, mode));
+    }
+
+    /**
+     * Deploy several deployables in a container with a single deployment plan, not atomically
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @throws ContainerManagerBeanException
+     */
+    public void deployAll(String containerName, List<URL> deployables) throws ContainerManagerBeanException {
+        deployAll(containerName, deployables, false);
+    }
+
+    /**
+     * Deploy several deployables in a container with a single deployment plan
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @param atomic true to undo the whole plan if one of the deployables fails
+     * @throws ContainerManagerBeanException
+     */
+    public void deployAll(String containerName, List<URL> deployables, boolean atomic)
+            throws ContainerManagerBeanException {
+        if (deployables.isEmpty()) {
+            return;
         }
+        logger.info("Deploying " + deployables.size() + " applications on container " + containerName +
+                " (atomic=" + atomic + ") ....");
 
-        // Get the application name
-        String stringUrl = deployable.toString();
-        String appName = stringUrl.substring(stringUrl.lastIndexOf('/')+1, stringUrl.length());
+        operationExecutor.execute(new DeployOperation(containerName, deployables, atomic), stepRunner);
+    }
 
-        // Create the REST request
-        Task task = sendRequestWithReply(
-                REST_TYPE.POST,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + appName + "/action/undeploy"),
-                null,
-                Task.class);
+    /**
+     * Deploy several deployables in a container with a single deployment plan
+     * @param containerName Name of the Container
+     * @param deployables Urls of the deployables to deploy
+     * @param atomic true to undo the whole plan if one of the deployables fails
+     * @return the handle of the operation
+     */
+    public ContainerOperation deployAllAsync(String containerName, List<URL> deployables, boolean atomic) {
+        logger.info("Deployment of " + deployables.size() + " applications on container " + containerName +
+                " (atomic=" + atomic + ") submitted ....");
 
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
+        return operationExecutor.submit(new DeployOperation(containerName, deployables, atomic));
+    }
 
-        // check that the status of the application is NOT_DEPLOYED
-        App app = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + appName),
-                null,
-                App.class);
+    /**
+     * Deploy a deployable in several containers. The containers of different agents are deployed in parallel.
+     * @param containerNames Names of the containers
+     * @param deployable Url of the deployable to deploy
+     * @return the result for each container
+     */
+    public List<ContainerOperationResult> deployToContainers(Collection<String> containerNames, URL deployable) {
+        logger.info("Deploying application '" + deployable.toString() + "' on " + containerNames.size() +
+                " containers ....");
+
+        BulkOperation bulkOperation = new BulkOperation(operationExecutor);
+        for (String containerName : containerNames) {
+            addToBulk(bulkOperation, new DeployOperation(containerName, deployable));
+        }
+        return bulkOperation.run();
+    }
+
+    /**
+     * Undeploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to undeploy
+     * @throws ContainerManagerBeanException
+     */
+    public void undeploy(String containerName, URL deployable)
+            throws ContainerManagerBeanException {
+        logger.info("Undeploying application '" + deployable.toString() + "' on container " + containerName + " ....");
+
+        operationExecutor.execute(new UndeployOperation(containerName, getAppName(deployable)), stepRunner);
+    }
+
+    /**
+     * Undeploy a deployable in a container
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to undeploy
+     * @return the handle of the operation
+     */
+    public ContainerOperation undeployAsync(String containerName, URL deployable) {
+        logger.info("Undeployment of application '" + deployable.toString() + "' on container " + containerName +
+                " submitted ....");
 
-        logger.info("Application '" + app.getName() + "' undeployed. Status=" + app.getStatus());
+        return operationExecutor.submit(new UndeployOperation(containerName, getAppName(deployable)));
     }
 
     /**
@@ -686,69 +749,24 @@ public class ContainerManagerBean implements ContainerManager {
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public void createConnector(String containerName, String connectorName,
             String connectorConf) throws ContainerManagerBeanException {
-        // ToDo : use connectorConf. For now, a template is used instead.
-        // ToDo : not use hard-coded port
-        Integer port = 9009;
-        Integer redirectPort = 9043;
-        System.out.println("JPAAS-CONTAINER-MANAGER / createConnector called");
-        // get the container from SR
-        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
-        if (jonasContainer == null) {
-            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
-        }
-
-        //Do nothing if there is already a connector with the same name
-        boolean connectorExists = false;
-        List<ConnectorVO> connectorVOList = jonasContainer.getConnectorList();
-        for (ConnectorVO connector : connectorVOList) {
-            if (connector.getName().equals(connectorName)) {
-                connectorExists = true;
-                break;
-            }
-        }
-        if (!connectorExists) {
-            // Get the agent
-            PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
-
-            if (agent == null) {
-                throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
-            }
+        logger.debug("Connector '" + connectorName + "' creation on container '" + containerName + "'");
 
-            //Use the connector Template
-            String connectorConfiguration = null;
-            URL connectorTemplateURL = this.getClass().getClassLoader().getResource("connector-template.xml");
-            try {
-                String connectorTemplate = convertUrlToString(connectorTemplateURL);
-                // Replace the template ports
-                connectorConfiguration = connectorTemplate.replaceAll("\\$\\{port\\}", port.toString());
-                connectorConfiguration = connectorConfiguration.replaceAll("\\$\\{redirectPort\\}",
-                        redirectPort.toString());
-            } catch (IOException e) {
-                throw new ContainerManagerBeanException("Cannot get the connector template file !");
-            }
-
-
-            // Create the REST request
-            String connectorFileName = connectorName + ".xml";
-
-            Task task = sendDeployRequestWithReply(agent.getApiUrl(), containerName, connectorFileName,
-                    connectorConfiguration.getBytes());
-
-            // Wait until async task is completed
-            waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
-
-            // check that the status of the application is DEPLOYED
-            App app = sendRequestWithReply(
-                    REST_TYPE.GET,
-                    getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + connectorFileName),
-                    null,
-                    App.class);
-
-            srPaaSContainerEjb.addConnector(jonasContainer.getId(), connectorName, port);
+        operationExecutor.execute(new CreateConnectorOperation(containerName, connectorName, connectorConf),
+                stepRunner);
+    }
 
-            logger.info("Connector '" + app.getName() + "' deployed. Status=" + app.getStatus());
-        }
+    /**
+     * Add a connector
+     * @param containerName Name of the Container
+     * @param connectorName Name of the Connector
+     * @param connectorConf Configuration of the Connector
+     * @return the handle of the operation
+     */
+    public ContainerOperation createConnectorAsync(String containerName, String connectorName,
+            String connectorConf) {
+        logger.info("Creation of connector '" + connectorName + "' on container " + containerName + " submitted ....");
 
+        return operationExecutor.submit(new CreateConnectorOperation(containerName, connectorName, connectorConf));
     }
 
     /**
@@ -761,42 +779,9 @@ public class ContainerManagerBean implements ContainerManager {
     public void removeConnector(String containerName, String connectorName)
             throws ContainerManagerBeanException {
         // TODO : Bug with JOnAS : JONAS-934
-        System.out.println("JPAAS-CONTAINER-MANAGER / removeConnector called");
-
-        // Get the container from SR
-        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
+        logger.debug("Connector '" + connectorName + "' removal on container '" + containerName + "'");
 
-        if (jonasContainer == null) {
-            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
-        }
-
-        // Get the agent
-        PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
-
-        if (agent == null) {
-            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
-        }
-
-        // Create the REST request
-        Task task = sendRequestWithReply(
-                REST_TYPE.POST,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + connectorName + ".xml" + "/action/undeploy"),
-                null,
-                Task.class);
-
-        // Wait until async task is completed
-        waitUntilAsyncTaskIsCompleted(task, agent.getApiUrl());
-
-        // check that the status of the application is NOT_DEPLOYED
-        App app = sendRequestWithReply(
-                REST_TYPE.GET,
-                getUrl(agent.getApiUrl(), CONTEXT + "/server/" + containerName + "/app/" + connectorName + ".xml"),
-                null,
-                App.class);
-
-        srPaaSContainerEjb.removeConnector(jonasContainer.getId(), connectorName);
-
-        logger.info("Connector '" + app.getName() + "' undeployed. Status=" + app.getStatus());
+        operationExecutor.execute(new RemoveConnectorOperation(containerName, connectorName), stepRunner);
     }
 
     /**
@@ -809,8 +794,26 @@ public class ContainerManagerBean implements ContainerManager {
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public void createDatasource(String containerName, String datasourceName,
             String datasourceConf) throws ContainerManagerBeanException {
-        // TODO
-        System.out.println("JPAAS-CONTAINER-MANAGER / createDatasource called");
+        logger.info("Datasource '" + datasourceName + "' creating on container " + containerName + " ....");
+
+        operationExecutor.execute(new DatasourceOperation(containerName, datasourceName, datasourceConf, false),
+                stepRunner);
+    }
+
+    /**
+     * Change the configuration of a Datasource, such as its pool sizes, without restarting the container
+     * @param containerName Name of the Container
+     * @param datasourceName Name of the Datasource
+     * @param datasourceConf New configuration of the Datasource
+     * @throws ContainerManagerBeanException
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void updateDatasource(String containerName, String datasourceName,
+            String datasourceConf) throws ContainerManagerBeanException {
+        logger.info("Datasource '" + datasourceName + "' updating on container " + containerName + " ....");
+
+        operationExecutor.execute(new DatasourceOperation(containerName, datasourceName, datasourceConf, true),
+                stepRunner);
     }
 
     /**
@@ -822,192 +825,1258 @@ public class ContainerManagerBean implements ContainerManager {
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public void removeDatasource(String containerName, String datasourceName)
             throws ContainerManagerBeanException {
-        // TODO
-        System.out.println("JPAAS-CONTAINER-MANAGER / removeDatasource called");
+        logger.info("Datasource '" + datasourceName + "' removing from container " + containerName + " ....");
+
+        operationExecutor.execute(new RemoveDatasourceOperation(containerName, datasourceName), stepRunner);
     }
 
     /**
-     * @param agentApi the api url
-     * @param path the path to add
-     * @return the HTTP URL
+     * Notify the change of state of a task of a JOnAS agent
+     * @param apiUrl Api URL of the Agent
+     * @param taskId id of the task
+     * @param status the new status of the task
      */
-    private String getUrl(final String agentApi, final String path) {
-        return agentApi + "/" + path;
+    @RolesAllowed(AgentTaskNotification.AGENT_ROLE)
+    public void taskStateChanged(String apiUrl, long taskId, String status) {
+        if (agentIndex.findAgentByApiUrl(srAgentEjb, apiUrl) == null) {
+            logger.warn("Notification of task " + taskId + " of the unknown agent '" + apiUrl + "' ignored");
+            return;
+        }
+        logger.debug("Task " + taskId + " of agent '" + apiUrl + "' is " + status);
+        TaskTracker.getInstance().taskStateChanged(apiUrl, taskId, status);
     }
 
     /**
-     * @return topology as String
+     * {@inheritDoc}
      */
-    private String getTopologyFromFile(String path) throws Exception {
-
-        File topologyFile;
-        topologyFile = new File(path);
+    public Collection<PaasAgentVO> getAgents() {
+        return agentIndex.getAgents(srAgentEjb);
+    }
 
-        InputStream inputStream;
-        inputStream = new FileInputStream(topologyFile);
+    /**
+     * {@inheritDoc}
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int reconcile(PaasAgentVO agent) {
+        return StateReconciler.getInstance().reconcile(agent, srJonasAgentLinkEjb, srJonasContainerEjb);
+    }
 
-        byte[] bytes;
-        bytes = new byte[inputStream.available()];
-        inputStream.read(bytes);
-        inputStream.close();
+    /**
+     * {@inheritDoc}
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void provision(String containerName, String paasAgentName, String paasConfigurationName, String pool,
+            boolean start) throws ContainerManagerBeanException {
+        operationExecutor.execute(new CreateContainerOperation(containerName, paasAgentName,
+                paasConfigurationName, null, pool), stepRunner);
+        if (start) {
+            operationExecutor.execute(new LifecycleOperation(containerName, true), stepRunner);
+        }
+    }
 
-        return new String(bytes);
+    /**
+     * {@inheritDoc}
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Task runStep(Step step) throws ContainerManagerBeanException {
+        return step.run(this);
     }
 
     /**
      * Send a REST request and get response
-     * @param url request path
+     * @param apiUrl Api URL of the Agent
+     * @param path request path
      * @param requestContent XML content of the request
      * @param responseClass response class
      * @return ResponseClass response class
      */
-    private <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type, String url, String requestContent,
-            java.lang.Class <ResponseClass> responseClass) throws ContainerManagerBeanException {
+    private <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type, String apiUrl, String path,
+            String requestContent, java.lang.Class <ResponseClass> responseClass) throws ContainerManagerBeanException {
+        return transport.sendRequestWithReply(type, apiUrl, path, requestContent, responseClass);
+    }
+
+    /**
+     * Send a REST request and get response
+     * @param apiUrl Api URL of the Agent
+     * @param containerName container Name
+     * @param appFileName name of the application file
+     * @param appContent application content
+     * @return Task
+     */
+    private Task sendDeployRequestWithReply(String apiUrl, String containerName, String appFileName, Object appContent)
+            throws ContainerManagerBeanException {
+        return transport.sendDeployRequestWithReply(apiUrl,
+                serverPath(containerName) + "/app/" + appFileName + "/action/deploy", appContent);
+    }
+
+    /**
+     * Resolve a container and its agent, from the cache or from the SR
+     * @param containerName Name of the container
+     * @return the container or null if it doesn't exist
+     */
+    private ContainerCache.CachedContainer resolveContainer(String containerName) {
+        ContainerCache.CachedContainer container = containerCache.get(containerName);
+        if (container != null) {
+            return container;
+        }
+        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
+        if (jonasContainer != null) {
+            PaasAgentVO agent = srJonasAgentLinkEjb.findAgentByPaasResource(jonasContainer.getId());
+            if (agent == null) {
+                // not cached, the link may be created later
+                return new ContainerCache.CachedContainer(jonasContainer, null, 0);
+            }
+            return containerCache.put(containerName, jonasContainer, agent);
+        }
+        PeergreenServerVO peergreenServerVO = srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName);
+        if (peergreenServerVO != null) {
+            return containerCache.put(containerName, peergreenServerVO, null);
+        }
+        return null;
+    }
+
+    /**
+     * Read a JOnAS container from the SR, never from the cache, before updating it or reading its
+     * connectors and datasources
+     * @param containerName Name of the container
+     * @return the container
+     * @throws ContainerManagerBeanException if the container doesn't exist
+     */
+    private JonasVO getJonasContainer(String containerName) throws ContainerManagerBeanException {
+        JonasVO jonasContainer = srJonasContainerEjb.findJonasContainer(containerName);
+        if (jonasContainer == null) {
+            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
+        }
+        return jonasContainer;
+    }
+
+    /**
+     * Get the agent of a JOnAS container
+     * @param containerName Name of the container
+     * @return the agent
+     * @throws ContainerManagerBeanException if the container or its agent cannot be found
+     */
+    private PaasAgentVO getAgent(String containerName) throws ContainerManagerBeanException {
+        ContainerCache.CachedContainer container = resolveContainer(containerName);
+        if (container == null || !container.isJonasContainer()) {
+            throw new ContainerManagerBeanException("JOnAS container '" + containerName + "' doesn't exist !");
+        }
+        PaasAgentVO agent = container.getAgent();
+
+        if (agent == null) {
+            throw new ContainerManagerBeanException("Unable to get the agent for container '" + containerName + "' !");
+        }
+        return agent;
+    }
+
+    /**
+     * Add an operation to a bulk operation, grouped by the agent of its container.
+     * Operations on unknown containers are kept together, they will report their error when run.
+     * @param bulkOperation the bulk operation
+     * @param operation the operation
+     */
+    private void addToBulk(BulkOperation bulkOperation, AgentOperation operation) {
+        String apiUrl = null;
+        ContainerCache.CachedContainer container = resolveContainer(operation.getContainerName());
+        if (container != null && container.getAgent() != null) {
+            apiUrl = container.getAgent().getApiUrl();
+        }
+        bulkOperation.add(operation, apiUrl);
+    }
+
+    /**
+     * @param containerName Name of the Container
+     * @param deployable Url of the deployable to deploy
+     * @param mode the deployment mode
+     * @return the deployment operation
+     */
+    private AgentOperation newDeployOperation(String containerName, URL deployable, DeployMode mode) {
+        if (mode == DeployMode.PUSH) {
+            return new PushDeployOperation(containerName, deployable);
+        }
+        return new DeployOperation(containerName, deployable);
+    }
+
+    /**
+     * @param containerName Name of a container
+     * @return the path of its server in the API of its agent
+     */
+    private String serverPath(String containerName) {
+        ContainerCache.CachedContainer container = resolveContainer(containerName);
+        return CONTEXT + "/server/" + (container != null && container.isJonasContainer() ? container.getServerName()
+                : containerName);
+    }
+
+    /**
+     * @param jonasContainer a JOnAS container
+     * @return the name of its server on its agent
+     */
+    static String getServerName(JonasVO jonasContainer) {
+        Map<String, String> capabilities = jonasContainer.getCapabilities();
+        String serverName = capabilities != null ? capabilities.get(SERVER_NAME) : null;
+        return serverName != null ? serverName : jonasContainer.getName();
+    }
+
+    /**
+     * @param datasourceName Name of a Datasource
+     * @return the name of its file on the agent
+     */
+    private static String getDatasourceFileName(String datasourceName) {
+        return datasourceName + "-ds.xml";
+    }
+
+    /**
+     * @param deployable Url of a deployable
+     * @return the application name
+     */
+    private static String getAppName(URL deployable) {
+        String stringUrl = deployable.toString();
+        return stringUrl.substring(stringUrl.lastIndexOf('/')+1, stringUrl.length());
+    }
+
+    /**
+     * Creation of a container
+     */
+    private static class CreateContainerOperation extends AgentOperation {
+
+        /**
+         * Name of the PaaS Agent
+         */
+        private final String paasAgentName;
+
+        /**
+         * Name of the PaasConfiguration
+         */
+        private final String paasConfigurationName;
+
+        /**
+         * The port range
+         */
+        private final Integer portRange;
+
+        /**
+         * The warm pool the container is created for, null to claim a container of the warm pool when there is one
+         */
+        private final String pool;
+
+        /**
+         * The created container, null until its creation is submitted
+         */
+        private JonasVO jonasContainer = null;
+
+        /**
+         * @param containerName Name of the container
+         * @param paasAgentName Name of the PaaS Agent
+         * @param paasConfigurationName Name of the PaasConfiguration
+         * @param portRange the port range
+         */
+        CreateContainerOperation(String containerName, String paasAgentName, String paasConfigurationName,
+                Integer portRange) {
+            this(containerName, paasAgentName, paasConfigurationName, portRange, null);
+        }
 
-        Client client = Client.create();
+        /**
+         * @param containerName Name of the container
+         * @param paasAgentName Name of the PaaS Agent
+         * @param paasConfigurationName Name of the PaasConfiguration
+         * @param portRange the port range
+         * @param pool the warm pool the container is created for, null to claim a container of the warm pool
+         * when there is one
+         */
+        CreateContainerOperation(String containerName, String paasAgentName, String paasConfigurationName,
+                Integer portRange, String pool) {
+            super("create", containerName);
+            this.paasAgentName = paasAgentName;
+            this.paasConfigurationName = paasConfigurationName;
+            this.portRange = portRange;
+            this.pool = pool;
+        }
 
-        WebResource webResource = client.resource(removeRedundantForwardSlash(url));
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "[" + paasAgentName + ", " + paasConfigurationName + ", " + portRange + "]";
+        }
 
-        WebResource.Builder builder = webResource.type(MediaType.APPLICATION_XML_TYPE)
-                .accept(MediaType.APPLICATION_XML_TYPE);
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            if (jonasContainer == null) {
+                return submit(bean);
+            }
+            verify(bean);
+            return null;
+        }
+
+        /**
+         * Register the container and ask the agent to create it
+         * @param bean the bean instance running the step, in its transaction
+         * @return the agent task, or null for a Peergreen container
+         */
+        private Task submit(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+
+            // Get the agent
+            PaasAgentVO agent = agentIndex.findAgent(bean.srAgentEjb, paasAgentName);
+            if (agent == null) {
+                throw new ContainerManagerBeanException("Unable to get the agent '" + paasAgentName + "' !");
+            }
+
+            // Get configuration from catalog
+            PaasConfiguration containerConf = null;
+            try {
+                containerConf = profiles.getConfiguration(bean.catalogEjb, paasConfigurationName);
+            } catch (PaasCatalogException e) {
+                throw new ContainerManagerBeanException("Error to find the PaaS Configuration named " +
+                        paasConfigurationName + ".", e);
+            }
+            if (!containerConf.getType().equals(PAAS_TYPE)) {
+                throw new ContainerManagerBeanException("Invalid paas type : "
+                        + containerConf.getType().equals(PAAS_TYPE) + " - expected : "
+                        + PAAS_TYPE);
+            }
 
+            String subType = containerConf.getSubType();
 
-        ClientResponse clientResponse;
-        switch (type) {
-            case PUT:
-                if (requestContent != null) {
-                    clientResponse = builder.put(ClientResponse.class, requestContent);
-                } else {
-                    clientResponse = builder.put(ClientResponse.class);
+            if (!PAAS_JONAS_SUB_TYPE.equals(subType) && !PAAS_PGSERVER_SUB_TYPE.equals(subType)) {
+                throw new ContainerManagerBeanException("Invalid paas sub type : "
+                        + containerConf.getSubType() + " - expected : "
+                        + PAAS_JONAS_SUB_TYPE + " or " + PAAS_PGSERVER_SUB_TYPE);
+            }
+
+            // Peergreen
+            if (PAAS_PGSERVER_SUB_TYPE.equals(subType)) {
+                bean.createPeergreenServerContainer(containerName, containerConf, agent);
+                return null;
+            }
+
+            // A container of the warm pool is ready as soon as it is renamed, it has the default port range
+            if (pool == null && (portRange == null || portRange <= portAllocator.getDefaultRange())
+                    && warmPool.hasPool(paasConfigurationName, agent.getName())) {
+                JonasVO claimed = bean.claimPooledContainer(containerName, paasConfigurationName, agent);
+                if (claimed != null) {
+                    this.jonasContainer = claimed;
+                    setApiUrl(agent.getApiUrl());
+                    setState(OperationState.SR_UPDATED);
+                    return null;
                 }
-                break;
-            case GET:
-                clientResponse = builder.get(ClientResponse.class);
-                break;
-            case POST:
-                if (requestContent != null) {
-                    clientResponse = builder.post(ClientResponse.class, requestContent);
-                } else {
-                    clientResponse = builder.post(ClientResponse.class);
+            }
+
+            // Reserve the ports of the container, then create it in the SR
+            int portBase = portAllocator.reserve(bean.loadPorts(agent), containerName, portRange);
+            try {
+                this.jonasContainer = bean.registerJonasContainer(containerName, containerConf, agent, portBase,
+                        portAllocator.getRange(containerName), pool);
+            } catch (ContainerManagerBeanException e) {
+                portAllocator.release(containerName);
+                throw e;
+            }
+            setState(OperationState.SR_UPDATED);
+
+            // Load the topology file
+            Template topologyTemplate;
+            try {
+                topologyTemplate = profiles.getTopology(containerConf);
+            } catch (Exception e) {
+                throw new ContainerManagerBeanException("Error when reading JOnAS topology file '" +
+                        containerConf.getSpecificConfig() + "' for paas conf '" + containerConf.getName() +"' - e=" + e);
+            }
+
+            // Replace the server name and the first port of the container
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("serverName", containerName);
+            values.put("portBase", String.valueOf(portBase));
+            String topology = topologyTemplate.renderToString(values);
+
+            // Create the REST request
+            setApiUrl(agent.getApiUrl());
+            return bean.sendRequestWithReply(
+                    REST_TYPE.PUT,
+                    agent.getApiUrl(),
+                    bean.serverPath(containerName),
+                    topology,
+                    Task.class);
+        }
+
+        /**
+         * Check the new container and update its state
+         * @param bean the bean instance running the step, in its transaction
+         */
+        private void verify(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            // check that the status of the new container is ok
+            Server server = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(getContainerName()),
+                    null,
+                    Server.class);
+            verified();
+
+            // update state in sr
+            JonasVO jonasContainer = bean.getJonasContainer(getContainerName());
+            jonasContainer.setState(server.getStatus());
+            bean.srJonasContainerEjb.updateJonasContainer(jonasContainer);
+            logger.info("Container '" + server.getName() + "' created. Status=" + server.getStatus());
+        }
+    }
+
+    /**
+     * Removal of a container, run in the lane of the container after its pending operations
+     */
+    private static class RemoveContainerOperation extends AgentOperation {
+
+        /**
+         * @param containerName Name of the container
+         */
+        RemoveContainerOperation(String containerName) {
+            super("remove", containerName);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            // get the container from SR
+            ContainerCache.CachedContainer container = bean.resolveContainer(containerName);
+            if (container == null) {
+                throw new ContainerManagerBeanException("The container '" + containerName + "' doesn't exist !");
+            }
+
+            // JOnAS container
+            if (container.isJonasContainer()) {
+                bean.removeJOnASContainer(containerName, bean.getJonasContainer(containerName));
+            } else {
+                bean.removePeergreenServerContainer(containerName,
+                        bean.srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName));
+            }
+            containerCache.invalidate(containerName);
+            repositories.clear(containerName);
+            return null;
+        }
+    }
+
+    /**
+     * Start or stop of a container
+     */
+    private static class LifecycleOperation extends AgentOperation {
+
+        /**
+         * True to start the container, false to stop it
+         */
+        private final boolean start;
+
+        /**
+         * True once the action is submitted
+         */
+        private boolean submitted = false;
+
+        /**
+         * @param containerName Name of the container
+         * @param start True to start the container, false to stop it
+         */
+        LifecycleOperation(String containerName, boolean start) {
+            super(start ? "start" : "stop", containerName);
+            this.start = start;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            if (!submitted) {
+                // get the container from SR
+                ContainerCache.CachedContainer container = bean.resolveContainer(containerName);
+                if (container == null) {
+                    throw new ContainerManagerBeanException("The container '" + containerName + "' doesn't exist !");
                 }
-                break;
-            case DELETE:
-                clientResponse = builder.delete(ClientResponse.class);
-                break;
-            default://put
-                if (requestContent != null) {
-                    clientResponse = builder.put(ClientResponse.class, requestContent);
-                } else {
-                    clientResponse = builder.put(ClientResponse.class);
+
+                if (!container.isJonasContainer()) {
+                    PeergreenServerVO peergreenServerVO =
+                            bean.srPeergreenServerContainerEjb.findPeergreenServerContainer(containerName);
+                    if (start) {
+                        bean.startPeergreenServerContainer(containerName, peergreenServerVO);
+                    } else {
+                        bean.stopPeergreenServerContainer(containerName, peergreenServerVO);
+                    }
+                    return null;
                 }
-                break;
+
+                // JOnAS container
+                JonasVO jonasContainerVO = bean.getJonasContainer(containerName);
+                jonasContainerVO.setState(start ? "STARTING" : "STOPPING");
+                bean.srJonasContainerEjb.updateJonasContainer(jonasContainerVO);
+                submitted = true;
+                setState(OperationState.SR_UPDATED);
+
+                // Get the agent
+                PaasAgentVO agent = bean.getAgent(containerName);
+                setApiUrl(agent.getApiUrl());
+
+                // Create the REST request
+                return bean.sendRequestWithReply(
+                        REST_TYPE.POST,
+                        agent.getApiUrl(),
+                        bean.serverPath(containerName) + "/action/" + getName(),
+                        null,
+                        Task.class);
+            }
+
+            // check that the status of the container is ok
+            Server server = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(containerName),
+                    null,
+                    Server.class);
+            verified();
+
+            // update state in sr
+            JonasVO jonasContainer = bean.getJonasContainer(containerName);
+            jonasContainer.setState(server.getStatus());
+            bean.srJonasContainerEjb.updateJonasContainer(jonasContainer);
+
+            logger.info("Container '" + server.getName() + "' " + (start ? "started" : "stopped") + ". Status=" +
+                    server.getStatus());
+            return null;
         }
+    }
 
-        int status = clientResponse.getStatus();
+    /**
+     * Deployment of deployables with a single deployment plan
+     */
+    private static class DeployOperation extends AgentOperation {
+
+        /**
+         * Urls of the deployables to deploy
+         */
+        private final List<URL> deployables;
+
+        /**
+         * True if the plan must be deployed atomically
+         */
+        private final boolean atomic;
+
+        /**
+         * Base urls of the repositories of the deployables by repository name
+         */
+        private final Map<String, String> repositoryUrls = new LinkedHashMap<String, String>();
+
+        /**
+         * Repositories still to deploy
+         */
+        private final LinkedList<String> missingRepositories = new LinkedList<String>();
+
+        /**
+         * Name of the deployment plan file
+         */
+        private String deploymentPlanFileName;
+
+        /**
+         * Rendered deployment plan
+         */
+        private byte[] deploymentPlan;
+
+        /**
+         * Next step: 0 to check the repositories, 1 to submit the repositories, 2 to submit the plan,
+         * 3 to check the deployment
+         */
+        private int stage = 0;
+
+        /**
+         * @param containerName Name of the container
+         * @param deployable Url of the deployable to deploy
+         */
+        DeployOperation(String containerName, URL deployable) {
+            this(containerName, Collections.singletonList(deployable), false);
+        }
 
-        if (status != HTTP_STATUS_ACCEPTED && status != HTTP_STATUS_OK && status != HTTP_STATUS_NO_CONTENT) {
-            throw new ContainerManagerBeanException("Error on JOnAS agent request : " + status);
+        /**
+         * @param containerName Name of the container
+         * @param deployables Urls of the deployables to deploy
+         * @param atomic True if the plan must be deployed atomically
+         */
+        DeployOperation(final String containerName, List<URL> deployables, boolean atomic) {
+            super("deploy", containerName);
+            this.deployables = new ArrayList<URL>(deployables);
+            this.atomic = atomic;
+            // one repository per authority
+            for (URL deployable : deployables) {
+                repositoryUrls.put("repo-" + deployable.getAuthority(),
+                        deployable.getProtocol() + "://" + deployable.getAuthority());
+            }
+            whenDone(new Runnable() {
+                public void run() {
+                    if (getFailure() != null) {
+                        // the repositories may be the cause, check them again next time
+                        for (String repoName : repositoryUrls.keySet()) {
+                            repositories.invalidate(containerName, repoName);
+                        }
+                    }
+                }
+            });
         }
 
-        ResponseClass r = null;
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return deployables + (atomic ? " atomic" : "");
+        }
 
-        if (status != HTTP_STATUS_NO_CONTENT) {
-            if (!clientResponse.getType().equals(MediaType.APPLICATION_XML_TYPE)) {
-                throw new ContainerManagerBeanException("Error on JOnAS agent response, unexpected type : " +
-                        clientResponse.getType());
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            final String containerName = getContainerName();
+            switch (stage) {
+                case 0:
+                    // Get the agent
+                    PaasAgentVO agent = bean.getAgent(containerName);
+                    setApiUrl(agent.getApiUrl());
+
+                    //Repository operations
+                    //Check the repositories which are not known to be deployed on the container,
+                    //the deployment plan is rendered meanwhile
+                    //The probes only use the transport, the bean stays on the thread of its transaction
+                    final String appPath = bean.serverPath(containerName) + "/app/";
+                    Map<String, FutureTask<App>> probes = new LinkedHashMap<String, FutureTask<App>>();
+                    for (String repoName : repositoryUrls.keySet()) {
+                        if (!repositories.isDeployed(containerName, repoName)) {
+                            final String repoFileName = repoName + ".xml";
+                            probes.put(repoName, operationExecutor.fork(new Callable<App>() {
+                                public App call() throws ContainerManagerBeanException {
+                                    return transport.sendRequestWithReply(
+                                            REST_TYPE.GET,
+                                            getApiUrl(),
+                                            appPath + repoFileName,
+                                            null,
+                                            App.class);
+                                }
+                            }));
+                        }
+                    }
+                    renderDeploymentPlan();
+                    for (Map.Entry<String, FutureTask<App>> probe : probes.entrySet()) {
+                        App repo = operationExecutor.join(probe.getValue());
+                        //If the repository file is not present, create the file and deploy it
+                        if (repo.getStatus().equals("NOT_DEPLOYED")) {
+                            missingRepositories.add(probe.getKey());
+                        }
+                    }
+                    stage = 1;
+                    return step(bean);
+                case 1:
+                    if (!missingRepositories.isEmpty()) {
+                        return submitRepository(bean, missingRepositories.poll());
+                    }
+                    stage = 2;
+                    return step(bean);
+                case 2:
+                    // the tasks in SUCCESS state mean that the repository files are deployed
+                    if (verifyDeployments) {
+                        for (String repoName : repositoryUrls.keySet()) {
+                            verifyRepository(bean, repoName);
+                        }
+                    }
+                    stage = 3;
+                    return submitDeploymentPlan(bean);
+                default:
+                    for (String repoName : repositoryUrls.keySet()) {
+                        repositories.deployed(containerName, repoName);
+                    }
+                    if (!verifyDeployments) {
+                        logger.info("Application '" + deploymentPlanFileName + "' deployed.");
+                        return null;
+                    }
+                    // check that the status of the application is DEPLOYED
+                    App app = bean.sendRequestWithReply(
+                            REST_TYPE.GET,
+                            getApiUrl(),
+                            bean.serverPath(containerName) + "/app/" + deploymentPlanFileName,
+                            null,
+                            App.class);
+                    verified();
+
+                    logger.info("Application '" + app.getName() + "' deployed. Status=" + app.getStatus());
+                    return null;
             }
+        }
+
+        /**
+         * Deploy a repository file
+         * @param bean the bean instance running the step, in its transaction
+         * @param repoName Name of the repository
+         * @return the agent task
+         */
+        private Task submitRepository(ContainerManagerBean bean, String repoName) throws ContainerManagerBeanException {
+            //Use the repository Template
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("id", repoName);
+            values.put("url", repositoryUrls.get(repoName));
+            Template.RenderBuffer repoContent = templates.get(TemplateRegistry.REPOSITORY).render(values);
+
+            //Deploy the repository file
+            return bean.sendDeployRequestWithReply(getApiUrl(), getContainerName(), repoName + ".xml",
+                    repoContent.toInputStream());
+        }
 
-            if (responseClass != null)
-                r = clientResponse.getEntity(responseClass);
+        /**
+         * Check that the status of a repository file is DEPLOYED
+         * @param bean the bean instance running the step, in its transaction
+         * @param repoName Name of the repository
+         */
+        private void verifyRepository(ContainerManagerBean bean, String repoName)
+                throws ContainerManagerBeanException {
+            String repoFileName = repoName + ".xml";
+            App repo = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(getContainerName()) + "/app/" + repoFileName,
+                    null,
+                    App.class);
+            if (!repo.getStatus().equals("DEPLOYED")) {
+                throw new ContainerManagerBeanException("Error : the repository file " + repoFileName +
+                        " is not deployed correctly!");
+            }
         }
 
-        client.destroy();
+        /**
+         * Render the deployment plan, with a deployment per deployable
+         */
+        private void renderDeploymentPlan() throws ContainerManagerBeanException {
+            Template deploymentTemplate = templates.get(TemplateRegistry.DEPLOYMENT);
+            StringBuilder deployments = new StringBuilder();
+            Map<String, String> values = new HashMap<String, String>();
+            for (URL deployable : deployables) {
+                values.put("resource", deployable.getPath());
+                values.put("repo-id", "repo-" + deployable.getAuthority());
+                deployments.append(deploymentTemplate.renderToString(values));
+            }
+
+            //Create Deployment-Plan
+            String deploymentPlanName = "plan-" + getPlanName();
+            deploymentPlanFileName = deploymentPlanName + ".xml";
+            //Use the deployment-plan Template
+            values.clear();
+            values.put("id", deploymentPlanName);
+            values.put("atomic", String.valueOf(atomic));
+            values.put("deployments", deployments.toString());
+            // kept until the repositories are deployed
+            deploymentPlan = templates.get(TemplateRegistry.DEPLOYMENT_PLAN).render(values).toByteArray();
+        }
 
-        return r;
+        /**
+         * @return the application name for a single deployable, a name computed from the
+         * deployables otherwise, so that the same set always gets the same plan
+         */
+        private String getPlanName() {
+            if (deployables.size() == 1) {
+                return getAppName(deployables.get(0));
+            }
+            StringBuilder urls = new StringBuilder();
+            for (URL deployable : deployables) {
+                urls.append(deployable).append(' ');
+            }
+            return getAppName(deployables.get(0)) + "-" + deployables.size() + "-"
+                    + Integer.toHexString(urls.toString().hashCode());
+        }
 
+        /**
+         * Deploy the deployment plan
+         * @param bean the bean instance running the step, in its transaction
+         * @return the agent task
+         */
+        private Task submitDeploymentPlan(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            return bean.sendDeployRequestWithReply(getApiUrl(), getContainerName(), deploymentPlanFileName,
+                    new ByteArrayInputStream(deploymentPlan));
+        }
     }
 
     /**
-     * Send a REST request and get response
-     * @param apiUrl Api URL of the Agent
-     * @param containerName container Name
-     * @param appFileName name of the application file
-     * @param appContent application content
-     * @return Task
+     * Deployment of an application streamed to the agent
      */
-    private Task sendDeployRequestWithReply(String apiUrl, String containerName, String appFileName, Object appContent)
-            throws ContainerManagerBeanException {
+    private static class PushDeployOperation extends AgentOperation {
+
+        /**
+         * Url of the deployable to deploy
+         */
+        private final URL deployable;
+
+        /**
+         * Name of the application file
+         */
+        private final String appName;
+
+        /**
+         * True once the deployable is sent
+         */
+        private boolean submitted = false;
+
+        /**
+         * @param containerName Name of the container
+         * @param deployable Url of the deployable to deploy
+         */
+        PushDeployOperation(String containerName, URL deployable) {
+            super("deploy", containerName);
+            this.deployable = deployable;
+            this.appName = getAppName(deployable);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "[" + deployable + "] push";
+        }
 
-        Client client = Client.create();
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            if (!submitted) {
+                // Get the agent
+                PaasAgentVO agent = bean.getAgent(containerName);
+                setApiUrl(agent.getApiUrl());
+
+                InputStream appContent;
+                try {
+                    appContent = deployable.openStream();
+                } catch (IOException e) {
+                    throw new ContainerManagerBeanException("Cannot read the deployable '" + deployable + "' - e=" + e);
+                }
+                submitted = true;
+                try {
+                    return transport.sendStreamingDeployRequestWithReply(getApiUrl(),
+                            bean.serverPath(containerName) + "/app/" + appName + "/action/deploy", appContent);
+                } finally {
+                    try {
+                        appContent.close();
+                    } catch (IOException e) {
+                        logger.debug("Cannot close the deployable '" + deployable + "' - e=" + e);
+                    }
+                }
+            }
 
-        WebResource webResource = client.resource(removeRedundantForwardSlash(getUrl(apiUrl, CONTEXT +
-                "/server/" + containerName + "/app/" + appFileName + "/action/deploy")));
-        WebResource.Builder builder =
-                webResource.type(MediaType.APPLICATION_OCTET_STREAM).accept(MediaType.APPLICATION_XML);
+            // the task in SUCCESS state means that the application is deployed
+            if (!verifyDeployments) {
+                logger.info("Application '" + appName + "' deployed.");
+                return null;
+            }
+            // check that the status of the application is DEPLOYED
+            App app = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(containerName) + "/app/" + appName,
+                    null,
+                    App.class);
+            verified();
 
-        ClientResponse clientResponse = builder.post(ClientResponse.class, appContent);
+            logger.info("Application '" + app.getName() + "' deployed. Status=" + app.getStatus());
+            return null;
+        }
+    }
 
-        int status = clientResponse.getStatus();
-        Task task = null;
-        if (status != HTTP_STATUS_ACCEPTED && status != HTTP_STATUS_OK && status != HTTP_STATUS_NO_CONTENT) {
-            throw new ContainerManagerBeanException("Error on JOnAS agent request : " + status);
+    /**
+     * Undeployment of an application or of a connector
+     */
+    private static class UndeployOperation extends AgentOperation {
+
+        /**
+         * Name of the application file
+         */
+        private final String appName;
+
+        /**
+         * True once the undeployment is submitted
+         */
+        private boolean submitted = false;
+
+        /**
+         * @param containerName Name of the container
+         * @param appName Name of the application file
+         */
+        UndeployOperation(String containerName, String appName) {
+            this("undeploy", containerName, appName);
         }
-        if (status != HTTP_STATUS_NO_CONTENT) {
-            if (!clientResponse.getType().equals(MediaType.APPLICATION_XML_TYPE)) {
-                throw new ContainerManagerBeanException("Error on JOnAS agent response, unexpected type : " +
-                        clientResponse.getType());
+
+        /**
+         * @param name Name of the operation
+         * @param containerName Name of the container
+         * @param appName Name of the application file
+         */
+        UndeployOperation(String name, String containerName, String appName) {
+            super(name, containerName);
+            this.appName = appName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "[" + appName + "]";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            if (!submitted) {
+                // Get the agent
+                PaasAgentVO agent = bean.getAgent(containerName);
+                setApiUrl(agent.getApiUrl());
+
+                // An undeployed repository file must be deployed again by the next deployment
+                if (appName.endsWith(".xml")) {
+                    repositories.invalidate(containerName, appName.substring(0, appName.length() - ".xml".length()));
+                }
+
+                // Create the REST request
+                submitted = true;
+                return bean.sendRequestWithReply(
+                        REST_TYPE.POST,
+                        agent.getApiUrl(),
+                        bean.serverPath(containerName) + "/app/" + appName + "/action/undeploy",
+                        null,
+                        Task.class);
             }
 
-            task = clientResponse.getEntity(Task.class);
+            // check that the status of the application is NOT_DEPLOYED
+            App app = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(containerName) + "/app/" + appName,
+                    null,
+                    App.class);
+            verified();
+
+            undeployed(bean, app);
+            return null;
+        }
+
+        /**
+         * Called once the application is undeployed
+         * @param bean the bean instance running the step, in its transaction
+         * @param app the application
+         */
+        protected void undeployed(ContainerManagerBean bean, App app) throws ContainerManagerBeanException {
+            logger.info("Application '" + app.getName() + "' undeployed. Status=" + app.getStatus());
         }
-        client.destroy();
-        return task;
     }
 
-    private void waitUntilAsyncTaskIsCompleted(Task task, String apiUrl) throws ContainerManagerBeanException {
-        while (!task.getStatus().equals(Status.SUCCESS.toString())) {
+    /**
+     * Creation of a connector
+     */
+    private static class CreateConnectorOperation extends AgentOperation {
+
+        /**
+         * Name of the Connector
+         */
+        private final String connectorName;
+
+        /**
+         * Configuration of the Connector
+         */
+        private final String connectorConf;
+
+        /**
+         * The container, null until the connector is submitted
+         */
+        private JonasVO jonasContainer = null;
+
+        /**
+         * The AJP port, allocated when the connector is submitted
+         */
+        private Integer port = null;
+
+        /**
+         * The redirect port
+         */
+        private Integer redirectPort = null;
+
+        /**
+         * @param containerName Name of the container
+         * @param connectorName Name of the Connector
+         * @param connectorConf Configuration of the Connector
+         */
+        CreateConnectorOperation(String containerName, String connectorName, String connectorConf) {
+            super("createConnector", containerName);
+            this.connectorName = connectorName;
+            this.connectorConf = connectorConf;
+        }
 
-            if (task.getStatus().equals(Status.ERROR.toString())) {
-                throw new ContainerManagerBeanException("Error on JOnAS agent task, id=" + task.getId());
-            }
-            try {
-                Thread.sleep(SLEEPING_PERIOD);
-            } catch (InterruptedException e) {
-                throw new ContainerManagerBeanException(e.getMessage(), e.getCause());
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "[" + connectorName + ", " + connectorConf + "]";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            String connectorFileName = connectorName + ".xml";
+            if (jonasContainer == null) {
+                ConnectorSettings settings = ConnectorSettings.parse(connectorConf);
+
+                // get the container from SR
+                JonasVO jonasContainerVO = bean.getJonasContainer(containerName);
+
+                //Do nothing if there is already a connector with the same name
+                List<ConnectorVO> connectorVOList = jonasContainerVO.getConnectorList();
+                for (ConnectorVO connector : connectorVOList) {
+                    if (connector.getName().equals(connectorName)) {
+                        return null;
+                    }
+                }
+                jonasContainer = jonasContainerVO;
+
+                // Get the agent
+                PaasAgentVO agent = bean.getAgent(containerName);
+                setApiUrl(agent.getApiUrl());
+
+                // Take a free pair of ports of the container, giving back the block taken for it on failure
+                String computeKey = bean.loadPorts(agent);
+                int range = portAllocator.getRange(containerName);
+                port = portAllocator.allocatePair(computeKey, containerName, getConnectorPorts(jonasContainerVO));
+                redirectPort = port + 1;
+                if (portAllocator.getRange(containerName) > range) {
+                    final int blockPort = port;
+                    whenSettled(new Runnable() {
+                        public void run() {
+                            if (getFailure() != null) {
+                                portAllocator.releaseBlock(getContainerName(), blockPort);
+                            }
+                        }
+                    });
+                }
+                if (settings.isAutoSizing()) {
+                    settings.autoSize(portAllocator.countContainers(computeKey));
+                }
+
+                //Use the connector Template
+                Map<String, String> values = settings.toTemplateValues(port, redirectPort);
+                Template.RenderBuffer connectorConfiguration = templates.get(TemplateRegistry.CONNECTOR).render(values);
+
+                // Create the REST request
+                return bean.sendDeployRequestWithReply(agent.getApiUrl(), containerName, connectorFileName,
+                        connectorConfiguration.toInputStream());
             }
 
-            task = sendRequestWithReply(
+            // check that the status of the application is DEPLOYED
+            App app = bean.sendRequestWithReply(
                     REST_TYPE.GET,
-                    getUrl(apiUrl, CONTEXT + "/task/" + String.valueOf(task.getId())),
+                    getApiUrl(),
+                    bean.serverPath(containerName) + "/app/" + connectorFileName,
                     null,
-                    Task.class);
+                    App.class);
+            verified();
+
+            bean.srPaaSContainerEjb.addConnector(jonasContainer.getId(), connectorName, port);
+            containerCache.invalidate(containerName);
+            setState(OperationState.SR_UPDATED);
+
+            logger.info("Connector '" + app.getName() + "' deployed. Status=" + app.getStatus());
+            return null;
         }
     }
 
     /**
-     * Remove redundant forward slash in a String url
-     * @param s a String url
-     * @return The String url without redundant forward slash
+     * Removal of a connector
      */
-    private String removeRedundantForwardSlash(String s) {
-        String tmp = s.replaceAll("/+", "/");
-        return tmp.replaceAll(":/", "://");
+    private static class RemoveConnectorOperation extends UndeployOperation {
+
+        /**
+         * Name of the Connector
+         */
+        private final String connectorName;
+
+        /**
+         * @param containerName Name of the container
+         * @param connectorName Name of the Connector
+         */
+        RemoveConnectorOperation(String containerName, String connectorName) {
+            super("removeConnector", containerName, connectorName + ".xml");
+            this.connectorName = connectorName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void undeployed(ContainerManagerBean bean, App app) throws ContainerManagerBeanException {
+            JonasVO jonasContainer = bean.getJonasContainer(getContainerName());
+            bean.srPaaSContainerEjb.removeConnector(jonasContainer.getId(), connectorName);
+            containerCache.invalidate(getContainerName());
+            setState(OperationState.SR_UPDATED);
+
+            logger.info("Connector '" + app.getName() + "' undeployed. Status=" + app.getStatus());
+        }
     }
 
-    private String convertUrlToString(URL file) throws IOException {
-        InputStream urlStream = file.openStream();
-        InputStreamReader is = new InputStreamReader(urlStream);
-        BufferedReader br = new BufferedReader(is);
-        String read = br.readLine();
-        StringBuffer sb = new StringBuffer(read);
-        while(read != null) {
-            read = br.readLine();
-            if (read != null) {
-                sb.append(read);
-                sb.append(System.getProperty("line.separator"));
+    /**
+     * Creation or update of a datasource
+     */
+    private static class DatasourceOperation extends AgentOperation {
+
+        /**
+         * Name of the Datasource
+         */
+        private final String datasourceName;
+
+        /**
+         * Configuration of the Datasource
+         */
+        private final String datasourceConf;
+
+        /**
+         * True to update an existing datasource, false to create it
+         */
+        private final boolean update;
+
+        /**
+         * The container, null until the datasource is submitted
+         */
+        private JonasVO jonasContainer = null;
+
+        /**
+         * The datasource in the SR, null if it is created
+         */
+        private DatasourceVO existing = null;
+
+        /**
+         * The settings of the datasource
+         */
+        private DatasourceSettings settings = null;
+
+        /**
+         * @param containerName Name of the container
+         * @param datasourceName Name of the Datasource
+         * @param datasourceConf Configuration of the Datasource
+         * @param update True to update an existing datasource, false to create it
+         */
+        DatasourceOperation(String containerName, String datasourceName, String datasourceConf, boolean update) {
+            super(update ? "updateDatasource" : "createDatasource", containerName);
+            this.datasourceName = datasourceName;
+            this.datasourceConf = datasourceConf;
+            this.update = update;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "[" + datasourceName + ", " + datasourceConf + "]";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            String containerName = getContainerName();
+            String datasourceFileName = getDatasourceFileName(datasourceName);
+            if (jonasContainer == null) {
+                settings = DatasourceSettings.parse(datasourceName, datasourceConf);
+
+                // get the container from SR
+                JonasVO jonasContainerVO = bean.getJonasContainer(containerName);
+                if (jonasContainerVO.getDatasourceList() != null) {
+                    for (DatasourceVO datasource : jonasContainerVO.getDatasourceList()) {
+                        if (datasource.getName().equals(datasourceName)) {
+                            existing = datasource;
+                        }
+                    }
+                }
+                if (!update && existing != null) {
+                    //Do nothing if there is already a datasource with the same name
+                    return null;
+                }
+                if (update && existing == null) {
+                    throw new ContainerManagerBeanException("The datasource '" + datasourceName
+                            + "' doesn't exist on container '" + containerName + "' !");
+                }
+                jonasContainer = jonasContainerVO;
+
+                // Get the agent
+                PaasAgentVO agent = bean.getAgent(containerName);
+                setApiUrl(agent.getApiUrl());
+
+                // Use the datasource Template. Deploying the file again replaces the pool of the datasource.
+                Template.RenderBuffer datasourceConfiguration =
+                        templates.get(TemplateRegistry.DATASOURCE).render(settings.toTemplateValues());
+
+                // Create the REST request
+                return bean.sendDeployRequestWithReply(agent.getApiUrl(), containerName, datasourceFileName,
+                        datasourceConfiguration.toInputStream());
             }
+
+            // check that the status of the datasource is DEPLOYED
+            App app = bean.sendRequestWithReply(
+                    REST_TYPE.GET,
+                    getApiUrl(),
+                    bean.serverPath(containerName) + "/app/" + datasourceFileName,
+                    null,
+                    App.class);
+            verified();
+
+            if (existing == null || !settings.getJndiName().equals(existing.getJndiName())) {
+                if (existing != null) {
+                    bean.srPaaSContainerEjb.removeDatasource(jonasContainer.getId(), datasourceName);
+                }
+                bean.srPaaSContainerEjb.addDatasource(jonasContainer.getId(), datasourceName, settings.getJndiName());
+                containerCache.invalidate(containerName);
+                setState(OperationState.SR_UPDATED);
+            }
+
+            logger.info("Datasource '" + app.getName() + "' " + (update ? "updated" : "deployed") + ". Status="
+                    + app.getStatus());
+            return null;
         }
-        return sb.toString();
     }
-}
 
+    /**
+     * Removal of a datasource
+     */
+    private static class RemoveDatasourceOperation extends UndeployOperation {
+
+        /**
+         * Name of the Datasource
+         */
+        private final String datasourceName;
+
+        /**
+         * @param containerName Name of the container
+         * @param datasourceName Name of the Datasource
+         */
+        RemoveDatasourceOperation(String containerName, String datasourceName) {
+            super("removeDatasource", containerName, getDatasourceFileName(datasourceName));
+            this.datasourceName = datasourceName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void undeployed(ContainerManagerBean bean, App app) throws ContainerManagerBeanException {
+            JonasVO jonasContainer = bean.getJonasContainer(getContainerName());
+            bean.srPaaSContainerEjb.removeDatasource(jonasContainer.getId(), datasourceName);
+            containerCache.invalidate(getContainerName());
+            setState(OperationState.SR_UPDATED);
+
+            logger.info("Datasource '" + app.getName() + "' undeployed. Status=" + app.getStatus());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the background services of the container manager when the module is deployed, and stops their threads
+ * when it is undeployed. The services work on the SR through {@link ContainerMaintenance}, never through a bean
+ * instance of their own.
+ */
+@Singleton
+@Startup
+public class ContainerManagerLifecycle {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(ContainerManagerLifecycle.class);
+
+    /**
+     * Local view of the container manager bean
+     */
+    @EJB
+    private ContainerMaintenance maintenance;
+
+    /**
+     * Thread reading the containers of the agents at startup
+     */
+    private ExecutorService loader;
+
+    /**
+     * True once the services are stopped
+     */
+    private boolean stopped = false;
+
+    /**
+     * Start the services
+     */
+    @PostConstruct
+    public void start() {
+        OperationExecutor.getInstance().start(new OperationExecutor.StepRunner() {
+            public Task run(final AgentOperation operation) throws ContainerManagerBeanException {
+                final Task[] submitted = new Task[1];
+                try {
+                    return maintenance.runStep(new ContainerMaintenance.Step() {
+                        public Task run(ContainerManagerBean bean) throws ContainerManagerBeanException {
+                            submitted[0] = operation.step(bean);
+                            return submitted[0];
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // the transaction failed after the step, its agent task holds a task slot until it ends
+                    trackAbandoned(operation, submitted[0]);
+                    throw e;
+                }
+            }
+        });
+        StateReconciler.getInstance().start(maintenance);
+        loader = Executors.newSingleThreadExecutor(new DaemonThreadFactory("jpaas-container-loader"));
+        loader.execute(new Runnable() {
+            public void run() {
+                loadContainers();
+            }
+        });
+        logger.info("Container manager started");
+    }
+
+    /**
+     * Read the containers of each agent once, to rebuild the port allocations of the computes and to find
+     * the pooled containers, then start the warm pools
+     */
+    private void loadContainers() {
+        Map<String, String> pooled = new HashMap<String, String>();
+        try {
+            for (PaasAgentVO agent : maintenance.getAgents()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // stopped
+                    return;
+                }
+                try {
+                    pooled.putAll(maintenance.loadContainers(agent));
+                } catch (RuntimeException e) {
+                    // read again when the agent is used
+                    logger.error("Cannot read the containers of agent '" + agent.getName() + "'", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Cannot list the agents", e);
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            WarmPool.getInstance().start(new WarmPool.Provisioner() {
+                public void provision(String containerName, String paasAgentName, String paasConfigurationName,
+                        String pool, boolean start) throws ContainerManagerBeanException {
+                    maintenance.provision(containerName, paasAgentName, paasConfigurationName, pool, start);
+                }
+            }, pooled);
+        }
+        logger.debug("Containers of the agents loaded, " + pooled.size() + " pooled containers found");
+    }
+
+    /**
+     * Track the agent task of a step whose transaction failed, so that its task slot is released when it ends
+     * @param operation the operation, failed
+     * @param task the task submitted by the step, or null
+     */
+    private static void trackAbandoned(final AgentOperation operation, Task task) {
+        if (task == null || !TaskTracker.isRunning(task)) {
+            return;
+        }
+        TaskTracker.getInstance().track(operation.getApiUrl(), task, new TaskTracker.TaskListener() {
+            public void taskCompleted(Task task) {
+                logger.debug("Task " + task.getId() + " of the failed operation " + operation + " ended");
+            }
+            public void taskFailed(ContainerManagerBeanException e) {
+                logger.debug("Task of the failed operation " + operation + " ended - e=" + e);
+            }
+        });
+    }
+
+    /**
+     * Stop the services and their threads
+     */
+    @PreDestroy
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+        loader.shutdownNow();
+        WarmPool.getInstance().stop();
+        StateReconciler.getInstance().stop();
+        OperationExecutor.getInstance().shutdown();
+        TaskTracker.getInstance().shutdown();
+        AgentTransport.getInstance().shutdown();
+        ManagerMetrics.getInstance().unregisterAll();
+        logger.info("Container manager stopped");
+    }
+}
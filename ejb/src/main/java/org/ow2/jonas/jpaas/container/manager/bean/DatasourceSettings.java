@@ -0,0 +1,198 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of a pooled datasource, read from the configuration given to createDatasource.
+ * The configuration is read by {@link KeyValueConfiguration}, with the keys:
+ * <ul>
+ *   <li>{@code url} and {@code driver}, required, {@code username}, {@code password}, {@code mapper}</li>
+ *   <li>{@code jndiName}: JNDI name of the datasource, its name by default</li>
+ *   <li>{@code minPoolSize} (default 10), {@code maxPoolSize} (default 30)</li>
+ *   <li>{@code statementCacheSize}: prepared statements cached by connection (default 10)</li>
+ *   <li>{@code checkLevel}: validation of the connections, 0 (default) to 3,
+ *   with {@code validationQuery} (default {@code select 1})</li>
+ *   <li>{@code idleTimeout}: minutes before an idle connection is closed (default 1440),
+ *   {@code maxOpenTime}: minutes before a connection held by a user is reclaimed (default 60)</li>
+ *   <li>{@code maxWaitTime}: seconds waited for a connection (default 10), {@code maxWaiters} (default 100)</li>
+ * </ul>
+ */
+final class DatasourceSettings {
+
+    /**
+     * Placeholders of the datasource template by configuration key, for the numbers
+     */
+    private static final Map<String, String> POOL_KEYS = new HashMap<String, String>();
+
+    static {
+        POOL_KEYS.put("minPoolSize", "minconpool");
+        POOL_KEYS.put("maxPoolSize", "maxconpool");
+        POOL_KEYS.put("statementCacheSize", "pstmtmax");
+        POOL_KEYS.put("checkLevel", "connchecklevel");
+        POOL_KEYS.put("idleTimeout", "connmaxage");
+        POOL_KEYS.put("maxOpenTime", "maxopentime");
+        POOL_KEYS.put("maxWaitTime", "maxwaittime");
+        POOL_KEYS.put("maxWaiters", "maxwaiters");
+    }
+
+    /**
+     * Placeholders of the datasource template by configuration key, for the texts
+     */
+    private static final Map<String, String> TEXT_KEYS = new HashMap<String, String>();
+
+    static {
+        TEXT_KEYS.put("jndiName", "name");
+        TEXT_KEYS.put("url", "url");
+        TEXT_KEYS.put("driver", "classname");
+        TEXT_KEYS.put("username", "username");
+        TEXT_KEYS.put("password", "password");
+        TEXT_KEYS.put("mapper", "mapper");
+        TEXT_KEYS.put("validationQuery", "connteststmt");
+    }
+
+    /**
+     * Highest level of validation of the connections
+     */
+    private static final int MAX_CHECK_LEVEL = 3;
+
+    /**
+     * Values of the datasource template by placeholder, not escaped
+     */
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * @param datasourceName Name of the Datasource
+     */
+    private DatasourceSettings(String datasourceName) {
+        values.put("name", datasourceName);
+        values.put("username", "");
+        values.put("password", "");
+        values.put("mapper", "rdb");
+        values.put("connteststmt", "select 1");
+        values.put("minconpool", "10");
+        values.put("maxconpool", "30");
+        values.put("pstmtmax", "10");
+        values.put("connchecklevel", "0");
+        values.put("connmaxage", "1440");
+        values.put("maxopentime", "60");
+        values.put("maxwaittime", "10");
+        values.put("maxwaiters", "100");
+    }
+
+    /**
+     * @param datasourceName Name of the Datasource
+     * @param datasourceConf Configuration of the Datasource, may be null
+     * @return the settings
+     * @throws ContainerManagerBeanException if the configuration is invalid or incomplete
+     */
+    static DatasourceSettings parse(String datasourceName, String datasourceConf)
+            throws ContainerManagerBeanException {
+        DatasourceSettings settings = new DatasourceSettings(datasourceName);
+        for (Map.Entry<String, String> pair : KeyValueConfiguration.parse(datasourceConf, "datasource").entrySet()) {
+            String key = pair.getKey();
+            String value = pair.getValue();
+            if (POOL_KEYS.containsKey(key)) {
+                settings.values.put(POOL_KEYS.get(key), String.valueOf(number(key, value)));
+            } else if (TEXT_KEYS.containsKey(key)) {
+                settings.values.put(TEXT_KEYS.get(key), value);
+            } else {
+                throw new ContainerManagerBeanException("Unknown datasource configuration key '" + key + "'");
+            }
+        }
+        if (!settings.values.containsKey("url") || !settings.values.containsKey("classname")) {
+            throw new ContainerManagerBeanException("The configuration of the datasource '" + datasourceName
+                    + "' needs an url and a driver");
+        }
+        if (Integer.parseInt(settings.values.get("minconpool")) > Integer.parseInt(settings.values.get("maxconpool"))) {
+            throw new ContainerManagerBeanException("The minPoolSize of the datasource '" + datasourceName
+                    + "' is greater than its maxPoolSize");
+        }
+        if (Integer.parseInt(settings.values.get("connchecklevel")) > MAX_CHECK_LEVEL) {
+            throw new ContainerManagerBeanException("The checkLevel of the datasource '" + datasourceName
+                    + "' must be between 0 and " + MAX_CHECK_LEVEL);
+        }
+        return settings;
+    }
+
+    /**
+     * @return the JNDI name of the datasource
+     */
+    String getJndiName() {
+        return values.get("name");
+    }
+
+    /**
+     * @return the values of the datasource template, escaped for XML
+     */
+    Map<String, String> toTemplateValues() {
+        Map<String, String> templateValues = new HashMap<String, String>(values.size() * 2);
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            templateValues.put(value.getKey(), escape(value.getValue()));
+        }
+        return templateValues;
+    }
+
+    /**
+     * @param key a key of the configuration
+     * @param value its value
+     * @return the value as a number
+     * @throws ContainerManagerBeanException if the value is not a positive or null integer
+     */
+    private static int number(String key, String value) throws ContainerManagerBeanException {
+        try {
+            int i = Integer.parseInt(value);
+            if (i >= 0) {
+                return i;
+            }
+        } catch (NumberFormatException e) {
+            // invalid below
+        }
+        throw new ContainerManagerBeanException("Invalid datasource configuration " + key + "=" + value);
+    }
+
+    /**
+     * @param text a text
+     * @return the text escaped for an XML element
+     */
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
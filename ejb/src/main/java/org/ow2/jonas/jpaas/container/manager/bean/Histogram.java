@@ -0,0 +1,173 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive values in power of two buckets.
+ * Recording a value only updates atomic counters: it neither locks nor allocates,
+ * so it can stay enabled on the hot paths.
+ */
+final class Histogram implements HistogramMBean {
+
+    /**
+     * Number of buckets, bucket i holding the values of i significant bits
+     */
+    private static final int BUCKETS = 64;
+
+    /**
+     * Unit of the recorded values
+     */
+    private final String unit;
+
+    /**
+     * Number of values by bucket
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of values
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of the values
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Greatest value
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param unit Unit of the recorded values
+     */
+    Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    void record(long value) {
+        long v = Math.max(0, value);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current;
+        while (v > (current = max.get())) {
+            if (max.compareAndSet(current, v)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param quantile the quantile, between 0 and 1
+     * @return upper bound of the bucket holding the quantile
+     */
+    long getPercentile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP90() {
+        return getPercentile(0.9);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Snapshot of a {@link Histogram} through JMX.
+ * The percentiles are the upper bounds of the power of two buckets holding them.
+ */
+public interface HistogramMBean {
+
+    /**
+     * @return unit of the recorded values
+     */
+    String getUnit();
+
+    /**
+     * @return number of recorded values
+     */
+    long getCount();
+
+    /**
+     * @return mean of the recorded values
+     */
+    double getMean();
+
+    /**
+     * @return greatest recorded value
+     */
+    long getMax();
+
+    /**
+     * @return median
+     */
+    long getP50();
+
+    /**
+     * @return 90th percentile
+     */
+    long getP90();
+
+    /**
+     * @return 99th percentile
+     */
+    long getP99();
+
+    /**
+     * @return 99.9th percentile
+     */
+    long getP999();
+
+    /**
+     * Forget the recorded values
+     */
+    void reset();
+}
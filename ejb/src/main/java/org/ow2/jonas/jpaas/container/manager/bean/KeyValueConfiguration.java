@@ -0,0 +1,101 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the configurations given to the container manager as {@code key=value} pairs, one by line.
+ * A value runs up to the end of its line, so it may hold commas, semicolons and equal signs,
+ * as JDBC URLs such as {@code jdbc:derby:db;create=true} and passwords do. Blank lines are ignored.
+ */
+final class KeyValueConfiguration {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(KeyValueConfiguration.class);
+
+    /**
+     * Utility class
+     */
+    private KeyValueConfiguration() {
+    }
+
+    /**
+     * @param conf the configuration, may be null
+     * @param kind what is configured, for the error messages
+     * @return the values by key, in configuration order
+     * @throws ContainerManagerBeanException if a pair has no key
+     */
+    static Map<String, String> parse(String conf, String kind) throws ContainerManagerBeanException {
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        if (conf == null) {
+            return pairs;
+        }
+        for (String pair : conf.split("\\r?\\n")) {
+            if (!put(pairs, pair)) {
+                throw new ContainerManagerBeanException("Invalid " + kind + " configuration '" + pair.trim()
+                        + "', expected key=value");
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Read a configuration, skipping with a warning the lines which are not pairs
+     * @param conf the configuration, may be null
+     * @param kind what is configured, for the warnings
+     * @return the values by key, in configuration order
+     */
+    static Map<String, String> parseLenient(String conf, String kind) {
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        if (conf == null) {
+            return pairs;
+        }
+        for (String pair : conf.split("\\r?\\n")) {
+            if (!put(pairs, pair)) {
+                logger.warn("Invalid " + kind + " configuration '" + pair.trim() + "' ignored, expected key=value");
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @param pairs the values by key
+     * @param pair a line of the configuration
+     * @return false if the line is neither blank nor a pair
+     */
+    private static boolean put(Map<String, String> pairs, String pair) {
+        if (pair.trim().length() == 0) {
+            return true;
+        }
+        int equals = pair.indexOf('=');
+        if (equals <= 0) {
+            return false;
+        }
+        pairs.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Tuning parameters of the container manager.
+ * Each parameter is read from a system property prefixed by {@code jpaas.container.manager.}
+ * and falls back to the given default value when it is missing or invalid.
+ */
+final class ManagerConfig {
+
+    /**
+     * Prefix of the system properties
+     */
+    static final String PREFIX = "jpaas.container.manager.";
+
+    /**
+     * Utility class
+     */
+    private ManagerConfig() {
+    }
+
+    /**
+     * @param key the key of the parameter (without prefix)
+     * @param defaultValue the default value
+     * @return the value of the parameter
+     */
+    static String getString(String key, String defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * @param key the key of the parameter (without prefix)
+     * @param defaultValue the default value
+     * @return the value of the parameter
+     */
+    static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param key the key of the parameter (without prefix)
+     * @param defaultValue the default value
+     * @return the value of the parameter
+     */
+    static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param key the key of the parameter (without prefix)
+     * @param defaultValue the default value
+     * @return the value of the parameter
+     */
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+}
@@ -0,0 +1,391 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.OperationState;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumentation of the container manager: latency of each operation and of each
+ * of its phases, polls per agent task, round trips per agent and operations in flight.
+ * Each figure is published as an MBean in the {@value #DOMAIN} domain when first recorded:
+ * <ul>
+ *   <li>{@code type=Manager}: global figures and container cache</li>
+ *   <li>{@code type=Operation,name=<operation>}: duration of an operation</li>
+ *   <li>{@code type=Phase,operation=<operation>,name=<state>}: time spent in a state of an operation</li>
+ *   <li>{@code type=Agent,name=<api url>}: requests sent to an agent</li>
+ * </ul>
+ * The latencies are in microseconds.
+ */
+final class ManagerMetrics implements ManagerMetricsMBean {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(ManagerMetrics.class);
+
+    /**
+     * JMX domain of the MBeans
+     */
+    static final String DOMAIN = "jpaas.container.manager";
+
+    /**
+     * Shared instance
+     */
+    private static final ManagerMetrics INSTANCE = new ManagerMetrics();
+
+    static {
+        INSTANCE.register("type=Manager", INSTANCE);
+    }
+
+    /**
+     * True to publish the MBeans
+     */
+    private final boolean jmx = ManagerConfig.getBoolean("metrics.jmx", true);
+
+    /**
+     * Metrics by operation name
+     */
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+
+    /**
+     * Metrics by agent API url
+     */
+    private final ConcurrentMap<String, AgentMetrics> agents = new ConcurrentHashMap<String, AgentMetrics>();
+
+    /**
+     * Number of polls per agent task
+     */
+    private final Histogram taskPolls = new Histogram("polls");
+
+    /**
+     * Operations created and not over yet
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Failed operations
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Operations which followed a pending identical one
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Container states corrected by the reconciliation
+     */
+    private final AtomicLong reconciled = new AtomicLong();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private ManagerMetrics() {
+    }
+
+    /**
+     * @return the shared metrics
+     */
+    static ManagerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name Name of an operation
+     * @return the metrics of the operation
+     */
+    OperationMetrics getOperation(String name) {
+        OperationMetrics metrics = operations.get(name);
+        if (metrics == null) {
+            OperationMetrics newMetrics = new OperationMetrics();
+            metrics = operations.putIfAbsent(name, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                String quotedName = ObjectName.quote(name);
+                register("type=Operation,name=" + quotedName, metrics.duration);
+                for (OperationState state : OperationState.values()) {
+                    if (metrics.phases[state.ordinal()] != null) {
+                        register("type=Phase,operation=" + quotedName + ",name=" + state, metrics.phases[state.ordinal()]);
+                    }
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param apiUrl Api URL of an agent
+     * @return the metrics of the agent
+     */
+    AgentMetrics getAgent(String apiUrl) {
+        AgentMetrics metrics = agents.get(apiUrl);
+        if (metrics == null) {
+            AgentMetrics newMetrics = new AgentMetrics(apiUrl);
+            metrics = agents.putIfAbsent(apiUrl, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                register("type=Agent,name=" + ObjectName.quote(apiUrl), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Forget the metrics of an agent, e.g. when the agent is removed
+     * @param apiUrl Api URL of the agent
+     */
+    void releaseAgent(String apiUrl) {
+        if (agents.remove(apiUrl) != null) {
+            unregister("type=Agent,name=" + ObjectName.quote(apiUrl));
+        }
+    }
+
+    /**
+     * An operation has been created
+     */
+    void operationStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * An operation is over
+     * @param error true if the operation failed
+     */
+    void operationEnded(boolean error) {
+        inFlight.decrementAndGet();
+        if (error) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * An operation follows a pending identical one
+     */
+    void operationCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    /**
+     * The states of containers have been reconciled with their agent
+     * @param count number of corrected states
+     */
+    void statesReconciled(int count) {
+        reconciled.addAndGet(count);
+    }
+
+    /**
+     * An agent task is over
+     * @param polls number of polls of the task
+     */
+    void taskEnded(int polls) {
+        taskPolls.record(polls);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getInFlightOperations() {
+        return inFlight.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getFailedOperations() {
+        return failed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCoalescedOperations() {
+        return coalesced.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReconciledStates() {
+        return reconciled.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTaskPollsP50() {
+        return taskPolls.getP50();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTaskPollsP99() {
+        return taskPolls.getP99();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTaskPollsMax() {
+        return taskPolls.getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getContainerCacheSize() {
+        return ContainerCache.getInstance().size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getContainerCacheHits() {
+        return ContainerCache.getInstance().getHits();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getContainerCacheMisses() {
+        return ContainerCache.getInstance().getMisses();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getContainerCacheEvictions() {
+        return ContainerCache.getInstance().getEvictions();
+    }
+
+    /**
+     * Publish an MBean
+     * @param properties key properties of its name
+     * @param mbean the MBean
+     */
+    void register(String properties, Object mbean) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (Exception e) {
+            logger.debug("Cannot register the MBean '" + properties + "' - e=" + e);
+        }
+    }
+
+    /**
+     * Remove an MBean
+     * @param properties key properties of its name
+     */
+    void unregister(String properties) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.debug("Cannot unregister the MBean '" + properties + "' - e=" + e);
+        }
+    }
+
+    /**
+     * Remove all the MBeans of the container manager
+     */
+    void unregisterAll() {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.debug("Cannot unregister the MBeans - e=" + e);
+        }
+    }
+
+    /**
+     * Latencies of an operation
+     */
+    static final class OperationMetrics {
+
+        /**
+         * Duration of the operation in microseconds
+         */
+        private final Histogram duration = new Histogram("us");
+
+        /**
+         * Time spent in each state in microseconds, by state ordinal.
+         * There is no histogram for the final states.
+         */
+        private final Histogram[] phases = new Histogram[OperationState.values().length];
+
+        /**
+         * Create the histograms
+         */
+        OperationMetrics() {
+            for (OperationState state : OperationState.values()) {
+                if (state != OperationState.VERIFIED && state != OperationState.COMPLETED
+                        && state != OperationState.FAILED && state != OperationState.CANCELLED) {
+                    phases[state.ordinal()] = new Histogram("us");
+                }
+            }
+        }
+
+        /**
+         * @param nanos duration of the operation in ns
+         */
+        void recordDuration(long nanos) {
+            duration.record(nanos / 1000);
+        }
+
+        /**
+         * @param state the state left
+         * @param nanos time spent in the state in ns
+         */
+        void recordPhase(OperationState state, long nanos) {
+            Histogram phase = phases[state.ordinal()];
+            if (phase != null) {
+                phase.record(nanos / 1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * Global figures of the container manager, seen through JMX.
+ */
+public interface ManagerMetricsMBean {
+
+    /**
+     * @return number of operations created and not over yet
+     */
+    int getInFlightOperations();
+
+    /**
+     * @return number of failed operations
+     */
+    long getFailedOperations();
+
+    /**
+     * @return number of operations which followed a pending identical one instead of being run
+     */
+    long getCoalescedOperations();
+
+    /**
+     * @return number of container states corrected by the reconciliation with the agents
+     */
+    long getReconciledStates();
+
+    /**
+     * @return median number of polls of an agent task
+     */
+    long getTaskPollsP50();
+
+    /**
+     * @return 99th percentile of the number of polls of an agent task
+     */
+    long getTaskPollsP99();
+
+    /**
+     * @return greatest number of polls of an agent task
+     */
+    long getTaskPollsMax();
+
+    /**
+     * @return number of containers in the cache
+     */
+    int getContainerCacheSize();
+
+    /**
+     * @return number of containers found in the cache
+     */
+    long getContainerCacheHits();
+
+    /**
+     * @return number of containers not found in the cache
+     */
+    long getContainerCacheMisses();
+
+    /**
+     * @return number of containers evicted from the cache
+     */
+    long getContainerCacheEvictions();
+}
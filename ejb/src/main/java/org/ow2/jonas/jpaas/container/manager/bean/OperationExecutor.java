@@ -0,0 +1,508 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.api.OperationState;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the steps of the {@link AgentOperation}s.
+ * Synchronous operations are run on the calling thread. Asynchronous ones are run
+ * on a small shared pool and don't hold any thread while their agent task is running:
+ * the next step is scheduled by the {@link TaskTracker} when the task ends.
+ * The operations of a container are run one after the other, and an operation
+ * submitted while the same one is the last pending on the container follows it instead of being run again.
+ */
+final class OperationExecutor {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(OperationExecutor.class);
+
+    /**
+     * Fails the steps of the asynchronous operations until the executor is started, as there is no bean
+     * to run them, initialized before the shared instance which uses it
+     */
+    private static final StepRunner NOT_STARTED = new StepRunner() {
+        public Task run(AgentOperation operation) throws ContainerManagerBeanException {
+            throw new ContainerManagerBeanException("The container manager is not started, cannot run operation "
+                    + operation);
+        }
+    };
+
+    /**
+     * Shared instance
+     */
+    private static final OperationExecutor INSTANCE = new OperationExecutor();
+
+    /**
+     * Threads running the steps of the asynchronous operations
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Tracker of the agent tasks
+     */
+    private final TaskTracker taskTracker = TaskTracker.getInstance();
+
+    /**
+     * Admission of the requests and tasks by agent
+     */
+    private final AgentScheduler scheduler = AgentScheduler.getInstance();
+
+    /**
+     * Lanes by container name
+     */
+    private final Map<String, ContainerLane> lanes = new HashMap<String, ContainerLane>();
+
+    /**
+     * Runs the steps of the asynchronous operations
+     */
+    private volatile StepRunner stepRunner = NOT_STARTED;
+
+    /**
+     * Runs the steps of the operations on a bean instance
+     */
+    interface StepRunner {
+
+        /**
+         * Run the next step of an operation
+         * @param operation the operation
+         * @return the agent task to wait for before the next step, or null when the operation is over
+         * @throws ContainerManagerBeanException if the step fails
+         */
+        Task run(AgentOperation operation) throws ContainerManagerBeanException;
+    }
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private OperationExecutor() {
+        executor = Executors.newFixedThreadPool(ManagerConfig.getInt("executor.threads", 8),
+                new DaemonThreadFactory("jpaas-container-operation"));
+    }
+
+    /**
+     * @return the shared executor
+     */
+    static OperationExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param stepRunner runs the steps of the asynchronous operations, so that they can be run in a transaction
+     */
+    void start(StepRunner stepRunner) {
+        this.stepRunner = stepRunner;
+    }
+
+    /**
+     * Stop the threads of the pool. The asynchronous operations still running fail.
+     */
+    void shutdown() {
+        stepRunner = NOT_STARTED;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run an operation on the calling thread
+     * @param operation the operation
+     * @param stepRunner runs the steps on the bean instance of the calling thread
+     * @throws ContainerManagerBeanException if the operation fails
+     */
+    void execute(AgentOperation operation, StepRunner stepRunner) throws ContainerManagerBeanException {
+        final CountDownLatch turn = new CountDownLatch(1);
+        AgentOperation leader = enter(operation, new Runnable() {
+            public void run() {
+                turn.countDown();
+            }
+        });
+        try {
+            if (leader != null) {
+                operation.follow(leader);
+                operation.get();
+                return;
+            }
+            turn.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            operation.cancel(false);
+            throw new ContainerManagerBeanException("Interrupted while waiting for the operation " + operation, e);
+        } catch (CancellationException e) {
+            throw new ContainerManagerBeanException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        if (operation.isDone()) {
+            // cancelled while waiting for its turn
+            return;
+        }
+        run(operation, stepRunner);
+    }
+
+    /**
+     * Run the steps of an operation on the calling thread
+     * @param operation the operation
+     * @param stepRunner runs the steps
+     * @throws ContainerManagerBeanException if the operation fails
+     */
+    private void run(AgentOperation operation, StepRunner stepRunner) throws ContainerManagerBeanException {
+        String previousCaller = AgentScheduler.setCaller(operation.getContainerName());
+        try {
+            // a cancelled operation stops before its next step
+            while (operation.startWork()) {
+                try {
+                    Task task = stepRunner.run(operation);
+                    if (task == null) {
+                        operation.complete();
+                        return;
+                    }
+                    operation.setState(OperationState.TASK_SUBMITTED);
+                    taskTracker.waitUntilCompleted(operation.getApiUrl(), task);
+                    operation.setState(OperationState.TASK_COMPLETED);
+                } finally {
+                    operation.endWork();
+                }
+            }
+        } catch (ContainerManagerBeanException e) {
+            operation.fail(e);
+            throw e;
+        } catch (RuntimeException e) {
+            operation.fail(e);
+            throw e;
+        } finally {
+            AgentScheduler.setCaller(previousCaller);
+        }
+    }
+
+    /**
+     * Start a request in parallel of the calling thread, see {@link #join(FutureTask)}
+     * @param request the request
+     * @return the request
+     */
+    <T> FutureTask<T> fork(final Callable<T> request) {
+        final String caller = AgentScheduler.getCurrentCaller();
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                String previousCaller = AgentScheduler.setCaller(caller);
+                try {
+                    return request.call();
+                } finally {
+                    AgentScheduler.setCaller(previousCaller);
+                }
+            }
+        });
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopped, the request is run by join
+        }
+        return task;
+    }
+
+    /**
+     * Get the result of a request started by {@link #fork(Callable)}.
+     * If no thread of the pool has started the request yet, it is run by the calling thread,
+     * so that a step never waits for a busy pool.
+     * @param task the request
+     * @return the result of the request
+     * @throws ContainerManagerBeanException if the request fails
+     */
+    <T> T join(FutureTask<T> task) throws ContainerManagerBeanException {
+        // no-op if the request is already started
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContainerManagerBeanException("Interrupted while waiting for a JOnAS agent request", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * @param e the error of a request or of an operation
+     * @return the error to throw
+     */
+    private static ContainerManagerBeanException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ContainerManagerBeanException) {
+            return (ContainerManagerBeanException) cause;
+        }
+        if (cause instanceof CancellationException) {
+            // the operation followed was cancelled
+            return new ContainerManagerBeanException(cause.getMessage(), cause);
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new ContainerManagerBeanException("Error on JOnAS agent request - e=" + cause, cause);
+    }
+
+    /**
+     * Run an operation asynchronously
+     * @param operation the operation
+     * @return the operation
+     */
+    AgentOperation submit(final AgentOperation operation) {
+        AgentOperation leader = enter(operation, new Runnable() {
+            public void run() {
+                schedule(operation);
+            }
+        });
+        if (leader != null) {
+            operation.follow(leader);
+        }
+        return operation;
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @return true if an operation of the container is running or waiting
+     */
+    boolean isPending(String containerName) {
+        synchronized (lanes) {
+            return lanes.containsKey(containerName);
+        }
+    }
+
+    /**
+     * Queue an operation on the lane of its container
+     * @param operation the operation
+     * @param start started when it is the turn of the operation, possibly by the calling thread
+     * @return the pending operation with the same key, or null if the operation has been queued
+     */
+    private AgentOperation enter(final AgentOperation operation, Runnable start) {
+        String containerName = operation.getContainerName();
+        String key = operation.getKey();
+        boolean first;
+        synchronized (lanes) {
+            ContainerLane lane = lanes.get(containerName);
+            if (lane == null) {
+                lane = new ContainerLane();
+                lanes.put(containerName, lane);
+            }
+            AgentOperation leader = lane.find(key);
+            if (leader != null) {
+                logger.debug("Operation " + operation + " follows the pending one");
+                ManagerMetrics.getInstance().operationCoalesced();
+                return leader;
+            }
+            first = lane.active == null;
+            if (first) {
+                lane.active = operation;
+            } else {
+                lane.waiting.add(new Turn(operation, start));
+            }
+        }
+        // the lane is held until the last step or agent task of the operation ends, even when it is cancelled
+        operation.whenSettled(new Runnable() {
+            public void run() {
+                leave(operation);
+            }
+        });
+        if (first) {
+            start.run();
+        }
+        return null;
+    }
+
+    /**
+     * Remove an ended operation from the lane of its container and start the next one
+     * @param operation the ended operation
+     */
+    private void leave(AgentOperation operation) {
+        String containerName = operation.getContainerName();
+        Turn next = null;
+        synchronized (lanes) {
+            ContainerLane lane = lanes.get(containerName);
+            if (lane == null) {
+                return;
+            }
+            if (lane.active == operation) {
+                next = lane.waiting.poll();
+                lane.active = next == null ? null : next.operation;
+            } else {
+                for (Iterator<Turn> i = lane.waiting.iterator(); i.hasNext();) {
+                    if (i.next().operation == operation) {
+                        i.remove();
+                    }
+                }
+            }
+            if (lane.active == null) {
+                lanes.remove(containerName);
+            }
+        }
+        if (next != null) {
+            next.start.run();
+        }
+    }
+
+    /**
+     * Schedule the next step of an operation
+     * @param operation the operation
+     */
+    private void schedule(final AgentOperation operation) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    runStep(operation);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            operation.fail(new ContainerManagerBeanException("Container manager stopped, operation " + operation
+                    + " aborted", e));
+        }
+    }
+
+    /**
+     * Run the next step of an operation and track its agent task
+     * @param operation the operation
+     */
+    private void runStep(final AgentOperation operation) {
+        if (operation.isDone()) {
+            return;
+        }
+        // don't hold a thread of the pool while the agent is saturated
+        String apiUrl = operation.getApiUrl();
+        if (apiUrl != null && scheduler.isSaturated(apiUrl)) {
+            scheduler.whenAvailable(apiUrl, new Runnable() {
+                public void run() {
+                    schedule(operation);
+                }
+            });
+            return;
+        }
+        if (!operation.startWork()) {
+            // cancelled
+            return;
+        }
+        Task task;
+        String previousCaller = AgentScheduler.setCaller(operation.getContainerName());
+        try {
+            task = stepRunner.run(operation);
+        } catch (ContainerManagerBeanException e) {
+            logger.error("Operation " + operation + " failed", e);
+            operation.fail(e);
+            operation.endWork();
+            return;
+        } catch (RuntimeException e) {
+            logger.error("Operation " + operation + " failed", e);
+            operation.fail(e);
+            operation.endWork();
+            return;
+        } finally {
+            AgentScheduler.setCaller(previousCaller);
+        }
+        if (task == null) {
+            operation.complete();
+            operation.endWork();
+            return;
+        }
+        operation.setState(OperationState.TASK_SUBMITTED);
+        taskTracker.track(operation.getApiUrl(), task, new TaskTracker.TaskListener() {
+            public void taskCompleted(Task task) {
+                operation.setState(OperationState.TASK_COMPLETED);
+                operation.endWork();
+                schedule(operation);
+            }
+            public void taskFailed(ContainerManagerBeanException e) {
+                logger.error("Operation " + operation + " failed", e);
+                operation.fail(e);
+                operation.endWork();
+            }
+        });
+    }
+
+    /**
+     * Operations of a container
+     */
+    private static final class ContainerLane {
+
+        /**
+         * The running operation
+         */
+        private AgentOperation active;
+
+        /**
+         * Operations waiting for their turn
+         */
+        private final LinkedList<Turn> waiting = new LinkedList<Turn>();
+
+        /**
+         * Only the last operation of the lane can be joined: joining an earlier one would
+         * skip the operations queued after it, e.g. a start joining a start followed by a stop.
+         * @param key key of an operation
+         * @return the last operation of the lane if it has this key, null otherwise
+         */
+        AgentOperation find(String key) {
+            if (!waiting.isEmpty()) {
+                AgentOperation last = waiting.getLast().operation;
+                return last.getKey().equals(key) ? last : null;
+            }
+            if (active != null && !active.isDone() && active.getKey().equals(key)) {
+                return active;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An operation waiting for its turn
+     */
+    private static final class Turn {
+
+        /**
+         * The operation
+         */
+        private final AgentOperation operation;
+
+        /**
+         * Starts the operation
+         */
+        private final Runnable start;
+
+        /**
+         * @param operation the operation
+         * @param start starts the operation
+         */
+        Turn(AgentOperation operation, Runnable start) {
+            this.operation = operation;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocates the ports of the containers, by IaaS compute.
+ * The port range of a compute is split in blocks of the same size, tracked by a bitmap:
+ * a container owns a run of consecutive blocks, from its first port, and its connectors take pairs of ports
+ * (port, redirect port) within them, after the first ports of the container which are left to its topology.
+ * A connector which finds no free pair takes one more block, anywhere.
+ * The first port and the range of a container are recorded in the SR with the ports of its
+ * connectors, and the allocations of a compute are rebuilt from them the first time it is used.
+ */
+final class PortAllocator {
+
+    /**
+     * Shared instance
+     */
+    private static final PortAllocator INSTANCE = new PortAllocator();
+
+    /**
+     * First port of the range
+     */
+    private final int minPort = ManagerConfig.getInt("ports.min", 10000);
+
+    /**
+     * Last port of the range, excluded
+     */
+    private final int maxPort = ManagerConfig.getInt("ports.max", 60000);
+
+    /**
+     * Number of ports of a block, even so that a block holds whole pairs
+     */
+    private final int blockSize = Math.max(2, (ManagerConfig.getInt("ports.blockSize", 10) + 1) & ~1);
+
+    /**
+     * Number of ports given to a container created without port range
+     */
+    private final int defaultRange = ManagerConfig.getInt("ports.defaultRange", 10);
+
+    /**
+     * Number of ports at the start of a container left to its topology, even so that the connectors
+     * take whole pairs
+     */
+    private final int topologyPorts = (ManagerConfig.getInt("ports.topology", 2) + 1) & ~1;
+
+    /**
+     * Ports by compute key
+     */
+    private final Map<String, ComputePorts> computes = new HashMap<String, ComputePorts>();
+
+    /**
+     * Ports of the containers by container name
+     */
+    private final Map<String, ComputePorts> computesByContainer = new HashMap<String, ComputePorts>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private PortAllocator() {
+    }
+
+    /**
+     * @return the shared allocator
+     */
+    static PortAllocator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param computeKey key of the compute
+     * @return true if the allocations of the compute are known
+     */
+    synchronized boolean isLoaded(String computeKey) {
+        return computes.containsKey(computeKey);
+    }
+
+    /**
+     * Rebuild the allocations of a compute, unless they are already known
+     * @param computeKey key of the compute
+     * @param basesByContainer first port of the containers by container name, missing for the containers
+     * created before the first port was recorded
+     * @param portsByContainer ports of the containers by container name: their ranges and their connectors
+     */
+    synchronized void load(String computeKey, Map<String, Integer> basesByContainer,
+            Map<String, ? extends Collection<Integer>> portsByContainer) {
+        if (computes.containsKey(computeKey)) {
+            return;
+        }
+        ComputePorts compute = new ComputePorts();
+        computes.put(computeKey, compute);
+        for (Map.Entry<String, ? extends Collection<Integer>> entry : portsByContainer.entrySet()) {
+            for (Integer port : entry.getValue()) {
+                if (port != null && port >= minPort && port < maxPort) {
+                    compute.take(entry.getKey(), (port - minPort) / blockSize);
+                }
+            }
+            if (compute.blocksByContainer.containsKey(entry.getKey())) {
+                computesByContainer.put(entry.getKey(), compute);
+                Integer base = basesByContainer.get(entry.getKey());
+                if (base != null) {
+                    compute.basesByContainer.put(entry.getKey(), base);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserve the blocks of a container, in a single run of consecutive blocks starting at the first port
+     * of the container. A container which already owns blocks is extended after them.
+     * Nothing is reserved if the run cannot be taken as a whole.
+     * @param computeKey key of the compute, loaded
+     * @param containerName Name of the container
+     * @param portRange number of ports needed by the container, null for the default
+     * @return the first port of the container
+     * @throws ContainerManagerBeanException if the compute has not enough consecutive free ports
+     */
+    synchronized int reserve(String computeKey, String containerName, Integer portRange)
+            throws ContainerManagerBeanException {
+        ComputePorts compute = computes.get(computeKey);
+        int ports = portRange == null || portRange <= 0 ? defaultRange : portRange;
+        int blocks = (ports + blockSize - 1) / blockSize;
+        List<Integer> owned = compute.blocksByContainer.get(containerName);
+        Integer base = compute.basesByContainer.get(containerName);
+        if (owned == null || owned.isEmpty()) {
+            base = minPort + compute.allocate(containerName, blocks) * blockSize;
+        } else {
+            if (base == null) {
+                // loaded without its first port
+                base = minPort + Collections.min(owned) * blockSize;
+            }
+            compute.extend(containerName, (base - minPort) / blockSize, blocks);
+        }
+        compute.basesByContainer.put(containerName, base);
+        computesByContainer.put(containerName, compute);
+        return base;
+    }
+
+    /**
+     * @return number of ports of the blocks given to a container created without port range
+     */
+    int getDefaultRange() {
+        return (defaultRange + blockSize - 1) / blockSize * blockSize;
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @return number of ports owned by the container, 0 if it owns none
+     */
+    synchronized int getRange(String containerName) {
+        ComputePorts compute = computesByContainer.get(containerName);
+        List<Integer> owned = compute == null ? null : compute.blocksByContainer.get(containerName);
+        return owned == null ? 0 : owned.size() * blockSize;
+    }
+
+    /**
+     * Allocate a pair of ports to a connector of a container, out of the ports of its topology.
+     * When the pair takes one more block, which {@link #getRange(String)} tells, the block must be given back
+     * with {@link #releaseBlock(String, int)} if the connector is not created.
+     * @param computeKey key of the compute, loaded
+     * @param containerName Name of the container
+     * @param usedPorts ports of the existing connectors of the container
+     * @return the port of the connector, the redirect port being the next one
+     * @throws ContainerManagerBeanException if the compute has no free ports
+     */
+    synchronized int allocatePair(String computeKey, String containerName, Collection<Integer> usedPorts)
+            throws ContainerManagerBeanException {
+        ComputePorts compute = computes.get(computeKey);
+        List<Integer> owned = compute.blocksByContainer.get(containerName);
+        Integer base = compute.basesByContainer.get(containerName);
+        if (owned != null) {
+            for (int block : owned) {
+                int first = minPort + block * blockSize;
+                for (int port = first; port < first + blockSize; port += 2) {
+                    boolean topology = base != null && port >= base && port < base + topologyPorts;
+                    if (!topology && !usedPorts.contains(port)) {
+                        return port;
+                    }
+                }
+            }
+        }
+        // no free pair, take one more block
+        computesByContainer.put(containerName, compute);
+        return minPort + compute.allocate(containerName, 1) * blockSize;
+    }
+
+    /**
+     * Give back a block taken by {@link #allocatePair(String, String, Collection)} for a connector
+     * which was not created
+     * @param containerName Name of the container
+     * @param port the port of the connector
+     */
+    synchronized void releaseBlock(String containerName, int port) {
+        ComputePorts compute = computesByContainer.get(containerName);
+        if (compute != null) {
+            compute.free(containerName, (port - minPort) / blockSize);
+        }
+    }
+
+    /**
+     * @param computeKey key of the compute, loaded
+     * @return number of containers owning ports on the compute
+     */
+    synchronized int countContainers(String computeKey) {
+        return computes.get(computeKey).blocksByContainer.size();
+    }
+
+    /**
+     * Move the blocks of a renamed container
+     * @param oldName previous name of the container
+     * @param newName new name of the container
+     */
+    synchronized void rename(String oldName, String newName) {
+        ComputePorts compute = computesByContainer.remove(oldName);
+        List<Integer> owned = compute == null ? null : compute.blocksByContainer.remove(oldName);
+        if (owned != null) {
+            computesByContainer.put(newName, compute);
+            compute.blocksByContainer.put(newName, owned);
+            Integer base = compute.basesByContainer.remove(oldName);
+            if (base != null) {
+                compute.basesByContainer.put(newName, base);
+            }
+        }
+    }
+
+    /**
+     * Free the blocks of a removed container
+     * @param containerName Name of the container
+     */
+    synchronized void release(String containerName) {
+        ComputePorts compute = computesByContainer.remove(containerName);
+        if (compute != null) {
+            compute.free(containerName);
+        }
+    }
+
+    /**
+     * Ports of a compute
+     */
+    private final class ComputePorts {
+
+        /**
+         * One bit by block, set if the block is owned
+         */
+        private final long[] bitmap = new long[((maxPort - minPort) / blockSize + 63) / 64];
+
+        /**
+         * Lowest word of the bitmap which may have a free block
+         */
+        private int hint = 0;
+
+        /**
+         * Blocks owned by container name
+         */
+        private final Map<String, List<Integer>> blocksByContainer = new HashMap<String, List<Integer>>();
+
+        /**
+         * First port by container name
+         */
+        private final Map<String, Integer> basesByContainer = new HashMap<String, Integer>();
+
+        /**
+         * Allocate the first run of consecutive free blocks
+         * @param containerName the owner of the blocks
+         * @param count number of blocks
+         * @return the first block of the run
+         * @throws ContainerManagerBeanException if there is no such run
+         */
+        int allocate(String containerName, int count) throws ContainerManagerBeanException {
+            int total = (maxPort - minPort) / blockSize;
+            int run = 0;
+            for (int block = hint * 64; block < total; block++) {
+                if (run == 0 && (block & 63) == 0 && bitmap[block >> 6] == -1L) {
+                    // skip a full word
+                    block += 63;
+                } else if (isTaken(block)) {
+                    run = 0;
+                } else if (++run == count) {
+                    int first = block - count + 1;
+                    for (int b = first; b <= block; b++) {
+                        take(containerName, b);
+                    }
+                    while (hint < bitmap.length && bitmap[hint] == -1L) {
+                        hint++;
+                    }
+                    return first;
+                }
+            }
+            throw new ContainerManagerBeanException("No " + count * blockSize + " consecutive free ports left between "
+                    + minPort + " and " + maxPort + " for the container '" + containerName + "'");
+        }
+
+        /**
+         * Extend the run of blocks of a container
+         * @param containerName the owner of the blocks
+         * @param first the first block of the run
+         * @param count number of blocks of the run
+         * @throws ContainerManagerBeanException if one of the blocks to add is owned by another container
+         */
+        void extend(String containerName, int first, int count) throws ContainerManagerBeanException {
+            List<Integer> owned = blocksByContainer.get(containerName);
+            int total = (maxPort - minPort) / blockSize;
+            for (int block = first; block < first + count; block++) {
+                if (!owned.contains(block) && (block >= total || isTaken(block))) {
+                    throw new ContainerManagerBeanException("The ports after " + (minPort + block * blockSize)
+                            + " are not free, the container '" + containerName + "' cannot get "
+                            + count * blockSize + " ports");
+                }
+            }
+            for (int block = first; block < first + count; block++) {
+                take(containerName, block);
+            }
+        }
+
+        /**
+         * @param block a block
+         * @return true if the block is owned
+         */
+        private boolean isTaken(int block) {
+            return (bitmap[block >> 6] & (1L << (block & 63))) != 0;
+        }
+
+        /**
+         * Mark a block as owned
+         * @param containerName the owner of the block
+         * @param block the block
+         */
+        void take(String containerName, int block) {
+            long mask = 1L << (block & 63);
+            if ((bitmap[block >> 6] & mask) != 0) {
+                return;
+            }
+            bitmap[block >> 6] |= mask;
+            List<Integer> owned = blocksByContainer.get(containerName);
+            if (owned == null) {
+                owned = new ArrayList<Integer>();
+                blocksByContainer.put(containerName, owned);
+            }
+            owned.add(block);
+        }
+
+        /**
+         * Free the blocks of a container
+         * @param containerName the owner of the blocks
+         */
+        void free(String containerName) {
+            List<Integer> owned = blocksByContainer.remove(containerName);
+            basesByContainer.remove(containerName);
+            if (owned == null) {
+                return;
+            }
+            for (int block : owned) {
+                clear(block);
+            }
+        }
+
+        /**
+         * Free one block of a container
+         * @param containerName the owner of the block
+         * @param block the block
+         */
+        void free(String containerName, int block) {
+            List<Integer> owned = blocksByContainer.get(containerName);
+            if (owned != null && owned.remove(Integer.valueOf(block))) {
+                clear(block);
+            }
+        }
+
+        /**
+         * Mark a block as free
+         * @param block the block
+         */
+        private void clear(int block) {
+            bitmap[block >> 6] &= ~(1L << (block & 63));
+            hint = Math.min(hint, block >> 6);
+        }
+    }
+}
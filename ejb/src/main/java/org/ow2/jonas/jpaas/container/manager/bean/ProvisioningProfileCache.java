@@ -0,0 +1,227 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.catalog.api.IPaasCatalogFacade;
+import org.ow2.jonas.jpaas.catalog.api.PaasCatalogException;
+import org.ow2.jonas.jpaas.catalog.api.PaasConfiguration;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the provisioning profiles: the PaaS configurations of the catalog
+ * and their topology files, parsed as {@link Template}s.
+ * Configurations are kept for a time to live. Topologies are reloaded when the
+ * modification time or the size of their file changes. Large topology files are
+ * memory mapped instead of being copied to the heap before decoding.
+ */
+final class ProvisioningProfileCache {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(ProvisioningProfileCache.class);
+
+    /**
+     * Shared instance
+     */
+    private static final ProvisioningProfileCache INSTANCE = new ProvisioningProfileCache();
+
+    /**
+     * Time to live in ms of a configuration of the catalog
+     */
+    private final long configurationTimeToLive = ManagerConfig.getLong("profileCache.configurationTimeToLive", 60000L);
+
+    /**
+     * Size in bytes above which a topology file is memory mapped
+     */
+    private final long mappingThreshold = ManagerConfig.getLong("profileCache.mappingThreshold", 1024L * 1024L);
+
+    /**
+     * Configurations by name
+     */
+    private final ConcurrentMap<String, CachedConfiguration> configurations =
+            new ConcurrentHashMap<String, CachedConfiguration>();
+
+    /**
+     * Topologies by file path
+     */
+    private final ConcurrentMap<String, CachedTopology> topologies = new ConcurrentHashMap<String, CachedTopology>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private ProvisioningProfileCache() {
+    }
+
+    /**
+     * @return the shared cache
+     */
+    static ProvisioningProfileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a configuration of the catalog
+     * @param catalogEjb Catalog facade, used on a miss
+     * @param paasConfigurationName Name of the PaasConfiguration
+     * @return the configuration
+     * @throws PaasCatalogException if the catalog cannot provide the configuration
+     */
+    PaasConfiguration getConfiguration(IPaasCatalogFacade catalogEjb, String paasConfigurationName)
+            throws PaasCatalogException {
+        CachedConfiguration cached = configurations.get(paasConfigurationName);
+        if (cached != null && cached.expiration > System.currentTimeMillis()) {
+            return cached.configuration;
+        }
+        PaasConfiguration configuration = catalogEjb.getPaasConfiguration(paasConfigurationName);
+        if (configuration != null) {
+            configurations.put(paasConfigurationName, new CachedConfiguration(configuration,
+                    System.currentTimeMillis() + configurationTimeToLive));
+        }
+        return configuration;
+    }
+
+    /**
+     * Get the topology of a configuration
+     * @param configuration the configuration
+     * @return the topology template
+     * @throws IOException if the topology file cannot be read
+     */
+    Template getTopology(PaasConfiguration configuration) throws IOException {
+        String path = configuration.getSpecificConfig();
+        File file = new File(path);
+        CachedTopology cached = topologies.get(path);
+        if (cached != null && cached.isValid(file)) {
+            return cached.template;
+        }
+        synchronized (this) {
+            // loaded by another thread meanwhile ?
+            cached = topologies.get(path);
+            if (cached != null && cached.isValid(file)) {
+                return cached.template;
+            }
+            long lastModified = file.lastModified();
+            long length = file.length();
+            logger.debug("Loading topology file '" + path + "' of paas conf '" + configuration.getName() + "'");
+            Template template = new Template(path, read(file));
+            topologies.put(path, new CachedTopology(template, lastModified, length));
+            return template;
+        }
+    }
+
+    /**
+     * Read a file as UTF-8 with NIO
+     * @param file the file
+     * @return the content
+     */
+    private String read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            ByteBuffer buffer;
+            if (size > mappingThreshold) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // read until the end of the file
+                }
+                buffer.flip();
+            }
+            return Template.UTF_8.decode(buffer).toString();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * A cached configuration
+     */
+    private static final class CachedConfiguration {
+
+        /**
+         * The configuration
+         */
+        private final PaasConfiguration configuration;
+
+        /**
+         * Expiration time
+         */
+        private final long expiration;
+
+        /**
+         * @param configuration the configuration
+         * @param expiration Expiration time
+         */
+        CachedConfiguration(PaasConfiguration configuration, long expiration) {
+            this.configuration = configuration;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * A cached topology
+     */
+    private static final class CachedTopology {
+
+        /**
+         * The parsed topology
+         */
+        private final Template template;
+
+        /**
+         * Modification time of the file when loaded
+         */
+        private final long lastModified;
+
+        /**
+         * Size of the file when loaded
+         */
+        private final long length;
+
+        /**
+         * @param template The parsed topology
+         * @param lastModified Modification time of the file when loaded
+         * @param length Size of the file when loaded
+         */
+        CachedTopology(Template template, long lastModified, long length) {
+            this.template = template;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @param file the topology file
+         * @return true if the file has not changed since it was loaded
+         */
+        boolean isValid(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the repository descriptors known to be deployed on each container.
+ * An entry is added after a deployment which used the repository, and is trusted
+ * for a period: after it, the next deployment checks the repository against the
+ * agent again. An entry is dropped when a deployment using it fails, and all the
+ * entries of a container are dropped when the container is removed.
+ */
+final class RepositoryRegistry {
+
+    /**
+     * Shared instance
+     */
+    private static final RepositoryRegistry INSTANCE = new RepositoryRegistry();
+
+    /**
+     * Period in ms during which a repository is trusted without checking the agent
+     */
+    private final long revalidationPeriod = ManagerConfig.getLong("repositoryRegistry.revalidationPeriod", 600000L);
+
+    /**
+     * Validation time of the repositories by name, by container name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> repositories =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private RepositoryRegistry() {
+    }
+
+    /**
+     * @return the shared registry
+     */
+    static RepositoryRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @param repoName Name of the repository
+     * @return true if the repository is known to be deployed on the container and does not need to be checked
+     */
+    boolean isDeployed(String containerName, String repoName) {
+        Map<String, Long> deployed = repositories.get(containerName);
+        if (deployed == null) {
+            return false;
+        }
+        Long validation = deployed.get(repoName);
+        return validation != null && System.currentTimeMillis() - validation < revalidationPeriod;
+    }
+
+    /**
+     * Record a repository checked as deployed on a container
+     * @param containerName Name of the container
+     * @param repoName Name of the repository
+     */
+    void deployed(String containerName, String repoName) {
+        ConcurrentMap<String, Long> deployed = repositories.get(containerName);
+        if (deployed == null) {
+            ConcurrentMap<String, Long> newDeployed = new ConcurrentHashMap<String, Long>();
+            deployed = repositories.putIfAbsent(containerName, newDeployed);
+            if (deployed == null) {
+                deployed = newDeployed;
+            }
+        }
+        deployed.put(repoName, System.currentTimeMillis());
+    }
+
+    /**
+     * Forget a repository, so that the next deployment checks it against the agent
+     * @param containerName Name of the container
+     * @param repoName Name of the repository
+     */
+    void invalidate(String containerName, String repoName) {
+        Map<String, Long> deployed = repositories.get(containerName);
+        if (deployed != null) {
+            deployed.remove(repoName);
+        }
+    }
+
+    /**
+     * Forget all the repositories of a container
+     * @param containerName Name of the container
+     */
+    void clear(String containerName) {
+        repositories.remove(containerName);
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.xml.Server;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.bean.AgentTransport.REST_TYPE;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasJonasContainerFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourcePaasAgentLink;
+import org.ow2.jonas.jpaas.sr.facade.vo.JonasVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasResourceVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import com.sun.jersey.api.client.GenericType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings the state of the JOnAS containers in the System Representation in line with their agents.
+ * Every interval, each agent is asked for the status of all its servers in a single request,
+ * at a random time within the jitter window so that the agents are not all queried at once.
+ * Only the containers whose state changed are written back to the SR, together.
+ * The containers with a pending operation are left to the operation.
+ */
+final class StateReconciler {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(StateReconciler.class);
+
+    /**
+     * Shared instance
+     */
+    private static final StateReconciler INSTANCE = new StateReconciler();
+
+    /**
+     * Caller name of the reconciliation requests
+     */
+    static final String RECONCILER = "#reconciler";
+
+    /**
+     * Interval in ms between two reconciliations of an agent, 0 to disable them
+     */
+    private final long interval = ManagerConfig.getLong("reconciler.interval", 300000L);
+
+    /**
+     * Window in ms over which the reconciliations of the agents are spread
+     */
+    private final long jitter = Math.min(ManagerConfig.getLong("reconciler.jitter", 60000L), interval);
+
+    /**
+     * Status list returned by the agents
+     */
+    private static final GenericType<List<Server>> SERVER_LIST = new GenericType<List<Server>>() {
+    };
+
+    /**
+     * Source of the jitter
+     */
+    private final Random random = new Random();
+
+    /**
+     * Thread running the reconciliations, null until started
+     */
+    private volatile ScheduledExecutorService scheduler = null;
+
+    /**
+     * Lists the agents and reconciles them in a transaction
+     */
+    private volatile ContainerMaintenance maintenance;
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private StateReconciler() {
+    }
+
+    /**
+     * @return the shared reconciler
+     */
+    static StateReconciler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start the periodic reconciliations, unless they are already started or disabled
+     * @param maintenance lists the agents and reconciles them in a transaction
+     */
+    synchronized void start(ContainerMaintenance maintenance) {
+        if (scheduler != null || interval <= 0) {
+            return;
+        }
+        this.maintenance = maintenance;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jpaas-state-reconciler"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                scheduleAgents();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        logger.debug("State reconciliation started, interval=" + interval + " ms");
+    }
+
+    /**
+     * Stop the reconciliations
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            maintenance = null;
+        }
+    }
+
+    /**
+     * Schedule the reconciliation of each agent within the jitter window
+     */
+    private void scheduleAgents() {
+        ScheduledExecutorService scheduler = this.scheduler;
+        final ContainerMaintenance maintenance = this.maintenance;
+        if (scheduler == null || maintenance == null) {
+            return;
+        }
+        try {
+            for (final PaasAgentVO agent : maintenance.getAgents()) {
+                long delay = jitter > 0 ? (long) (random.nextDouble() * jitter) : 0;
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            maintenance.reconcile(agent);
+                        } catch (RuntimeException e) {
+                            logger.error("Cannot reconcile the containers of agent '" + agent.getName() + "'", e);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // stopped meanwhile
+        } catch (RuntimeException e) {
+            logger.error("Cannot list the agents to reconcile", e);
+        }
+    }
+
+    /**
+     * Reconcile the containers of an agent
+     * @param agent the agent
+     * @param srJonasAgentLinkEjb SR facade jonas - agent link
+     * @param srJonasContainerEjb SR facade jonas container
+     * @return number of containers whose state changed
+     */
+    int reconcile(PaasAgentVO agent, ISrPaasResourcePaasAgentLink srJonasAgentLinkEjb,
+            ISrPaasJonasContainerFacade srJonasContainerEjb) {
+        String previousCaller = AgentScheduler.setCaller(RECONCILER);
+        try {
+            List<Server> servers = AgentTransport.getInstance().sendRequestWithReply(
+                    REST_TYPE.GET,
+                    agent.getApiUrl(),
+                    ContainerManagerBean.CONTEXT + "/server",
+                    null,
+                    SERVER_LIST);
+            Map<String, String> statusByName = new HashMap<String, String>();
+            if (servers != null) {
+                for (Server server : servers) {
+                    statusByName.put(server.getName(), server.getStatus());
+                }
+            }
+
+            List<JonasVO> changed = new ArrayList<JonasVO>();
+            for (PaasResourceVO paasResourceVO : srJonasAgentLinkEjb.findPaasResourcesByAgent(agent.getId())) {
+                if (!(paasResourceVO instanceof JonasVO)) {
+                    continue;
+                }
+                JonasVO jonasContainer = (JonasVO) paasResourceVO;
+                String status = statusByName.get(ContainerManagerBean.getServerName(jonasContainer));
+                if (status == null || status.equals(jonasContainer.getState())
+                        || OperationExecutor.getInstance().isPending(jonasContainer.getName())) {
+                    continue;
+                }
+                logger.debug("Container '" + jonasContainer.getName() + "' is " + status + " instead of "
+                        + jonasContainer.getState());
+                jonasContainer.setState(status);
+                changed.add(jonasContainer);
+            }
+
+            for (JonasVO jonasContainer : changed) {
+                srJonasContainerEjb.updateJonasContainer(jonasContainer);
+                ContainerCache.getInstance().invalidate(jonasContainer.getName());
+            }
+            ManagerMetrics.getInstance().statesReconciled(changed.size());
+            if (!changed.isEmpty()) {
+                logger.info("State of " + changed.size() + " containers of agent '" + agent.getName()
+                        + "' reconciled");
+            }
+            return changed.size();
+        } catch (ContainerManagerBeanException e) {
+            logger.debug("Cannot reconcile the containers of agent '" + agent.getName() + "' - e=" + e);
+        } catch (RuntimeException e) {
+            logger.error("Cannot reconcile the containers of agent '" + agent.getName() + "'", e);
+        } finally {
+            AgentScheduler.setCaller(previousCaller);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,683 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.task.Status;
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.bean.AgentTransport.REST_TYPE;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the completion of the asynchronous tasks of the agents.
+ * All the tasks awaited on the same agent are polled by a single loop,
+ * each task with its own adaptive backoff: the first check is done after
+ * a few milliseconds, then the interval grows up to a maximum.
+ * The tasks due at the same time are checked in parallel on the tracker threads, within the request
+ * permits of the agent, and a failed check is retried with the same backoff up to a number of errors.
+ * Agents may also notify the changes of their tasks with {@link #taskStateChanged(String, long, String)}:
+ * a notified task is checked at once on its agent, and the tasks of an agent which notified recently
+ * are only polled now and then, as a fallback.
+ */
+final class TaskTracker {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(TaskTracker.class);
+
+    /**
+     * Shared instance
+     */
+    private static final TaskTracker INSTANCE = new TaskTracker();
+
+    /**
+     * Delay in ms before the first check of a task
+     */
+    private final long initialDelay = ManagerConfig.getLong("tracker.initialDelay", 20L);
+
+    /**
+     * Maximum interval in ms between two checks of a task
+     */
+    private final long maxInterval = ManagerConfig.getLong("tracker.maxInterval", 2000L);
+
+    /**
+     * Maximum time in ms waited for the end of a task
+     */
+    private final long maxTaskWait = ManagerConfig.getLong("tracker.maxTaskWait", 1800000L);
+
+    /**
+     * Number of checks of a task failing in a row after which the task is considered as failed
+     */
+    private final int maxPollErrors = Math.max(1, ManagerConfig.getInt("tracker.maxPollErrors", 5));
+
+    /**
+     * Interval in ms between two checks of a task of an agent notifying the end of its tasks
+     */
+    private final long pushFallbackInterval = ManagerConfig.getLong("tracker.pushFallbackInterval", 30000L);
+
+    /**
+     * Time in ms after the last notification of an agent after which its tasks are polled at the normal pace
+     */
+    private final long pushExpiry = ManagerConfig.getLong("tracker.pushExpiry", 600000L);
+
+    /**
+     * Factor applied to the interval after each check
+     */
+    private static final int BACKOFF_FACTOR = 2;
+
+    /**
+     * Maximum number of notified tasks kept by agent until they are tracked
+     */
+    private static final int MAX_NOTIFIED_TASKS = 256;
+
+    /**
+     * Pollers by agent API url
+     */
+    private final ConcurrentMap<String, AgentPoller> pollers = new ConcurrentHashMap<String, AgentPoller>();
+
+    /**
+     * Threads running the polling loops
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private TaskTracker() {
+        scheduler = Executors.newScheduledThreadPool(ManagerConfig.getInt("tracker.threads", 4),
+                new DaemonThreadFactory("jpaas-task-tracker"));
+    }
+
+    /**
+     * @return the shared tracker
+     */
+    static TaskTracker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Notified when a tracked task ends
+     */
+    interface TaskListener {
+
+        /**
+         * @param task the task in SUCCESS state
+         */
+        void taskCompleted(Task task);
+
+        /**
+         * @param e the error of the task or of its polling
+         */
+        void taskFailed(ContainerManagerBeanException e);
+    }
+
+    /**
+     * Track a task without blocking. The listener is called from a tracker thread,
+     * or directly if the task is already ended.
+     * @param apiUrl Api URL of the Agent
+     * @param task the task returned by the agent
+     * @param listener the listener to notify
+     */
+    void track(String apiUrl, Task task, TaskListener listener) {
+        if (notifyIfEnded(task, listener)) {
+            ManagerMetrics.getInstance().taskEnded(0);
+            return;
+        }
+        if (scheduler.isShutdown()) {
+            listener.taskFailed(new ContainerManagerBeanException("Container manager stopped, task " + task.getId()
+                    + " of agent '" + apiUrl + "' not tracked"));
+            return;
+        }
+        getPoller(apiUrl).add(task, listener);
+    }
+
+    /**
+     * Stop the polling threads. The listeners of the tracked tasks are notified of the failure.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+        for (AgentPoller poller : pollers.values()) {
+            poller.abort("Container manager stopped");
+        }
+        pollers.clear();
+    }
+
+    /**
+     * Stop tracking the tasks of an agent, e.g. when the agent is removed. Their listeners are notified of the
+     * failure.
+     * @param apiUrl Api URL of the Agent
+     */
+    void release(String apiUrl) {
+        AgentPoller poller = pollers.remove(apiUrl);
+        if (poller != null) {
+            poller.abort("Agent released");
+        }
+    }
+
+    /**
+     * Stop notifying a listener of a task. The task stays tracked until it ends, so that its task slot is released.
+     * @param apiUrl Api URL of the Agent
+     * @param task the task
+     * @param listener the listener
+     */
+    void untrack(String apiUrl, Task task, TaskListener listener) {
+        AgentPoller poller = pollers.get(apiUrl);
+        if (poller != null) {
+            poller.remove(String.valueOf(task.getId()), listener);
+        }
+    }
+
+    /**
+     * A task of an agent changed of state. The task is checked on the agent without waiting for its next check:
+     * the notification is not trusted for the status itself. Agents without tracked tasks are ignored.
+     * @param apiUrl Api URL of the Agent
+     * @param taskId id of the task
+     * @param status the new status of the task
+     */
+    void taskStateChanged(String apiUrl, long taskId, String status) {
+        AgentPoller poller = pollers.get(apiUrl);
+        if (poller == null) {
+            return;
+        }
+        Task task = new Task();
+        task.setId(taskId);
+        task.setStatus(status);
+        if (!isRunning(task)) {
+            poller.notified(String.valueOf(taskId));
+        }
+    }
+
+    /**
+     * @param apiUrl Api URL of the Agent
+     * @return the poller of the agent
+     */
+    private AgentPoller getPoller(String apiUrl) {
+        AgentPoller poller = pollers.get(apiUrl);
+        if (poller == null) {
+            AgentPoller newPoller = new AgentPoller(apiUrl);
+            poller = pollers.putIfAbsent(apiUrl, newPoller);
+            if (poller == null) {
+                poller = newPoller;
+            }
+        }
+        return poller;
+    }
+
+    /**
+     * Wait until a task is ended
+     * @param apiUrl Api URL of the Agent
+     * @param task the task returned by the agent
+     * @return the task in SUCCESS state
+     * @throws ContainerManagerBeanException if the task is in ERROR
+     */
+    Task waitUntilCompleted(String apiUrl, Task task) throws ContainerManagerBeanException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Task[] result = new Task[1];
+        final ContainerManagerBeanException[] error = new ContainerManagerBeanException[1];
+        TaskListener listener = new TaskListener() {
+            public void taskCompleted(Task task) {
+                result[0] = task;
+                latch.countDown();
+            }
+            public void taskFailed(ContainerManagerBeanException e) {
+                error[0] = e;
+                latch.countDown();
+            }
+        };
+        track(apiUrl, task, listener);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            untrack(apiUrl, task, listener);
+            throw new ContainerManagerBeanException("Interrupted while waiting for task " + task.getId() + " of agent '"
+                    + apiUrl + "'", e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result[0];
+    }
+
+    /**
+     * @param task a task returned by an agent
+     * @return true if the task is neither in SUCCESS nor in ERROR state
+     */
+    static boolean isRunning(Task task) {
+        return !task.getStatus().equals(Status.SUCCESS.toString())
+                && !task.getStatus().equals(Status.ERROR.toString());
+    }
+
+    /**
+     * @param task the task
+     * @param listener the listener
+     * @return true if the task is ended and the listener has been notified
+     */
+    private static boolean notifyIfEnded(Task task, TaskListener listener) {
+        if (task.getStatus().equals(Status.SUCCESS.toString())) {
+            listener.taskCompleted(task);
+            return true;
+        }
+        if (task.getStatus().equals(Status.ERROR.toString())) {
+            listener.taskFailed(new ContainerManagerBeanException("Error on JOnAS agent task, id=" + task.getId()));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A task waiting for completion
+     */
+    private final class PendingTask {
+
+        /**
+         * Task id
+         */
+        private final String id;
+
+        /**
+         * Listeners of the task
+         */
+        private final List<TaskListener> listeners = new ArrayList<TaskListener>();
+
+        /**
+         * Number of checks done
+         */
+        private int polls = 0;
+
+        /**
+         * Number of checks failed in a row
+         */
+        private int errors = 0;
+
+        /**
+         * Interval before the next check
+         */
+        private long interval = initialDelay;
+
+        /**
+         * Time of the next check
+         */
+        private long nextCheck;
+
+        /**
+         * Time after which the task is not awaited anymore
+         */
+        private final long deadline = System.currentTimeMillis() + maxTaskWait;
+
+        /**
+         * @param id the task id
+         * @param firstDelay delay before the first check
+         */
+        PendingTask(String id, long firstDelay) {
+            this.id = id;
+            this.nextCheck = System.currentTimeMillis() + firstDelay;
+        }
+
+        /**
+         * Compute the time of the next check
+         * @param now the current time
+         * @param pushing true if the agent notifies the end of its tasks
+         */
+        void backoff(long now, boolean pushing) {
+            interval = Math.min(interval * BACKOFF_FACTOR, maxInterval);
+            nextCheck = now + (pushing ? pushFallbackInterval : interval);
+        }
+    }
+
+    /**
+     * Polling loop of an agent
+     */
+    private final class AgentPoller implements Runnable {
+
+        /**
+         * Api URL of the agent
+         */
+        private final String apiUrl;
+
+        /**
+         * Tasks to poll by id
+         */
+        private final Map<String, PendingTask> tasks = new HashMap<String, PendingTask>();
+
+        /**
+         * Next run of the loop
+         */
+        private ScheduledFuture<?> next = null;
+
+        /**
+         * Time of the next run of the loop
+         */
+        private long nextRun = Long.MAX_VALUE;
+
+        /**
+         * True while the loop is running
+         */
+        private boolean running = false;
+
+        /**
+         * Time of the last notification of the agent
+         */
+        private volatile long lastNotification = 0;
+
+        /**
+         * Ids of the tasks notified before being tracked
+         */
+        private final Map<String, Boolean> notifiedTasks = new LinkedHashMap<String, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_NOTIFIED_TASKS;
+            }
+        };
+
+        /**
+         * @param apiUrl Api URL of the agent
+         */
+        AgentPoller(String apiUrl) {
+            this.apiUrl = apiUrl;
+        }
+
+        /**
+         * Add a task to the loop
+         * @param task the task
+         * @param listener its listener
+         */
+        void add(Task task, TaskListener listener) {
+            String id = String.valueOf(task.getId());
+            synchronized (this) {
+                boolean notified = notifiedTasks.remove(id) != null;
+                PendingTask pending = tasks.get(id);
+                if (pending == null) {
+                    pending = new PendingTask(id, notified ? 0 : isPushing() ? pushFallbackInterval : initialDelay);
+                    tasks.put(id, pending);
+                } else if (notified) {
+                    pending.nextCheck = System.currentTimeMillis();
+                }
+                pending.listeners.add(listener);
+                schedule(pending.nextCheck);
+            }
+        }
+
+        /**
+         * Remove a listener of a task
+         * @param id the task id
+         * @param listener the listener
+         */
+        synchronized void remove(String id, TaskListener listener) {
+            PendingTask pending = tasks.get(id);
+            if (pending != null) {
+                pending.listeners.remove(listener);
+            }
+        }
+
+        /**
+         * @return true if the agent notifies the end of its tasks
+         */
+        private boolean isPushing() {
+            return System.currentTimeMillis() - lastNotification < pushExpiry;
+        }
+
+        /**
+         * A task changed of state, check it now
+         * @param id the task id
+         */
+        synchronized void notified(String id) {
+            PendingTask pending = tasks.get(id);
+            if (pending == null) {
+                // the task may not be tracked yet
+                notifiedTasks.put(id, Boolean.TRUE);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            lastNotification = now;
+            pending.nextCheck = now;
+            schedule(now);
+        }
+
+        /**
+         * Schedule the loop, unless it is already scheduled earlier
+         * @param time the time of the run
+         */
+        private void schedule(long time) {
+            if (running || time >= nextRun) {
+                return;
+            }
+            if (next != null) {
+                next.cancel(false);
+            }
+            nextRun = time;
+            try {
+                next = scheduler.schedule(this, Math.max(0, time - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped, the tasks are aborted by shutdown
+                next = null;
+            }
+        }
+
+        /**
+         * Stop tracking the tasks, failing them
+         * @param reason why the tasks are not tracked anymore
+         */
+        void abort(String reason) {
+            List<PendingTask> aborted;
+            synchronized (this) {
+                aborted = new ArrayList<PendingTask>(tasks.values());
+                tasks.clear();
+                if (next != null) {
+                    next.cancel(false);
+                    next = null;
+                }
+                nextRun = Long.MAX_VALUE;
+            }
+            for (PendingTask pending : aborted) {
+                end(pending, null, new ContainerManagerBeanException(reason + ", task " + pending.id
+                        + " of agent '" + apiUrl + "' not tracked anymore"));
+            }
+        }
+
+        /**
+         * Check the due tasks
+         */
+        public void run() {
+            String previousCaller = AgentScheduler.setCaller(AgentScheduler.POLLER);
+            try {
+                poll();
+            } finally {
+                AgentScheduler.setCaller(previousCaller);
+            }
+        }
+
+        /**
+         * Check the due tasks and schedule the next run
+         */
+        private void poll() {
+            List<PendingTask> due = new ArrayList<PendingTask>();
+            synchronized (this) {
+                running = true;
+                next = null;
+                nextRun = Long.MAX_VALUE;
+                long now = System.currentTimeMillis();
+                for (PendingTask pending : tasks.values()) {
+                    if (pending.nextCheck <= now) {
+                        due.add(pending);
+                    }
+                }
+            }
+
+            try {
+                checkAll(due);
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    long first = Long.MAX_VALUE;
+                    for (PendingTask pending : tasks.values()) {
+                        first = Math.min(first, pending.nextCheck);
+                    }
+                    if (first != Long.MAX_VALUE) {
+                        schedule(first);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Check tasks in parallel: the checks which no tracker thread has started yet are run by the calling thread,
+         * so that the loop never waits for a busy pool
+         * @param due the tasks to check
+         */
+        private void checkAll(List<PendingTask> due) {
+            List<FutureTask<Void>> checks = new ArrayList<FutureTask<Void>>(due.size());
+            for (int i = 1; i < due.size(); i++) {
+                final PendingTask pending = due.get(i);
+                FutureTask<Void> check = new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                        String previousCaller = AgentScheduler.setCaller(AgentScheduler.POLLER);
+                        try {
+                            check(pending);
+                        } finally {
+                            AgentScheduler.setCaller(previousCaller);
+                        }
+                    }
+                }, null);
+                try {
+                    scheduler.execute(check);
+                } catch (RejectedExecutionException e) {
+                    // stopped, run below
+                }
+                checks.add(check);
+            }
+            if (!due.isEmpty()) {
+                check(due.get(0));
+            }
+            boolean interrupted = false;
+            for (FutureTask<Void> check : checks) {
+                // no-op if the check is already started
+                check.run();
+                while (true) {
+                    try {
+                        check.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        logger.error("Cannot check a task of agent '" + apiUrl + "'", e.getCause());
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Get the state of a task from the agent
+         * @param pending the task
+         */
+        private void check(PendingTask pending) {
+            Task task = null;
+            ContainerManagerBeanException error = null;
+            try {
+                task = AgentTransport.getInstance().sendRequestWithReply(
+                        REST_TYPE.GET,
+                        apiUrl,
+                        ContainerManagerBean.CONTEXT + "/task/" + pending.id,
+                        null,
+                        Task.class);
+            } catch (ContainerManagerBeanException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new ContainerManagerBeanException("Cannot get the JOnAS agent task, id=" + pending.id, e);
+            }
+
+            long now = System.currentTimeMillis();
+            if (error == null && isRunning(task) && now > pending.deadline) {
+                error = new ContainerManagerBeanException("The JOnAS agent task " + pending.id + " of agent '" + apiUrl
+                        + "' is still running after " + maxTaskWait + " ms");
+            }
+
+            synchronized (this) {
+                if (tasks.get(pending.id) != pending) {
+                    // already ended by a notification
+                    return;
+                }
+                pending.polls++;
+                if (error == null && isRunning(task)) {
+                    pending.errors = 0;
+                    pending.backoff(now, isPushing());
+                    return;
+                }
+                if (error != null && ++pending.errors < maxPollErrors && now <= pending.deadline) {
+                    logger.debug("Check " + pending.errors + " of task " + pending.id + " of agent '" + apiUrl
+                            + "' failed, retrying - e=" + error);
+                    pending.backoff(now, false);
+                    return;
+                }
+                tasks.remove(pending.id);
+            }
+            end(pending, task, error);
+        }
+
+        /**
+         * Notify the listeners of an ended task
+         * @param pending the task, removed from the loop
+         * @param task the ended task, or null on error
+         * @param error the error of the task or of its polling, or null
+         */
+        private void end(PendingTask pending, Task task, ContainerManagerBeanException error) {
+            List<TaskListener> listeners;
+            synchronized (this) {
+                listeners = new ArrayList<TaskListener>(pending.listeners);
+            }
+            ManagerMetrics.getInstance().taskEnded(pending.polls);
+            // the task slot taken on submission
+            AgentScheduler.getInstance().releaseTask(apiUrl);
+
+            logger.debug("Task " + pending.id + " of agent '" + apiUrl + "' ended");
+            for (TaskListener listener : listeners) {
+                if (error != null) {
+                    listener.taskFailed(error);
+                } else {
+                    notifyIfEnded(task, listener);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A text template with ${name} placeholders.
+ * The template is parsed once into literal segments, already encoded, and placeholders.
+ * Rendering only appends the segments and the values to a buffer, without any regular expression.
+ * A placeholder without value is rendered as is.
+ */
+final class Template {
+
+    /**
+     * Charset of the templates
+     */
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Start of a placeholder
+     */
+    private static final String PLACEHOLDER_START = "${";
+
+    /**
+     * End of a placeholder
+     */
+    private static final String PLACEHOLDER_END = "}";
+
+    /**
+     * Buffer of each thread, reused between renderings
+     */
+    private static final ThreadLocal<RenderBuffer> BUFFERS = new ThreadLocal<RenderBuffer>() {
+        @Override
+        protected RenderBuffer initialValue() {
+            return new RenderBuffer();
+        }
+    };
+
+    /**
+     * Name of the template
+     */
+    private final String name;
+
+    /**
+     * Literal segments, encoded. There is one more segment than placeholders.
+     */
+    private final byte[][] literals;
+
+    /**
+     * Placeholder names
+     */
+    private final String[] placeholders;
+
+    /**
+     * Placeholders as they appear in the template, encoded
+     */
+    private final byte[][] rawPlaceholders;
+
+    /**
+     * Size of the literal segments
+     */
+    private final int literalSize;
+
+    /**
+     * @param name Name of the template
+     * @param content Content of the template
+     */
+    Template(String name, String content) {
+        this.name = name;
+        List<String> literalList = new ArrayList<String>();
+        List<String> placeholderList = new ArrayList<String>();
+        int from = 0;
+        while (true) {
+            int start = content.indexOf(PLACEHOLDER_START, from);
+            int end = start < 0 ? -1 : content.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                break;
+            }
+            literalList.add(content.substring(from, start));
+            placeholderList.add(content.substring(start + PLACEHOLDER_START.length(), end));
+            from = end + PLACEHOLDER_END.length();
+        }
+        literalList.add(content.substring(from));
+
+        literals = new byte[literalList.size()][];
+        int size = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = literalList.get(i).getBytes(UTF_8);
+            size += literals[i].length;
+        }
+        literalSize = size;
+        placeholders = placeholderList.toArray(new String[placeholderList.size()]);
+        rawPlaceholders = new byte[placeholders.length][];
+        for (int i = 0; i < placeholders.length; i++) {
+            rawPlaceholders[i] = (PLACEHOLDER_START + placeholders[i] + PLACEHOLDER_END).getBytes(UTF_8);
+        }
+    }
+
+    /**
+     * @return the name of the template
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Render the template into the buffer of the current thread.
+     * The buffer is only valid until the next rendering on the same thread.
+     * @param values values of the placeholders
+     * @return the buffer holding the result
+     */
+    RenderBuffer render(Map<String, String> values) {
+        RenderBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        renderTo(values, buffer);
+        return buffer;
+    }
+
+    /**
+     * Render the template as a String
+     * @param values values of the placeholders
+     * @return the result
+     */
+    String renderToString(Map<String, String> values) {
+        return render(values).toString(UTF_8);
+    }
+
+    /**
+     * Render the template into a buffer
+     * @param values values of the placeholders
+     * @param buffer the buffer
+     */
+    void renderTo(Map<String, String> values, RenderBuffer buffer) {
+        buffer.ensureCapacity(buffer.size() + literalSize);
+        for (int i = 0; i < placeholders.length; i++) {
+            buffer.write(literals[i], 0, literals[i].length);
+            String value = values.get(placeholders[i]);
+            if (value == null) {
+                buffer.write(rawPlaceholders[i], 0, rawPlaceholders[i].length);
+            } else {
+                byte[] bytes = value.getBytes(UTF_8);
+                buffer.write(bytes, 0, bytes.length);
+            }
+        }
+        byte[] last = literals[placeholders.length];
+        buffer.write(last, 0, last.length);
+    }
+
+    /**
+     * Growable byte buffer whose content can be read without copy
+     */
+    static final class RenderBuffer extends ByteArrayOutputStream {
+
+        /**
+         * Create a buffer
+         */
+        RenderBuffer() {
+            super(4096);
+        }
+
+        /**
+         * @param capacity the minimum capacity
+         */
+        void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                byte[] newBuf = new byte[Math.max(capacity, buf.length * 2)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+        }
+
+        /**
+         * @return a stream reading the content, without copy
+         */
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        /**
+         * @param charset the charset
+         * @return the content as a String
+         */
+        String toString(Charset charset) {
+            return new String(buf, 0, count, charset);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads and caches the templates used to build the files sent to the agents.
+ * A template is first looked for in the directory given by the
+ * {@code jpaas.container.manager.templates.dir} property, then in the bundle.
+ * Templates read from the file system are reloaded when the file changes.
+ */
+final class TemplateRegistry {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(TemplateRegistry.class);
+
+    /**
+     * Template of the repository files
+     */
+    static final String REPOSITORY = "repository-template.xml";
+
+    /**
+     * Template of the deployment plans
+     */
+    static final String DEPLOYMENT_PLAN = "deployment-plan-template.xml";
+
+    /**
+     * Template of a deployment entry of a deployment plan
+     */
+    static final String DEPLOYMENT = "deployment-template.xml";
+
+    /**
+     * Template of the connectors
+     */
+    static final String CONNECTOR = "connector-template.xml";
+
+    /**
+     * Template of the datasources
+     */
+    static final String DATASOURCE = "datasource-template.xml";
+
+    /**
+     * Shared instance
+     */
+    private static final TemplateRegistry INSTANCE = new TemplateRegistry();
+
+    /**
+     * Directory of the custom templates, may be null
+     */
+    private final String templatesDir = ManagerConfig.getString("templates.dir", null);
+
+    /**
+     * Loaded templates by name
+     */
+    private final ConcurrentMap<String, Entry> templates = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private TemplateRegistry() {
+    }
+
+    /**
+     * @return the shared registry
+     */
+    static TemplateRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a template
+     * @param name Name of the template
+     * @return the template
+     * @throws ContainerManagerBeanException if the template cannot be read
+     */
+    Template get(String name) throws ContainerManagerBeanException {
+        Entry entry = templates.get(name);
+        if (entry != null && !entry.isModified()) {
+            return entry.template;
+        }
+        entry = load(name);
+        templates.put(name, entry);
+        return entry.template;
+    }
+
+    /**
+     * Load a template from the file system or from the bundle
+     * @param name Name of the template
+     * @return the loaded template
+     */
+    private Entry load(String name) throws ContainerManagerBeanException {
+        try {
+            if (templatesDir != null) {
+                File file = new File(templatesDir, name);
+                if (file.isFile()) {
+                    long lastModified = file.lastModified();
+                    logger.debug("Loading template '" + file + "'");
+                    return new Entry(new Template(name, read(new FileInputStream(file))), file, lastModified);
+                }
+            }
+            URL url = TemplateRegistry.class.getClassLoader().getResource(name);
+            if (url == null) {
+                throw new ContainerManagerBeanException("Cannot find the template file '" + name + "' !");
+            }
+            return new Entry(new Template(name, read(url.openStream())), null, 0);
+        } catch (IOException e) {
+            throw new ContainerManagerBeanException("Cannot get the template file '" + name + "' !", e);
+        }
+    }
+
+    /**
+     * Read a stream as UTF-8 and close it
+     * @param inputStream the stream
+     * @return the content
+     */
+    private static String read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), Template.UTF_8);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * A loaded template with its origin
+     */
+    private static final class Entry {
+
+        /**
+         * The template
+         */
+        private final Template template;
+
+        /**
+         * File of the template, null if read from the bundle
+         */
+        private final File file;
+
+        /**
+         * Modification time of the file when loaded
+         */
+        private final long lastModified;
+
+        /**
+         * @param template the template
+         * @param file File of the template, null if read from the bundle
+         * @param lastModified Modification time of the file when loaded
+         */
+        Entry(Template template, File file, long lastModified) {
+            this.template = template;
+            this.file = file;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return true if the file of the template has changed
+         */
+        boolean isModified() {
+            return file != null && file.lastModified() != lastModified;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.management.ObjectName;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Containers created in advance, so that createContainer only has to claim and rename one.
+ * The pools are configured by the {@code warmPool.profiles} parameter, a list of
+ * {@code profile@agent:size} entries separated by commas: each pool keeps {@code size}
+ * containers of the PaasConfiguration {@code profile} on the agent {@code agent}.
+ * The pools are refilled in the background, one container at a time. The pooled containers are recorded
+ * with their pool in the SR, where they are found again after a restart.
+ */
+final class WarmPool {
+
+    /**
+     * The logger
+     */
+    private static Log logger = LogFactory.getLog(WarmPool.class);
+
+    /**
+     * Shared instance
+     */
+    private static final WarmPool INSTANCE = new WarmPool();
+
+    /**
+     * Creates the containers of the pools
+     */
+    interface Provisioner {
+
+        /**
+         * Create a container for a pool
+         * @param containerName Name of the container
+         * @param paasAgentName Name of the PaaS Agent
+         * @param paasConfigurationName Name of the PaasConfiguration
+         * @param pool Name of the pool, to record with the container
+         * @param start True to start the container once created
+         * @throws ContainerManagerBeanException if the container cannot be created
+         */
+        void provision(String containerName, String paasAgentName, String paasConfigurationName, String pool,
+                boolean start) throws ContainerManagerBeanException;
+    }
+
+    /**
+     * True to start the containers of the pools
+     */
+    private final boolean startContainers = ManagerConfig.getBoolean("warmPool.start", false);
+
+    /**
+     * Delay in ms before refilling a pool again after a failure
+     */
+    private final long retryDelay = ManagerConfig.getLong("warmPool.retryDelay", 60000L);
+
+    /**
+     * Prefix of the names of the pooled containers
+     */
+    private final String prefix = ManagerConfig.getString("warmPool.prefix", "jpaas-pool-");
+
+    /**
+     * Pools by key
+     */
+    private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+
+    /**
+     * Counter of the names of the pooled containers
+     */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Thread refilling the pools, null until started
+     */
+    private volatile ScheduledExecutorService refiller = null;
+
+    /**
+     * Creates the containers
+     */
+    private volatile Provisioner provisioner;
+
+    /**
+     * Use {@link #getInstance()}
+     */
+    private WarmPool() {
+        for (String entry : ManagerConfig.getString("warmPool.profiles", "").split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            try {
+                if (at <= 0 || colon < at) {
+                    throw new NumberFormatException();
+                }
+                Pool pool = new Pool(entry.substring(0, at), entry.substring(at + 1, colon),
+                        Integer.parseInt(entry.substring(colon + 1)));
+                pools.put(key(pool.profile, pool.agent), pool);
+            } catch (NumberFormatException e) {
+                logger.error("Invalid warm pool '" + entry + "', expected profile@agent:size");
+            }
+        }
+    }
+
+    /**
+     * @return the shared warm pool
+     */
+    static WarmPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param profile name of the PaasConfiguration
+     * @param agent name of the agent
+     * @return the key of the pool
+     */
+    private static String key(String profile, String agent) {
+        return profile + "@" + agent;
+    }
+
+    /**
+     * Start refilling the pools, unless there is none or they are already started
+     * @param provisioner creates the containers
+     * @param pooled the pools by name of the containers waiting in them, as recorded in the SR
+     */
+    synchronized void start(Provisioner provisioner, final Map<String, String> pooled) {
+        if (refiller != null || pools.isEmpty()) {
+            return;
+        }
+        this.provisioner = provisioner;
+        refiller = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jpaas-warm-pool"));
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            ManagerMetrics.getInstance().register("type=WarmPool,name=" + ObjectName.quote(entry.getKey()),
+                    entry.getValue());
+        }
+        refiller.execute(new Runnable() {
+            public void run() {
+                restore(pooled);
+            }
+        });
+    }
+
+    /**
+     * Take back the containers pooled before a restart, then refill the pools
+     * @param pooled the pools by name of the containers waiting in them
+     */
+    private void restore(Map<String, String> pooled) {
+        for (Map.Entry<String, String> entry : pooled.entrySet()) {
+            Pool pool = pools.get(entry.getValue());
+            if (pool != null) {
+                pool.ready.add(entry.getKey());
+            } else {
+                logger.warn("Container '" + entry.getKey() + "' belongs to the unknown warm pool '"
+                        + entry.getValue() + "'");
+            }
+        }
+        for (Pool pool : pools.values()) {
+            refill(pool, 0);
+        }
+    }
+
+    /**
+     * Stop refilling the pools. Their containers stay pooled, and are found again on the next start.
+     */
+    synchronized void stop() {
+        if (refiller == null) {
+            return;
+        }
+        refiller.shutdownNow();
+        refiller = null;
+        for (Pool pool : pools.values()) {
+            pool.ready.clear();
+        }
+    }
+
+    /**
+     * @param profile name of the PaasConfiguration
+     * @param agent name of the agent
+     * @return true if containers of the profile are pooled on the agent
+     */
+    boolean hasPool(String profile, String agent) {
+        return refiller != null && pools.containsKey(key(profile, agent));
+    }
+
+    /**
+     * Take a container out of a pool
+     * @param profile name of the PaasConfiguration
+     * @param agent name of the agent
+     * @return the name of the container, or null if the pool is empty or doesn't exist
+     */
+    String claim(String profile, String agent) {
+        Pool pool = pools.get(key(profile, agent));
+        if (pool == null || refiller == null) {
+            return null;
+        }
+        String containerName = pool.ready.poll();
+        if (containerName == null) {
+            pool.misses.incrementAndGet();
+        } else {
+            pool.hits.incrementAndGet();
+        }
+        refill(pool, 0);
+        return containerName;
+    }
+
+    /**
+     * Schedule the refill of a pool
+     * @param pool the pool
+     * @param delay delay in ms
+     */
+    private void refill(final Pool pool, long delay) {
+        ScheduledExecutorService refiller = this.refiller;
+        if (refiller == null) {
+            return;
+        }
+        try {
+            refiller.schedule(new Runnable() {
+                public void run() {
+                    fill(pool);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped meanwhile
+        }
+    }
+
+    /**
+     * Create containers until a pool is full
+     * @param pool the pool
+     */
+    private void fill(Pool pool) {
+        while (refiller != null && pool.ready.size() < pool.size) {
+            String containerName = prefix + pool.profile.replaceAll("[^A-Za-z0-9-]", "-") + "-"
+                    + Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-" + counter.incrementAndGet();
+            try {
+                provisioner.provision(containerName, pool.agent, pool.profile, key(pool.profile, pool.agent),
+                        startContainers);
+            } catch (Exception e) {
+                logger.error("Cannot provision a container of the warm pool '" + key(pool.profile, pool.agent)
+                        + "'", e);
+                pool.failures.incrementAndGet();
+                refill(pool, retryDelay);
+                return;
+            }
+            pool.ready.add(containerName);
+            logger.debug("Container '" + containerName + "' added to the warm pool");
+        }
+    }
+
+    /**
+     * A pool of containers of a profile on an agent
+     */
+    private static final class Pool implements WarmPoolMBean {
+
+        /**
+         * Name of the PaasConfiguration
+         */
+        private final String profile;
+
+        /**
+         * Name of the agent
+         */
+        private final String agent;
+
+        /**
+         * Number of containers to keep ready
+         */
+        private final int size;
+
+        /**
+         * Names of the containers ready to be claimed
+         */
+        private final ConcurrentLinkedQueue<String> ready = new ConcurrentLinkedQueue<String>();
+
+        /**
+         * Creations served by the pool
+         */
+        private final AtomicLong hits = new AtomicLong();
+
+        /**
+         * Creations which found the pool empty
+         */
+        private final AtomicLong misses = new AtomicLong();
+
+        /**
+         * Failed provisionings
+         */
+        private final AtomicLong failures = new AtomicLong();
+
+        /**
+         * @param profile Name of the PaasConfiguration
+         * @param agent Name of the agent
+         * @param size Number of containers to keep ready
+         */
+        Pool(String profile, String agent, int size) {
+            this.profile = profile;
+            this.agent = agent;
+            this.size = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getProfile() {
+            return profile;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getAgent() {
+            return agent;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getTargetSize() {
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getReadySize() {
+            return ready.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public double getHitRate() {
+            long total = hits.get() + misses.get();
+            return total == 0 ? 0 : 100.0 * hits.get() / total;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+}
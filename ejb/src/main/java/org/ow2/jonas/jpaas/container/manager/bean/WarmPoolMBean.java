@@ -0,0 +1,65 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * $Id:$
+ */ 
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+/**
+ * A pool of pre-provisioned containers of the {@link WarmPool}, seen through JMX.
+ */
+public interface WarmPoolMBean {
+
+    /**
+     * @return name of the PaasConfiguration of the containers
+     */
+    String getProfile();
+
+    /**
+     * @return name of the agent of the containers
+     */
+    String getAgent();
+
+    /**
+     * @return number of containers the pool is refilled to
+     */
+    int getTargetSize();
+
+    /**
+     * @return number of containers ready to be claimed
+     */
+    int getReadySize();
+
+    /**
+     * @return number of creations served by a container of the pool
+     */
+    long getHits();
+
+    /**
+     * @return number of creations which found the pool empty
+     */
+    long getMisses();
+
+    /**
+     * @return percentage of the creations served by the pool
+     */
+    double getHitRate();
+
+    /**
+     * @return number of containers of the pool which could not be provisioned
+     */
+    long getFailures();
+}
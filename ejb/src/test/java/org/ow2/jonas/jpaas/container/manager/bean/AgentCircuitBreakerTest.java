@@ -0,0 +1,117 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link AgentCircuitBreaker}, with the default configuration: the circuit opens
+ * after 5 consecutive failures and a request is slow after 20s.
+ * The breaker is shared, so each test uses its own agent urls.
+ */
+public class AgentCircuitBreakerTest {
+
+    /**
+     * Duration in ns of a slow request
+     */
+    private static final long SLOW = 30L * 1000 * 1000 * 1000;
+
+    /**
+     * Duration in ns of a fast request
+     */
+    private static final long FAST = 10L * 1000 * 1000;
+
+    /**
+     * The breaker
+     */
+    private final AgentCircuitBreaker breaker = AgentCircuitBreaker.getInstance();
+
+    /**
+     * Consecutive failures open the circuit, and the requests are refused
+     */
+    @Test
+    public void testFailuresOpen() throws Exception {
+        String apiUrl = "http://failures:9000";
+        for (int i = 0; i < 4; i++) {
+            breaker.record(apiUrl, FAST, true, false);
+        }
+        assertEquals(AgentCircuitBreaker.State.CLOSED, breaker.getState(apiUrl));
+        breaker.checkAvailable(apiUrl);
+        breaker.record(apiUrl, FAST, true, false);
+        assertEquals(AgentCircuitBreaker.State.OPEN, breaker.getState(apiUrl));
+        try {
+            breaker.checkAvailable(apiUrl);
+            fail("The request should be refused");
+        } catch (ContainerManagerBeanException e) {
+            // expected
+        }
+        breaker.release(apiUrl);
+    }
+
+    /**
+     * A success resets the count of consecutive failures
+     */
+    @Test
+    public void testSuccessResets() {
+        String apiUrl = "http://resets:9000";
+        for (int i = 0; i < 4; i++) {
+            breaker.record(apiUrl, FAST, true, false);
+        }
+        breaker.record(apiUrl, FAST, false, false);
+        for (int i = 0; i < 4; i++) {
+            breaker.record(apiUrl, FAST, true, false);
+        }
+        assertEquals(AgentCircuitBreaker.State.CLOSED, breaker.getState(apiUrl));
+        breaker.release(apiUrl);
+    }
+
+    /**
+     * Slow requests count as failures
+     */
+    @Test
+    public void testSlowCallsOpen() {
+        String apiUrl = "http://slow:9000";
+        for (int i = 0; i < 5; i++) {
+            breaker.record(apiUrl, SLOW, false, false);
+        }
+        assertEquals(AgentCircuitBreaker.State.OPEN, breaker.getState(apiUrl));
+        breaker.release(apiUrl);
+    }
+
+    /**
+     * Long uploads of deployables don't count as failures, failed ones do
+     */
+    @Test
+    public void testSlowUploads() {
+        String apiUrl = "http://uploads:9000";
+        for (int i = 0; i < 10; i++) {
+            breaker.record(apiUrl, SLOW, false, true);
+        }
+        assertEquals(AgentCircuitBreaker.State.CLOSED, breaker.getState(apiUrl));
+        for (int i = 0; i < 5; i++) {
+            breaker.record(apiUrl, SLOW, true, true);
+        }
+        assertEquals(AgentCircuitBreaker.State.OPEN, breaker.getState(apiUrl));
+        breaker.release(apiUrl);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the {@link AgentScheduler}, with the default configuration: 16 requests at a time per agent,
+ * waited for 60s at most.
+ * The scheduler is shared, so each test uses its own agent urls.
+ */
+public class AgentSchedulerTest {
+
+    /**
+     * Maximum time in s waited for a thread
+     */
+    private static final long TIMEOUT = 10;
+
+    /**
+     * The scheduler
+     */
+    private final AgentScheduler scheduler = AgentScheduler.getInstance();
+
+    /**
+     * The threads waiting for a released agent are refused at once
+     */
+    @Test
+    public void testReleaseWakesWaiters() throws Exception {
+        final String apiUrl = "http://released:9000";
+        String previousCaller = AgentScheduler.setCaller("test");
+        try {
+            for (int i = 0; i < 16; i++) {
+                scheduler.acquireRequest(apiUrl);
+            }
+            assertTrue(scheduler.isSaturated(apiUrl));
+        } finally {
+            AgentScheduler.setCaller(previousCaller);
+        }
+        final Throwable[] error = new Throwable[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                AgentScheduler.setCaller("waiter");
+                try {
+                    scheduler.acquireRequest(apiUrl);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        waiter.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (waiter.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        scheduler.release(apiUrl);
+        waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        assertFalse(waiter.isAlive());
+        assertTrue(error[0] instanceof ContainerManagerBeanException);
+        assertFalse(scheduler.isSaturated(apiUrl));
+    }
+}
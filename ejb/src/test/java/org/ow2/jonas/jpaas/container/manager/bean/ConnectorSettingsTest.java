@@ -0,0 +1,74 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the {@link ConnectorSettings}
+ */
+public class ConnectorSettingsTest {
+
+    /**
+     * The connector values are read by line or separated by commas and semicolons
+     */
+    @Test
+    public void testConnector() {
+        Map<String, String> values = ConnectorSettings.parse("protocol=nio\nmaxThreads=50,keepAlive=false;"
+                + "compression=off").toTemplateValues(10002, 10003);
+        assertEquals("org.apache.coyote.ajp.AjpNioProtocol", values.get("protocol"));
+        assertEquals("50", values.get("maxThreads"));
+        assertEquals("1", values.get("maxKeepAliveRequests"));
+        assertEquals("off", values.get("compression"));
+        assertEquals("10002", values.get("port"));
+        assertEquals("10003", values.get("redirectPort"));
+    }
+
+    /**
+     * The invalid connector values are replaced by the defaults
+     */
+    @Test
+    public void testConnectorDefaults() {
+        Map<String, String> values = ConnectorSettings.parse("protocol=spdy\nmaxThreads=-5\nunknown=1\ngarbage")
+                .toTemplateValues(10002, 10003);
+        assertEquals("AJP/1.3", values.get("protocol"));
+        assertEquals("300", values.get("maxThreads"));
+        assertEquals(values, ConnectorSettings.parse(null).toTemplateValues(10002, 10003));
+    }
+
+    /**
+     * The automatic sizing shares the threads of the compute between its containers
+     */
+    @Test
+    public void testConnectorAutoSizing() {
+        ConnectorSettings settings = ConnectorSettings.parse("sizing=auto\ncpus=2");
+        assertTrue(settings.isAutoSizing());
+        settings.autoSize(4);
+        Map<String, String> values = settings.toTemplateValues(10002, 10003);
+        assertEquals("50", values.get("maxThreads"));
+        assertEquals("100", values.get("acceptCount"));
+        settings.autoSize(100);
+        assertEquals("25", settings.toTemplateValues(10002, 10003).get("maxThreads"));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the {@link KeyValueConfiguration} and {@link DatasourceSettings}
+ */
+public class KeyValueConfigurationTest {
+
+    /**
+     * Pairs are read one by line, blank lines are skipped and values may hold separators
+     */
+    @Test
+    public void testParse() throws Exception {
+        Map<String, String> pairs = KeyValueConfiguration.parse(
+                " url = jdbc:mysql://db:3306/app?a=1;b=2\r\n\npassword=p,w;d=\n", "datasource");
+        assertEquals(2, pairs.size());
+        assertEquals("jdbc:mysql://db:3306/app?a=1;b=2", pairs.get("url"));
+        assertEquals("p,w;d=", pairs.get("password"));
+        assertTrue(KeyValueConfiguration.parse(null, "datasource").isEmpty());
+    }
+
+    /**
+     * A line which is not a pair is rejected
+     */
+    @Test(expected = ContainerManagerBeanException.class)
+    public void testParseInvalid() throws Exception {
+        KeyValueConfiguration.parse("url=jdbc:hsqldb:mem:app\n=value", "datasource");
+    }
+
+    /**
+     * The lenient parsing skips the lines which are not pairs
+     */
+    @Test
+    public void testParseLenient() {
+        Map<String, String> pairs = KeyValueConfiguration.parseLenient("a=1\nnot a pair\n=2\nb=", "connector");
+        assertEquals(2, pairs.size());
+        assertEquals("1", pairs.get("a"));
+        assertEquals("", pairs.get("b"));
+    }
+
+    /**
+     * The datasource values are mapped to the placeholders of the template and escaped
+     */
+    @Test
+    public void testDatasource() throws Exception {
+        DatasourceSettings settings = DatasourceSettings.parse("ds", "jndiName=jdbc/app\n"
+                + "url=jdbc:mysql://db/app?a=1&b=2\ndriver=com.mysql.jdbc.Driver\nmaxPoolSize=50\npassword=a<b");
+        assertEquals("jdbc/app", settings.getJndiName());
+        Map<String, String> values = settings.toTemplateValues();
+        assertEquals("jdbc:mysql://db/app?a=1&amp;b=2", values.get("url"));
+        assertEquals("com.mysql.jdbc.Driver", values.get("classname"));
+        assertEquals("50", values.get("maxconpool"));
+        assertEquals("10", values.get("minconpool"));
+        assertEquals("a&lt;b", values.get("password"));
+    }
+
+    /**
+     * The JNDI name defaults to the name of the datasource
+     */
+    @Test
+    public void testDatasourceDefaultName() throws Exception {
+        assertEquals("ds", DatasourceSettings.parse("ds", "url=jdbc:hsqldb:mem:app\ndriver=org.hsqldb.jdbcDriver")
+                .getJndiName());
+    }
+
+    /**
+     * A datasource needs an url and a driver
+     */
+    @Test(expected = ContainerManagerBeanException.class)
+    public void testDatasourceIncomplete() throws Exception {
+        DatasourceSettings.parse("ds", "url=jdbc:hsqldb:mem:app");
+    }
+
+    /**
+     * An unknown datasource key is rejected
+     */
+    @Test(expected = ContainerManagerBeanException.class)
+    public void testDatasourceUnknownKey() throws Exception {
+        DatasourceSettings.parse("ds", "url=jdbc:hsqldb:mem:app\ndriver=org.hsqldb.jdbcDriver\npoolSize=3");
+    }
+
+    /**
+     * The pool sizes are checked
+     */
+    @Test(expected = ContainerManagerBeanException.class)
+    public void testDatasourceInvalidPool() throws Exception {
+        DatasourceSettings.parse("ds", "url=jdbc:hsqldb:mem:app\ndriver=org.hsqldb.jdbcDriver\n"
+                + "minPoolSize=40\nmaxPoolSize=20");
+    }
+}
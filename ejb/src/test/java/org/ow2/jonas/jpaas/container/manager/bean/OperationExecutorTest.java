@@ -0,0 +1,373 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.jonas.agent.management.api.xml.Task;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+import org.ow2.jonas.jpaas.container.manager.api.OperationState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the container lanes of the {@link OperationExecutor}, with operations without agent task.
+ * The executor is shared, so each test uses its own container names.
+ */
+public class OperationExecutorTest {
+
+    /**
+     * Maximum time in s waited for an operation
+     */
+    private static final long TIMEOUT = 10;
+
+    /**
+     * The executor
+     */
+    private final OperationExecutor executor = OperationExecutor.getInstance();
+
+    /**
+     * Steps run, in order
+     */
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Released when the first step has started
+     */
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * Blocks the steps until it is released
+     */
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    /**
+     * Runs the steps without bean, as the test operations don't use it
+     */
+    private static final OperationExecutor.StepRunner RUNNER = new OperationExecutor.StepRunner() {
+        public Task run(AgentOperation operation) throws ContainerManagerBeanException {
+            return operation.step(null);
+        }
+    };
+
+    /**
+     * An operation of a single step, logging its key
+     */
+    private class TestOperation extends AgentOperation {
+
+        /**
+         * Argument of the operation
+         */
+        private final String argument;
+
+        /**
+         * True to wait for the gate
+         */
+        private final boolean blocking;
+
+        /**
+         * True to fail
+         */
+        private final boolean failing;
+
+        /**
+         * @param name Name of the operation
+         * @param containerName Name of the container
+         * @param argument Argument of the operation
+         * @param blocking true to wait for the gate
+         * @param failing true to fail
+         */
+        TestOperation(String name, String containerName, String argument, boolean blocking, boolean failing) {
+            super(name, containerName);
+            this.argument = argument;
+            this.blocking = blocking;
+            this.failing = failing;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        String getArguments() {
+            return "(" + argument + ")";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+            log.add(getName() + getArguments());
+            started.countDown();
+            if (blocking) {
+                try {
+                    gate.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new ContainerManagerBeanException("Interrupted", e);
+                }
+            }
+            if (failing) {
+                throw new ContainerManagerBeanException("Step of " + this + " failed");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Run the steps of the asynchronous operations
+     */
+    @Before
+    public void start() {
+        executor.start(RUNNER);
+    }
+
+    /**
+     * @param name Name of the operation
+     * @param containerName Name of the container
+     * @param argument Argument of the operation
+     * @return the operation, submitted
+     */
+    private AgentOperation submit(String name, String containerName, String argument) {
+        return executor.submit(new TestOperation(name, containerName, argument, false, false));
+    }
+
+    /**
+     * @param containerName Name of the container
+     * @return an operation blocking the lane of the container until the gate is released, started
+     */
+    private AgentOperation block(String containerName) throws InterruptedException {
+        AgentOperation operation = executor.submit(new TestOperation("block", containerName, "", true, false));
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+        return operation;
+    }
+
+    /**
+     * @param operations operations to wait for
+     */
+    private static void await(AgentOperation... operations) throws Exception {
+        for (AgentOperation operation : operations) {
+            operation.get(TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The operations of a container run one at a time, in submission order
+     */
+    @Test
+    public void testLaneOrder() throws Exception {
+        AgentOperation blocking = block("order");
+        AgentOperation start = submit("start", "order", "");
+        AgentOperation deploy = submit("deploy", "order", "app");
+        AgentOperation stop = submit("stop", "order", "");
+        assertTrue(executor.isPending("order"));
+        assertEquals(OperationState.PENDING, start.getState());
+        assertEquals(Arrays.asList("block()"), log);
+
+        gate.countDown();
+        await(blocking, start, deploy, stop);
+        assertEquals(Arrays.asList("block()", "start()", "deploy(app)", "stop()"), log);
+        assertEquals(OperationState.COMPLETED, stop.getState());
+    }
+
+    /**
+     * The lanes of different containers don't wait for each other
+     */
+    @Test
+    public void testLanesInParallel() throws Exception {
+        AgentOperation blocking = block("parallel-1");
+        AgentOperation other = submit("start", "parallel-2", "");
+        await(other);
+        assertFalse(blocking.isDone());
+        gate.countDown();
+        await(blocking);
+    }
+
+    /**
+     * An operation joins the last queued one doing the same thing, and only the last one
+     */
+    @Test
+    public void testCoalesceWithLast() throws Exception {
+        AgentOperation blocking = block("coalesce");
+        AgentOperation start = submit("start", "coalesce", "");
+        AgentOperation sameStart = submit("start", "coalesce", "");
+        AgentOperation stop = submit("stop", "coalesce", "");
+        AgentOperation restart = submit("start", "coalesce", "");
+
+        gate.countDown();
+        await(blocking, start, sameStart, stop, restart);
+        assertEquals(Arrays.asList("block()", "start()", "stop()", "start()"), log);
+    }
+
+    /**
+     * Operations with other arguments are not joined
+     */
+    @Test
+    public void testNoCoalesceOnArguments() throws Exception {
+        AgentOperation blocking = block("arguments");
+        AgentOperation deploy1 = submit("deploy", "arguments", "app1");
+        AgentOperation deploy2 = submit("deploy", "arguments", "app2");
+
+        gate.countDown();
+        await(blocking, deploy1, deploy2);
+        assertEquals(Arrays.asList("block()", "deploy(app1)", "deploy(app2)"), log);
+    }
+
+    /**
+     * When nothing is queued, an operation joins the running one doing the same thing
+     */
+    @Test
+    public void testCoalesceWithActive() throws Exception {
+        AgentOperation blocking = block("active");
+        AgentOperation sameBlock = submit("block", "active", "");
+        assertFalse(sameBlock.isDone());
+
+        gate.countDown();
+        await(blocking, sameBlock);
+        assertEquals(Arrays.asList("block()"), log);
+    }
+
+    /**
+     * A cancelled operation holds the lane until its step ends
+     */
+    @Test
+    public void testCancelHoldsLane() throws Exception {
+        AgentOperation blocking = block("cancel");
+        AgentOperation next = submit("start", "cancel", "");
+        assertTrue(blocking.cancel(false));
+        assertTrue(blocking.isCancelled());
+        try {
+            next.get(200, TimeUnit.MILLISECONDS);
+            fail("The operation started before the end of the cancelled step");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        gate.countDown();
+        await(next);
+        assertEquals(Arrays.asList("block()", "start()"), log);
+    }
+
+    /**
+     * A failed operation doesn't stop the next ones
+     */
+    @Test
+    public void testFailure() throws Exception {
+        AgentOperation failed = executor.submit(new TestOperation("deploy", "failure", "app", false, true));
+        AgentOperation next = submit("start", "failure", "");
+        try {
+            failed.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("The operation should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ContainerManagerBeanException);
+        }
+        assertEquals(OperationState.FAILED, failed.getState());
+        await(next);
+        assertEquals(Arrays.asList("deploy(app)", "start()"), log);
+    }
+
+    /**
+     * A synchronous operation waits for its turn and runs on the calling thread
+     */
+    @Test
+    public void testExecute() throws Exception {
+        AgentOperation blocking = block("execute");
+        final Thread caller = Thread.currentThread();
+        final Thread[] runner = new Thread[1];
+        AgentOperation operation = new TestOperation("stop", "execute", "", false, false) {
+            @Override
+            Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+                runner[0] = Thread.currentThread();
+                return super.step(bean);
+            }
+        };
+        gate.countDown();
+        executor.execute(operation, RUNNER);
+        assertTrue(blocking.isDone());
+        assertSame(caller, runner[0]);
+        assertEquals(OperationState.COMPLETED, operation.getState());
+        assertEquals(Arrays.asList("block()", "stop()"), log);
+    }
+
+    /**
+     * A synchronous operation following a cancelled one fails with a ContainerManagerBeanException
+     */
+    @Test
+    public void testExecuteFollowsCancelled() throws Exception {
+        AgentOperation blocking = block("follow");
+        AgentOperation leader = submit("start", "follow", "");
+        final Throwable[] error = new Throwable[1];
+        Thread caller = new Thread() {
+            public void run() {
+                try {
+                    executor.execute(new TestOperation("start", "follow", "", false, false), RUNNER);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        caller.start();
+        // waiting for the leader
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (caller.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(leader.cancel(false));
+        caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        assertTrue(error[0] instanceof ContainerManagerBeanException);
+
+        gate.countDown();
+        await(blocking);
+        assertEquals(Arrays.asList("block()"), log);
+    }
+
+    /**
+     * An operation ends VERIFIED only when its result has been read back from the agent, and its followers
+     * end in the same state
+     */
+    @Test
+    public void testVerified() throws Exception {
+        AgentOperation blocking = block("verified");
+        AgentOperation verified = executor.submit(new TestOperation("start", "verified", "", false, false) {
+            @Override
+            Task step(ContainerManagerBean bean) throws ContainerManagerBeanException {
+                verified();
+                return super.step(bean);
+            }
+        });
+        AgentOperation follower = submit("start", "verified", "");
+        gate.countDown();
+        await(blocking, verified, follower);
+        assertEquals(OperationState.COMPLETED, blocking.getState());
+        assertEquals(OperationState.VERIFIED, verified.getState());
+        assertEquals(OperationState.VERIFIED, follower.getState());
+    }
+}
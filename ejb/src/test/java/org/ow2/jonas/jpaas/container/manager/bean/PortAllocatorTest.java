@@ -0,0 +1,208 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+import org.ow2.jonas.jpaas.container.manager.api.ContainerManagerBeanException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link PortAllocator}, with the default configuration: ports from 10000,
+ * blocks of 10 ports, 10 ports by default and 2 ports left to the topology.
+ * The allocator is shared, so each test uses its own compute and container names.
+ */
+public class PortAllocatorTest {
+
+    /**
+     * The allocator
+     */
+    private final PortAllocator allocator = PortAllocator.getInstance();
+
+    /**
+     * @param computeKey key of a compute without allocations
+     */
+    private void loadEmpty(String computeKey) {
+        allocator.load(computeKey, Collections.<String, Integer>emptyMap(),
+                Collections.<String, List<Integer>>emptyMap());
+    }
+
+    /**
+     * Containers get consecutive blocks, sized after their port range
+     */
+    @Test
+    public void testReserve() throws Exception {
+        loadEmpty("reserve");
+        assertEquals(10000, allocator.reserve("reserve", "reserve-1", null));
+        assertEquals(10010, allocator.reserve("reserve", "reserve-2", 25));
+        assertEquals(10040, allocator.reserve("reserve", "reserve-3", 0));
+        assertEquals(10, allocator.getRange("reserve-1"));
+        assertEquals(30, allocator.getRange("reserve-2"));
+        assertEquals(allocator.getDefaultRange(), allocator.getRange("reserve-3"));
+        assertEquals(3, allocator.countContainers("reserve"));
+    }
+
+    /**
+     * Reserving again the ports of a container keeps its first port
+     */
+    @Test
+    public void testReserveAgain() throws Exception {
+        loadEmpty("again");
+        assertEquals(10000, allocator.reserve("again", "again-1", 20));
+        allocator.reserve("again", "again-2", 10);
+        assertEquals(10000, allocator.reserve("again", "again-1", 10));
+        assertEquals(10000, allocator.reserve("again", "again-1", 20));
+        assertEquals(20, allocator.getRange("again-1"));
+    }
+
+    /**
+     * The allocations rebuilt from the System Representation are kept
+     */
+    @Test
+    public void testLoad() throws Exception {
+        Map<String, Integer> bases = new HashMap<String, Integer>();
+        bases.put("load-1", 10020);
+        Map<String, List<Integer>> ports = new HashMap<String, List<Integer>>();
+        ports.put("load-1", Arrays.asList(10020, 10035));
+        allocator.load("load", bases, ports);
+        assertTrue(allocator.isLoaded("load"));
+        assertEquals(20, allocator.getRange("load-1"));
+        assertEquals(10020, allocator.reserve("load", "load-1", 20));
+
+        // a second load is ignored
+        allocator.load("load", bases, Collections.<String, List<Integer>>emptyMap());
+        assertEquals(20, allocator.getRange("load-1"));
+
+        assertEquals(10000, allocator.reserve("load", "load-2", 20));
+        assertEquals(10040, allocator.reserve("load", "load-3", 10));
+    }
+
+    /**
+     * Connectors don't take the ports of the topology nor the used ones,
+     * and take one more block when the container is full
+     */
+    @Test
+    public void testAllocatePair() throws Exception {
+        loadEmpty("pair");
+        allocator.reserve("pair", "pair-1", 10);
+        allocator.reserve("pair", "pair-2", 10);
+        Collection<Integer> used = new HashSet<Integer>();
+        assertEquals(10002, allocator.allocatePair("pair", "pair-1", used));
+        used.add(10002);
+        assertEquals(10004, allocator.allocatePair("pair", "pair-1", used));
+        used.addAll(Arrays.asList(10004, 10006, 10008));
+        assertEquals(10020, allocator.allocatePair("pair", "pair-1", used));
+        assertEquals(20, allocator.getRange("pair-1"));
+
+        // the connector was not created
+        allocator.releaseBlock("pair-1", 10020);
+        assertEquals(10, allocator.getRange("pair-1"));
+        assertEquals(10020, allocator.reserve("pair", "pair-3", 10));
+    }
+
+    /**
+     * A range of several blocks takes consecutive blocks, skipping a free block too small for it
+     */
+    @Test
+    public void testReserveConsecutive() throws Exception {
+        loadEmpty("consecutive");
+        allocator.reserve("consecutive", "consecutive-1", 10);
+        allocator.reserve("consecutive", "consecutive-2", 10);
+        allocator.reserve("consecutive", "consecutive-3", 10);
+        allocator.release("consecutive-2");
+        assertEquals(10030, allocator.reserve("consecutive", "consecutive-4", 20));
+        assertEquals(10010, allocator.reserve("consecutive", "consecutive-5", 10));
+    }
+
+    /**
+     * Nothing is reserved when there are not enough consecutive free ports
+     */
+    @Test
+    public void testReserveTooLarge() throws Exception {
+        loadEmpty("large");
+        allocator.reserve("large", "large-1", 10);
+        try {
+            allocator.reserve("large", "large-2", 50000);
+            fail("The range should not fit");
+        } catch (ContainerManagerBeanException e) {
+            // expected
+        }
+        assertEquals(0, allocator.getRange("large-2"));
+        assertEquals(1, allocator.countContainers("large"));
+        assertEquals(10010, allocator.reserve("large", "large-3", 10));
+    }
+
+    /**
+     * A container is extended after its blocks, and only if the next blocks are free
+     */
+    @Test
+    public void testReserveExtend() throws Exception {
+        loadEmpty("extend");
+        allocator.reserve("extend", "extend-1", 10);
+        allocator.reserve("extend", "extend-2", 10);
+        allocator.release("extend-2");
+        assertEquals(10000, allocator.reserve("extend", "extend-1", 20));
+        assertEquals(20, allocator.getRange("extend-1"));
+        allocator.reserve("extend", "extend-3", 10);
+        try {
+            allocator.reserve("extend", "extend-1", 30);
+            fail("The container should not be extended over another one");
+        } catch (ContainerManagerBeanException e) {
+            // expected
+        }
+        assertEquals(20, allocator.getRange("extend-1"));
+    }
+
+    /**
+     * The blocks of a removed container are reused
+     */
+    @Test
+    public void testRelease() throws Exception {
+        loadEmpty("release");
+        allocator.reserve("release", "release-1", 20);
+        allocator.reserve("release", "release-2", 10);
+        allocator.release("release-1");
+        assertEquals(0, allocator.getRange("release-1"));
+        assertEquals(1, allocator.countContainers("release"));
+        assertEquals(10000, allocator.reserve("release", "release-3", 20));
+    }
+
+    /**
+     * A renamed container keeps its ports
+     */
+    @Test
+    public void testRename() throws Exception {
+        loadEmpty("rename");
+        allocator.reserve("rename", "rename-old", 10);
+        allocator.rename("rename-old", "rename-new");
+        assertEquals(0, allocator.getRange("rename-old"));
+        assertEquals(10, allocator.getRange("rename-new"));
+        assertEquals(10000, allocator.reserve("rename", "rename-new", 10));
+    }
+}
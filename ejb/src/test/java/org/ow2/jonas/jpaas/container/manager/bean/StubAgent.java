@@ -0,0 +1,520 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.agent.management.api.task.Status;
+import org.ow2.jonas.agent.management.api.xml.App;
+import org.ow2.jonas.agent.management.api.xml.Server;
+import org.ow2.jonas.agent.management.api.xml.Task;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process JOnAS agent answering on the loopback interface.
+ * It serves the resources used by the container manager:
+ * <ul>
+ *   <li>{@code PUT|GET|DELETE /jonas-api/server/{name}}</li>
+ *   <li>{@code POST /jonas-api/server/{name}/action/{start|stop}}</li>
+ *   <li>{@code GET /jonas-api/server/{name}/app/{file}}</li>
+ *   <li>{@code POST /jonas-api/server/{name}/app/{file}/action/{deploy|undeploy}}</li>
+ *   <li>{@code GET /jonas-api/task/{id}}</li>
+ * </ul>
+ * The latency of each kind of endpoint, the duration of the tasks, the error rates
+ * and the number of requests served concurrently can be changed at any time.
+ * The servers and applications are kept in memory and change state when their task ends.
+ */
+final class StubAgent implements HttpHandler {
+
+    /**
+     * Kinds of endpoints
+     */
+    enum Endpoint {
+        SERVER, ACTION, APP, DEPLOY, UNDEPLOY, TASK
+    }
+
+    /**
+     * Http ok status
+     */
+    private static final int HTTP_STATUS_OK = 200;
+
+    /**
+     * Http no content status
+     */
+    private static final int HTTP_STATUS_NO_CONTENT = 204;
+
+    /**
+     * Http not found status
+     */
+    private static final int HTTP_STATUS_NOT_FOUND = 404;
+
+    /**
+     * Http internal error status
+     */
+    private static final int HTTP_STATUS_INTERNAL_ERROR = 500;
+
+    /**
+     * Http unavailable status
+     */
+    private static final int HTTP_STATUS_UNAVAILABLE = 503;
+
+    /**
+     * The HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Threads of the HTTP server
+     */
+    private final ExecutorService executor;
+
+    /**
+     * JAXB context of the agent resources
+     */
+    private final JAXBContext jaxbContext;
+
+    /**
+     * Latency in ms by endpoint
+     */
+    private final long[] latencies = new long[Endpoint.values().length];
+
+    /**
+     * Minimum duration in ms of a task
+     */
+    private volatile long minTaskDuration = 0;
+
+    /**
+     * Maximum duration in ms of a task
+     */
+    private volatile long maxTaskDuration = 0;
+
+    /**
+     * Rate of the requests answered by an internal error
+     */
+    private volatile double errorRate = 0;
+
+    /**
+     * Rate of the tasks ending in ERROR
+     */
+    private volatile double taskErrorRate = 0;
+
+    /**
+     * Requests served concurrently, the others are answered as unavailable
+     */
+    private volatile Semaphore concurrency = null;
+
+    /**
+     * Random source of the durations and errors
+     */
+    private final Random random = new Random();
+
+    /**
+     * Last task id
+     */
+    private final AtomicLong taskIds = new AtomicLong();
+
+    /**
+     * Running tasks by id
+     */
+    private final ConcurrentMap<Long, StubTask> tasks = new ConcurrentHashMap<Long, StubTask>();
+
+    /**
+     * State of the servers by name
+     */
+    private final ConcurrentMap<String, String> servers = new ConcurrentHashMap<String, String>();
+
+    /**
+     * State of the applications by server name and file name
+     */
+    private final ConcurrentMap<String, String> apps = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Number of requests served
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Start an agent on a free port
+     */
+    StubAgent() throws IOException, JAXBException {
+        jaxbContext = JAXBContext.newInstance(Task.class, Server.class, App.class);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("stub-agent"));
+        server.setExecutor(executor);
+        server.createContext(ContainerManagerBean.CONTEXT, this);
+        server.start();
+    }
+
+    /**
+     * @return the api url of the agent
+     */
+    String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the agent
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param endpoint kind of endpoint
+     * @param latency latency in ms added before answering
+     */
+    void setLatency(Endpoint endpoint, long latency) {
+        synchronized (latencies) {
+            latencies[endpoint.ordinal()] = latency;
+        }
+    }
+
+    /**
+     * @param latency latency in ms added before answering on all the endpoints
+     */
+    void setLatency(long latency) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            setLatency(endpoint, latency);
+        }
+    }
+
+    /**
+     * The duration of each task is drawn uniformly between the two bounds
+     * @param min minimum duration in ms
+     * @param max maximum duration in ms
+     */
+    void setTaskDuration(long min, long max) {
+        this.minTaskDuration = min;
+        this.maxTaskDuration = Math.max(min, max);
+    }
+
+    /**
+     * @param errorRate rate, between 0 and 1, of the requests answered by an internal error
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param taskErrorRate rate, between 0 and 1, of the tasks ending in ERROR
+     */
+    void setTaskErrorRate(double taskErrorRate) {
+        this.taskErrorRate = taskErrorRate;
+    }
+
+    /**
+     * @param maxConcurrentRequests number of requests served concurrently, 0 for no limit
+     */
+    void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.concurrency = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+    }
+
+    /**
+     * Declare a running server
+     * @param name name of the server
+     */
+    void addServer(String name) {
+        servers.put(name, "RUNNING");
+    }
+
+    /**
+     * @param name name of the server
+     * @return its state or null if it doesn't exist
+     */
+    String getServerState(String name) {
+        return servers.get(name);
+    }
+
+    /**
+     * @return number of requests served
+     */
+    long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handle(HttpExchange exchange) throws IOException {
+        Semaphore limit = concurrency;
+        if (limit != null && !limit.tryAcquire()) {
+            drain(exchange.getRequestBody());
+            exchange.sendResponseHeaders(HTTP_STATUS_UNAVAILABLE, -1);
+            exchange.close();
+            return;
+        }
+        try {
+            requests.incrementAndGet();
+            drain(exchange.getRequestBody());
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath()
+                    .substring(ContainerManagerBean.CONTEXT.length()).replaceAll("/+", "/").split("/");
+
+            Endpoint endpoint = getEndpoint(path);
+            if (endpoint == null) {
+                exchange.sendResponseHeaders(HTTP_STATUS_NOT_FOUND, -1);
+                return;
+            }
+            long latency;
+            synchronized (latencies) {
+                latency = latencies[endpoint.ordinal()];
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            if (errorRate > 0 && nextDouble() < errorRate) {
+                exchange.sendResponseHeaders(HTTP_STATUS_INTERNAL_ERROR, -1);
+                return;
+            }
+
+            Object entity = serve(endpoint, method, path);
+            if (entity == null) {
+                exchange.sendResponseHeaders(HTTP_STATUS_NO_CONTENT, -1);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            jaxbContext.createMarshaller().marshal(entity, body);
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(HTTP_STATUS_OK, body.size());
+            OutputStream out = exchange.getResponseBody();
+            body.writeTo(out);
+            out.close();
+        } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(HTTP_STATUS_UNAVAILABLE, -1);
+        } catch (JAXBException e) {
+            exchange.sendResponseHeaders(HTTP_STATUS_INTERNAL_ERROR, -1);
+        } finally {
+            exchange.close();
+            if (limit != null) {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * @param path segments of the path, the first one being empty
+     * @return the kind of endpoint or null if unknown
+     */
+    private static Endpoint getEndpoint(String[] path) {
+        if (path.length == 3 && "task".equals(path[1])) {
+            return Endpoint.TASK;
+        }
+        if (path.length < 3 || !"server".equals(path[1])) {
+            return null;
+        }
+        switch (path.length) {
+            case 3:
+                return Endpoint.SERVER;
+            case 5:
+                return "action".equals(path[3]) ? Endpoint.ACTION : Endpoint.APP;
+            case 7:
+                if ("deploy".equals(path[6])) {
+                    return Endpoint.DEPLOY;
+                }
+                return "undeploy".equals(path[6]) ? Endpoint.UNDEPLOY : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param endpoint kind of endpoint
+     * @param method HTTP method
+     * @param path segments of the path
+     * @return the response entity, null for no content
+     */
+    private Object serve(Endpoint endpoint, String method, String[] path) {
+        switch (endpoint) {
+            case TASK:
+                StubTask task = tasks.get(Long.valueOf(path[2]));
+                if (task == null) {
+                    return newTask(0, Status.ERROR);
+                }
+                return task.poll();
+            case SERVER:
+                final String serverName = path[2];
+                if ("PUT".equals(method)) {
+                    servers.put(serverName, "CREATING");
+                    return submit(new Runnable() {
+                        public void run() {
+                            servers.put(serverName, "RUNNING");
+                        }
+                    });
+                }
+                if ("DELETE".equals(method)) {
+                    servers.remove(serverName);
+                    return null;
+                }
+                Server server = new Server();
+                server.setName(serverName);
+                String state = servers.get(serverName);
+                server.setStatus(state != null ? state : "RUNNING");
+                return server;
+            case ACTION:
+                final String actionServer = path[2];
+                final String newState = "start".equals(path[4]) ? "RUNNING" : "STOPPED";
+                return submit(new Runnable() {
+                    public void run() {
+                        servers.put(actionServer, newState);
+                    }
+                });
+            case APP:
+                App app = new App();
+                app.setName(path[4]);
+                String appState = apps.get(path[2] + "/" + path[4]);
+                app.setStatus(appState != null ? appState : "NOT_DEPLOYED");
+                return app;
+            default:
+                final String appKey = path[2] + "/" + path[4];
+                final String newAppState = endpoint == Endpoint.DEPLOY ? "DEPLOYED" : "NOT_DEPLOYED";
+                return submit(new Runnable() {
+                    public void run() {
+                        apps.put(appKey, newAppState);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Start a task
+     * @param effect change applied when the task succeeds
+     * @return the task as returned to the client
+     */
+    private Task submit(Runnable effect) {
+        long id = taskIds.incrementAndGet();
+        long duration = minTaskDuration;
+        if (maxTaskDuration > minTaskDuration) {
+            duration += (long) (nextDouble() * (maxTaskDuration - minTaskDuration));
+        }
+        boolean error = taskErrorRate > 0 && nextDouble() < taskErrorRate;
+        StubTask task = new StubTask(id, System.currentTimeMillis() + duration, error, effect);
+        if (duration == 0) {
+            return task.poll();
+        }
+        tasks.put(id, task);
+        return newTask(id, Status.RUNNING);
+    }
+
+    /**
+     * @return a random double between 0 and 1
+     */
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * @param id the task id
+     * @param status the task status
+     * @return the task entity
+     */
+    private static Task newTask(long id, Status status) {
+        Task task = new Task();
+        task.setId(id);
+        task.setStatus(status.toString());
+        return task;
+    }
+
+    /**
+     * Read a request body until its end
+     * @param in the body
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discard the content
+        }
+    }
+
+    /**
+     * A task of the agent
+     */
+    private final class StubTask {
+
+        /**
+         * Task id
+         */
+        private final long id;
+
+        /**
+         * Time at which the task ends
+         */
+        private final long end;
+
+        /**
+         * True if the task ends in ERROR
+         */
+        private final boolean error;
+
+        /**
+         * Change applied when the task succeeds
+         */
+        private Runnable effect;
+
+        /**
+         * @param id Task id
+         * @param end Time at which the task ends
+         * @param error True if the task ends in ERROR
+         * @param effect Change applied when the task succeeds
+         */
+        StubTask(long id, long end, boolean error, Runnable effect) {
+            this.id = id;
+            this.end = end;
+            this.error = error;
+            this.effect = effect;
+        }
+
+        /**
+         * @return the current state of the task
+         */
+        synchronized Task poll() {
+            if (System.currentTimeMillis() < end) {
+                return newTask(id, Status.RUNNING);
+            }
+            tasks.remove(id);
+            if (error) {
+                return newTask(id, Status.ERROR);
+            }
+            if (effect != null) {
+                effect.run();
+                effect = null;
+            }
+            return newTask(id, Status.SUCCESS);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.ow2.jonas.jpaas.catalog.api.PaasConfiguration;
+import org.ow2.jonas.jpaas.sr.facade.vo.JonasVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasAgentVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasResourceVO;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory System Representation and catalog for running container manager beans
+ * outside of OSGi. The facades injected in the beans are dynamic proxies backed by a
+ * single agent, its JOnAS containers and the declared PaaS configurations.
+ * The methods which are not implemented return null, false or 0.
+ */
+final class StubFacades implements InvocationHandler {
+
+    /**
+     * The agent
+     */
+    private final PaasAgentVO agent;
+
+    /**
+     * Containers by name
+     */
+    private final ConcurrentMap<String, JonasVO> containers = new ConcurrentHashMap<String, JonasVO>();
+
+    /**
+     * Configurations by name
+     */
+    private final ConcurrentMap<String, PaasConfiguration> configurations =
+            new ConcurrentHashMap<String, PaasConfiguration>();
+
+    /**
+     * Last container id
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * @param agentName Name of the agent
+     * @param apiUrl Api URL of the agent
+     */
+    StubFacades(String agentName, String apiUrl) {
+        agent = new PaasAgentVO();
+        agent.setId("agent-" + agentName);
+        agent.setName(agentName);
+        agent.setApiUrl(apiUrl);
+    }
+
+    /**
+     * Declare a running container hosted by the agent
+     * @param name Name of the container
+     * @return the container
+     */
+    JonasVO addContainer(String name) {
+        JonasVO container = new JonasVO();
+        container.setName(name);
+        container.setState("RUNNING");
+        return store(container);
+    }
+
+    /**
+     * @param configuration a configuration of the catalog
+     */
+    void addPaasConfiguration(PaasConfiguration configuration) {
+        configurations.put(configuration.getName(), configuration);
+    }
+
+    /**
+     * @return a bean using these facades
+     */
+    ContainerManagerBean newBean() throws IllegalAccessException {
+        ContainerManagerBean bean = new ContainerManagerBean();
+        for (Field field : ContainerManagerBean.class.getDeclaredFields()) {
+            Class<?> type = field.getType();
+            // the facades of the SR and of the catalog
+            if (type.isInterface() && type.getName().startsWith("org.ow2.jonas.jpaas.")
+                    && !Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                field.set(bean, Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, this));
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return "StubFacades[" + agent.getName() + "]";
+        }
+        if ("findJonasContainer".equals(name)) {
+            return containers.get(args[0]);
+        }
+        if ("createJonasContainer".equals(name) || "updateJonasContainer".equals(name)) {
+            return store((JonasVO) args[0]);
+        }
+        if ("deleteJonasContainer".equals(name)) {
+            for (JonasVO container : containers.values()) {
+                if (container.getId().equals(args[0])) {
+                    containers.remove(container.getName());
+                }
+            }
+            return null;
+        }
+        if ("findAgent".equals(name)) {
+            return agent.getName().equals(args[0]) ? agent : null;
+        }
+        if ("findAgentByPaasResource".equals(name)) {
+            return agent;
+        }
+        if ("findPaasResourcesByAgent".equals(name)) {
+            return new ArrayList<PaasResourceVO>(containers.values());
+        }
+        if ("getPaasConfiguration".equals(name)) {
+            return configurations.get(args[0]);
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    /**
+     * @param container a container
+     * @return the stored container
+     */
+    private JonasVO store(JonasVO container) {
+        if (container.getId() == null) {
+            container.setId("container-" + ids.incrementAndGet());
+        }
+        containers.put(container.getName(), container);
+        return container;
+    }
+
+    /**
+     * @param type a return type
+     * @return the default value of the type
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (List.class.isAssignableFrom(type)) {
+            return new ArrayList<Object>();
+        }
+        return null;
+    }
+}
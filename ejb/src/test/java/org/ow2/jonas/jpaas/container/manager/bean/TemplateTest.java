@@ -0,0 +1,96 @@
+/**
+ * JPaaS
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id:$
+ */
+package org.ow2.jonas.jpaas.container.manager.bean;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the {@link Template}
+ */
+public class TemplateTest {
+
+    /**
+     * The placeholders are replaced by their values
+     */
+    @Test
+    public void testRender() {
+        Template template = new Template("connector", "<Connector port=\"${port}\" protocol=\"${protocol}\"/>");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("port", "10002");
+        values.put("protocol", "AJP/1.3");
+        assertEquals("<Connector port=\"10002\" protocol=\"AJP/1.3\"/>", template.renderToString(values));
+        assertEquals("connector", template.getName());
+    }
+
+    /**
+     * The placeholders without value are kept
+     */
+    @Test
+    public void testMissingValue() {
+        Template template = new Template("plan", "a${x}b${y}c");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("x", "1");
+        assertEquals("a1b${y}c", template.renderToString(values));
+    }
+
+    /**
+     * A template without placeholder or with an unclosed one is rendered as is
+     */
+    @Test
+    public void testLiteral() {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("x", "1");
+        assertEquals("", new Template("empty", "").renderToString(values));
+        assertEquals("no placeholder", new Template("literal", "no placeholder").renderToString(values));
+        assertEquals("a${x", new Template("unclosed", "a${x").renderToString(values));
+        assertEquals("11", new Template("adjacent", "${x}${x}").renderToString(values));
+    }
+
+    /**
+     * The values are encoded in UTF-8
+     */
+    @Test
+    public void testEncoding() {
+        Template template = new Template("utf8", "\u00e9${x}");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("x", "\u20ac");
+        Template.RenderBuffer buffer = template.render(values);
+        assertEquals(5, buffer.size());
+        assertEquals("\u00e9\u20ac", buffer.toString(Template.UTF_8));
+    }
+
+    /**
+     * Renderings in the same buffer are appended, a new rendering of the thread restarts it
+     */
+    @Test
+    public void testBuffer() {
+        Template template = new Template("append", "[${x}]");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("x", "1");
+        Template.RenderBuffer buffer = template.render(values);
+        template.renderTo(values, buffer);
+        assertEquals("[1][1]", buffer.toString(Template.UTF_8));
+        assertEquals("[1]", template.renderToString(values));
+    }
+}